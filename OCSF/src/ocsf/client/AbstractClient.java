@@ -5,6 +5,11 @@ package ocsf.client;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ocsf.common.*;
 
 /**
  * The <code> AbstractClient </code> contains all the methods necessary to set
@@ -49,16 +54,120 @@ public abstract class AbstractClient implements Runnable {
 	 */
 	private ObjectInputStream input;
 
+	/**
+	 * The codec used when messages are exchanged as frames, or null when
+	 * object streams are used.
+	 */
+	private MessageCodec codec;
+
+	/**
+	 * The codecs offered to the server when the codec is negotiated, in
+	 * order of preference, or null when it is not negotiated.
+	 */
+	private MessageCodec[] offeredCodecs;
+
+	/**
+	 * The codec in use by the current connection.
+	 */
+	private volatile MessageCodec connectionCodec;
+
+	/**
+	 * The stream to handle frames going to the server when a codec is used.
+	 */
+	private OutputStream frameOutput;
+
+	/**
+	 * The stream to handle frames from the server when a codec is used.
+	 */
+	private DataInputStream frameInput;
+
 	/**
 	 * The thread created to read data from the server.
 	 */
 	private Thread clientReader;
 
+	/**
+	 * Indicates if the reader thread is a virtual thread.
+	 */
+	private boolean virtualThreads = false;
+
+	/**
+	 * The number of messages written to the object stream between two
+	 * resets, or 0 if the stream is never reset.
+	 */
+	private int streamResetInterval = 100;
+
+	/**
+	 * The number of messages written to the object stream since it was last
+	 * reset.
+	 */
+	private int writtenSinceReset = 0;
+
+	/**
+	 * The filter the objects read from the object stream go through.
+	 */
+	private ObjectInputFilter serialFilter = SerializationCodec.DEFAULT_FILTER;
+
+	/**
+	 * The options applied to the socket when the connection is opened.
+	 */
+	private SocketSettings socketSettings = new SocketSettings();
+
 	/**
 	 * Indicates if the thread is ready to stop. Needed so that the loop in the
-	 * run method knows when to stop waiting for incoming messages.
+	 * run method knows when to stop waiting for incoming messages. Also tells
+	 * a reconnecting client to give up.
+	 */
+	private volatile boolean readyToStop	= false;
+
+	/**
+	 * Indicates if the connection is opened again when it is lost.
 	 */
-	private boolean readyToStop	= false;
+	private volatile boolean autoReconnect = false;
+
+	/**
+	 * The delays before opening a lost connection again, in milliseconds.
+	 * The delay starts at the minimum and doubles after each failed attempt,
+	 * up to the maximum.
+	 */
+	private volatile long minReconnectDelay = 500;
+	private volatile long maxReconnectDelay = 30000;
+
+	/**
+	 * The messages sent while the connection is being opened again, written
+	 * once it is. Guarded by <code>sendLock</code>.
+	 */
+	private final ArrayDeque<Object> pending = new ArrayDeque<Object>();
+
+	/**
+	 * The largest number of messages kept while reconnecting.
+	 */
+	private volatile int pendingCapacity = 1000;
+
+	/**
+	 * Indicates if a lost connection is being opened again, so that the
+	 * messages sent meanwhile are kept. Guarded by <code>sendLock</code>.
+	 */
+	private boolean reconnecting = false;
+
+	/**
+	 * Held while a message is written or kept, so that the messages kept
+	 * while reconnecting are written before any later one.
+	 */
+	private final Object sendLock = new Object();
+
+	/**
+	 * The number of threads sending a message, counted before they take
+	 * <code>sendLock</code>. Only the last one flushes, so that messages sent
+	 * at the same time reach the socket together.
+	 */
+	private final AtomicInteger senders = new AtomicInteger();
+
+	/**
+	 * Held while a lost connection is opened again, and while the connection
+	 * is closed, so that a connection closed by the client stays closed.
+	 */
+	private final Object connectLock = new Object();
 
 	/**
 	 * The server's host name.
@@ -102,9 +211,26 @@ public abstract class AbstractClient implements Runnable {
 
 		// Create the sockets and the data streams
 		try {
-			clientSocket = new Socket(host, port);
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-			input = new ObjectInputStream(clientSocket.getInputStream());
+			clientSocket = new Socket();
+			socketSettings.apply(clientSocket);
+			clientSocket.connect(new InetSocketAddress(host, port));
+			connectionCodec = null;
+			writtenSinceReset = 0;
+
+			int bufferSize = socketSettings.getStreamBufferSize();
+			OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream(), bufferSize);
+			InputStream in = new BufferedInputStream(clientSocket.getInputStream(), bufferSize);
+			MessageCodec[] offered = offeredCodecs;
+			if (offered == null && codec == null) {
+				output = new ObjectOutputStream(out);
+				output.flush(); // the server waits for the stream header
+				input = new ObjectInputStream(in);
+				input.setObjectInputFilter(serialFilter);
+			} else {
+				frameOutput = out;
+				frameInput = new DataInputStream(in);
+				connectionCodec = (offered != null) ? Handshake.negotiate(frameInput, frameOutput, offered) : codec;
+			}
 		} catch (IOException ex)
 		// All three of the above must be closed when there is a failure
 		// to create any of them
@@ -117,28 +243,47 @@ public abstract class AbstractClient implements Runnable {
 			throw ex; // Rethrow the exception.
 		}
 
-		clientReader = new Thread(this); // Create the data reader thread
+		// Create the data reader thread
+		clientReader = virtualThreads ? Thread.ofVirtual().unstarted(this) : new Thread(this);
 		readyToStop = false;
 		clientReader.start(); // Start the thread
 	}
 
 	/**
 	 * Sends an object to the server. This is the only way that methods should
-	 * communicate with the server.
+	 * communicate with the server. The message is written to the socket in
+	 * a single flush, shared with the messages other threads are sending at
+	 * the same time.
+	 * <p>
+	 * While a lost connection is being opened again, the message is kept
+	 * instead, and written once the connection is opened, after the
+	 * messages sent by <code>connectionEstablished</code>.
 	 * 
 	 * @param msg
 	 *            The message to be sent.
 	 * @exception IOException
-	 *                if an I/O error occurs when sending
+	 *                if an I/O error occurs when sending, or if too many
+	 *                messages are already kept while reconnecting.
 	 */
 	final public void sendToServer(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
-			throw new SocketException("socket does not exist");
-
-		output.writeObject(msg);
+		senders.incrementAndGet();
+		synchronized (sendLock) {
+			try {
+				// The hooks of a new connection run in its reader thread, and
+				// their messages go first.
+				if (reconnecting && Thread.currentThread() != clientReader) {
+					if (pending.size() >= pendingCapacity)
+						throw new IOException("too many messages waiting for the connection");
+					pending.add(msg);
+					return;
+				}
+				write(msg);
+			} finally {
+				flushIfLast();
+			}
+		}
 	}
 
-
 	/**
 	 * Closes the connection to the server.
 	 * 
@@ -146,8 +291,10 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when closing.
 	 */
 	final public void closeConnection() throws IOException {
-		// Prevent the thread from looping any more
-		readyToStop = true;
+		// Prevent the thread from looping any more, and from reconnecting
+		synchronized (connectLock) {
+			readyToStop = true;
+		}
 
 		try {
 			closeAll();
@@ -166,6 +313,94 @@ public abstract class AbstractClient implements Runnable {
 		return clientReader != null && clientReader.isAlive();
 	}
 
+	/**
+	 * @return true if a lost connection is being opened again.
+	 */
+	final public boolean isReconnecting() {
+		synchronized (sendLock) {
+			return reconnecting;
+		}
+	}
+
+	/**
+	 * @return true if the connection is opened again when it is lost.
+	 */
+	final public boolean isAutoReconnect() {
+		return autoReconnect;
+	}
+
+	/**
+	 * Sets whether the connection is opened again when it is lost. The
+	 * client then waits a random delay and tries to connect again, and
+	 * doubles the delay after each failure, until it succeeds or
+	 * closeConnection() is called; messages sent meanwhile are kept and
+	 * written once connected. The default is false: a lost connection stays
+	 * closed.
+	 * 
+	 * @param autoReconnect
+	 *            true to reconnect automatically.
+	 */
+	final public void setAutoReconnect(boolean autoReconnect) {
+		this.autoReconnect = autoReconnect;
+	}
+
+	/**
+	 * @return the delay before the first attempt to reconnect, in
+	 *         milliseconds.
+	 */
+	final public long getMinReconnectDelay() {
+		return minReconnectDelay;
+	}
+
+	/**
+	 * @return the longest delay between two attempts to reconnect, in
+	 *         milliseconds.
+	 */
+	final public long getMaxReconnectDelay() {
+		return maxReconnectDelay;
+	}
+
+	/**
+	 * Sets the delays between the attempts to reconnect. The first attempt
+	 * waits the minimum delay, and each failed attempt doubles it, up to the
+	 * maximum. Each wait is between half the delay and the whole delay, at
+	 * random, so that the clients of a server that restarted do not all
+	 * reconnect at once. The defaults are 500 milliseconds and 30 seconds.
+	 * 
+	 * @param min
+	 *            the first delay, in milliseconds.
+	 * @param max
+	 *            the longest delay, in milliseconds.
+	 */
+	final public void setReconnectDelays(long min, long max) {
+		if (min <= 0 || max < min)
+			throw new IllegalArgumentException("invalid reconnect delays");
+
+		this.minReconnectDelay = min;
+		this.maxReconnectDelay = max;
+	}
+
+	/**
+	 * @return the largest number of messages kept while reconnecting.
+	 */
+	final public int getPendingCapacity() {
+		return pendingCapacity;
+	}
+
+	/**
+	 * Sets the largest number of messages kept while reconnecting, beyond
+	 * which sendToServer() fails. The default is 1000.
+	 * 
+	 * @param pendingCapacity
+	 *            the number of messages.
+	 */
+	final public void setPendingCapacity(int pendingCapacity) {
+		if (pendingCapacity < 0)
+			throw new IllegalArgumentException("pending capacity is negative");
+
+		this.pendingCapacity = pendingCapacity;
+	}
+
 	/**
 	 * @return the port number.
 	 */
@@ -202,6 +437,159 @@ public abstract class AbstractClient implements Runnable {
 		this.host = host;
 	}
 
+	/**
+	 * @return the codec used to exchange frames, or null if objects are
+	 *         exchanged over object streams.
+	 */
+	final public MessageCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the codec used to exchange frames with the server without
+	 * negotiating it. The server must impose the same codec. The default,
+	 * null, exchanges objects over object streams unless codecs are
+	 * offered. The change only takes effect at the time of the next call to
+	 * openConnection().
+	 * 
+	 * @param codec
+	 *            the codec, or null to use object streams.
+	 * @see #setOfferedCodecs(MessageCodec...)
+	 */
+	final public void setCodec(MessageCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * @return the codecs offered to the server, or null if the codec is not
+	 *         negotiated.
+	 */
+	final public MessageCodec[] getOfferedCodecs() {
+		return offeredCodecs == null ? null : offeredCodecs.clone();
+	}
+
+	/**
+	 * Sets the codecs offered to the server when the connection is opened.
+	 * The server picks the first one it accepts; openConnection() fails if
+	 * it accepts none. Offered codecs take precedence over the codec set
+	 * with setCodec. The change only takes effect at the time of the next
+	 * call to openConnection().
+	 * 
+	 * @param codecs
+	 *            the codecs in order of preference, or null not to
+	 *            negotiate.
+	 * @see ocsf.common.Handshake
+	 */
+	final public void setOfferedCodecs(MessageCodec... codecs) {
+		if (codecs != null && codecs.length == 0)
+			throw new IllegalArgumentException("no codec offered");
+
+		this.offeredCodecs = (codecs == null) ? null : codecs.clone();
+	}
+
+	/**
+	 * @return the codec used by the current connection, or null if objects
+	 *         are exchanged over object streams.
+	 */
+	final public MessageCodec getConnectionCodec() {
+		return connectionCodec;
+	}
+
+	/**
+	 * @return true if the thread reading from the server is a virtual thread.
+	 */
+	final public boolean isUsingVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Sets whether the thread reading from the server is a virtual thread
+	 * rather than a platform thread. Virtual threads let a single JVM hold a
+	 * very large number of idle clients. The change only takes effect at the
+	 * time of the next call to openConnection().
+	 * 
+	 * @param virtualThreads
+	 *            true to use a virtual thread.
+	 */
+	final public void setUseVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * @return the number of messages written to the object stream between
+	 *         two resets, or 0 if the stream is never reset.
+	 */
+	final public int getStreamResetInterval() {
+		return streamResetInterval;
+	}
+
+	/**
+	 * Sets the number of messages written to the object stream between two
+	 * resets of the stream. An object stream remembers every object written
+	 * to it, and so does the stream reading at the other end; resetting it
+	 * periodically bounds the memory retained on long-lived connections. The
+	 * default is 100; 0 never resets the stream. Framed connections carry no
+	 * such state and are not affected.
+	 * 
+	 * @param streamResetInterval
+	 *            the reset interval, or 0.
+	 */
+	final public void setStreamResetInterval(int streamResetInterval) {
+		if (streamResetInterval < 0)
+			throw new IllegalArgumentException("stream reset interval is negative");
+
+		this.streamResetInterval = streamResetInterval;
+	}
+
+	/**
+	 * @return the filter the objects read from the object stream go through.
+	 */
+	final public ObjectInputFilter getSerialFilter() {
+		return serialFilter;
+	}
+
+	/**
+	 * Sets the filter the objects read from the object stream go through, so
+	 * that the server cannot make the client instantiate other classes. The
+	 * default, <code>SerializationCodec.DEFAULT_FILTER</code>, only accepts
+	 * strings, boxed primitives and commands. Frames decoded by a
+	 * <code>SerializationCodec</code> go through the filter of the codec. The
+	 * change only takes effect at the time of the next call to
+	 * openConnection().
+	 * 
+	 * @param serialFilter
+	 *            the filter, which should only accept the classes of the
+	 *            messages expected.
+	 */
+	final public void setSerialFilter(ObjectInputFilter serialFilter) {
+		if (serialFilter == null)
+			throw new IllegalArgumentException("serial filter is null");
+
+		this.serialFilter = serialFilter;
+	}
+
+	/**
+	 * @return a copy of the options applied to the socket.
+	 */
+	final public SocketSettings getSocketSettings() {
+		return new SocketSettings(socketSettings);
+	}
+
+	/**
+	 * Sets the options applied to the socket, such as TCP_NODELAY, keepalive
+	 * and the buffer sizes. The change only takes effect at the time of the
+	 * next call to openConnection().
+	 * 
+	 * @param socketSettings
+	 *            the socket options, copied.
+	 */
+	final public void setSocketSettings(SocketSettings socketSettings) {
+		if (socketSettings == null)
+			throw new IllegalArgumentException("socket options are null");
+
+		this.socketSettings = new SocketSettings(socketSettings);
+	}
+
 	/**
 	 * returns the client's description.
 	 * 
@@ -216,6 +604,8 @@ public abstract class AbstractClient implements Runnable {
 	/**
 	 * Waits for messages from the server. When each arrives, a call is made to
 	 * <code>handleMessageFromServer()</code>. Not to be explicitly called.
+	 * If the connection is lost and the client reconnects automatically,
+	 * the thread then tries to open it again.
 	 */
 	final public void run() {
 		connectionEstablished();
@@ -223,14 +613,26 @@ public abstract class AbstractClient implements Runnable {
 		// The message from the server
 		Object msg;
 
+		// Indicates if the connection was lost and must be opened again
+		boolean lost = false;
+
 		// Loop waiting for data
 
 		try {
+			// Messages sent while reconnecting go after those of the hook
+			writePending();
+
 			while (!readyToStop) {
 				// Get data from Server and send it to the handler
 				// The thread waits indefinitely at the following
 				// statement until something is received from the server
-				msg = input.readObject();
+				msg = (connectionCodec == null) ? input.readObject() : Frames.read(frameInput, connectionCodec);
+
+				// The server checks that the client is alive
+				if (msg == Frames.HEARTBEAT) {
+					answerHeartbeat();
+					continue;
+				}
 
 				// Concrete subclasses do what they want with the
 				// msg by implementing the following method
@@ -238,6 +640,13 @@ public abstract class AbstractClient implements Runnable {
 			}
 		} catch (Exception exception) {
 			if (!readyToStop) {
+				if (autoReconnect) {
+					synchronized (sendLock) {
+						reconnecting = true;
+					}
+					lost = true;
+				}
+
 				try {
 					closeAll();
 				} catch (Exception ex) {
@@ -248,6 +657,9 @@ public abstract class AbstractClient implements Runnable {
 		} finally {
 			clientReader = null;
 		}
+
+		if (lost)
+			reconnect();
 	}
 
 	// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
@@ -264,7 +676,8 @@ public abstract class AbstractClient implements Runnable {
 	/**
 	 * Hook method called each time an exception is thrown by the client's
 	 * thread that is waiting for messages from the server. The method may be
-	 * overridden by subclasses.
+	 * overridden by subclasses. If the client reconnects automatically, it
+	 * starts trying to once this method returns.
 	 * 
 	 * @param exception
 	 *            the exception raised.
@@ -291,6 +704,130 @@ public abstract class AbstractClient implements Runnable {
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * Writes a message to the connection.
+	 * 
+	 * @param msg
+	 *            The message to be sent.
+	 * @exception IOException
+	 *                if an I/O error occurs when sending
+	 */
+	private void write(Object msg) throws IOException {
+		if (connectionCodec != null) {
+			OutputStream out = frameOutput;
+			if (clientSocket == null || out == null)
+				throw new SocketException("socket does not exist");
+
+			out.write(Frames.encode(connectionCodec, msg));
+			return;
+		}
+
+		if (clientSocket == null || output == null)
+			throw new SocketException("socket does not exist");
+
+		output.writeObject(msg);
+
+		// Forget the objects written so far, so that neither this stream
+		// nor the server's input stream keeps them reachable.
+		if (streamResetInterval > 0 && ++writtenSinceReset >= streamResetInterval) {
+			output.reset();
+			writtenSinceReset = 0;
+		}
+	}
+
+	/**
+	 * Flushes the messages written, unless another thread is waiting to send
+	 * one, in which case it flushes them with its own. Called by each sender
+	 * once done, while holding <code>sendLock</code>.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occurs when flushing.
+	 */
+	private void flushIfLast() throws IOException {
+		if (senders.decrementAndGet() > 0)
+			return;
+
+		OutputStream out = (connectionCodec != null) ? frameOutput : output;
+		if (out != null)
+			out.flush();
+	}
+
+	/**
+	 * Answers a heartbeat of the server with another.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occurs when sending.
+	 */
+	private void answerHeartbeat() throws IOException {
+		senders.incrementAndGet();
+		synchronized (sendLock) {
+			try {
+				OutputStream out = frameOutput;
+				if (out == null)
+					throw new SocketException("socket does not exist");
+
+				out.write(Frames.heartbeat());
+			} finally {
+				flushIfLast();
+			}
+		}
+	}
+
+	/**
+	 * Writes the messages kept while reconnecting, and sends the next ones
+	 * directly.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occurs when sending; the messages not
+	 *                written are kept.
+	 */
+	private void writePending() throws IOException {
+		senders.incrementAndGet();
+		synchronized (sendLock) {
+			try {
+				while (!pending.isEmpty()) {
+					write(pending.peek());
+					pending.poll();
+				}
+				reconnecting = false;
+			} finally {
+				flushIfLast();
+			}
+		}
+	}
+
+	/**
+	 * Opens the lost connection again, waiting longer after each failed
+	 * attempt, until it is opened or the client gives up.
+	 */
+	private void reconnect() {
+		long delay = minReconnectDelay;
+		while (true) {
+			try {
+				Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			synchronized (connectLock) {
+				if (readyToStop || !autoReconnect)
+					break;
+				try {
+					openConnection();
+					return;
+				} catch (IOException e) {
+					// The server is still down
+				}
+			}
+			delay = Math.min(2 * delay, maxReconnectDelay);
+		}
+
+		synchronized (sendLock) {
+			reconnecting = false;
+			pending.clear();
+		}
+	}
+
 	/**
 	 * Closes all aspects of the connection to the server.
 	 * 
@@ -317,6 +854,8 @@ public abstract class AbstractClient implements Runnable {
 			// when they are garbage collected.
 			output = null;
 			input = null;
+			frameOutput = null;
+			frameInput = null;
 			clientSocket = null;
 		}
 	}
@@ -0,0 +1,115 @@
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A compact <code> MessageCodec </code> for chat traffic. The first byte of a
+ * payload gives its type:
+ * <ul>
+ * <li><code>TEXT</code>: the rest is a UTF-8 string;</li>
+ * <li><code>COMMAND</code>: a two byte name length, the UTF-8 name, then the
+ * UTF-8 arguments.</li>
+ * </ul>
+ * Only <code> String </code> and <code> Command </code> messages can be
+ * encoded. Unlike Java serialization, decoding never instantiates arbitrary
+ * classes chosen by the peer.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class BinaryCodec implements MessageCodec {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The name under which this codec is negotiated.
+	 */
+	public static final String NAME = "binary";
+
+	/**
+	 * The type of a text payload.
+	 */
+	public static final byte TEXT = 1;
+
+	/**
+	 * The type of a command payload.
+	 */
+	public static final byte COMMAND = 2;
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return the name under which this codec is negotiated.
+	 */
+	public String getName() {
+		return NAME;
+	}
+
+	/**
+	 * Encodes a string or a command.
+	 *
+	 * @param msg
+	 *            the message to encode.
+	 * @param out
+	 *            the stream receiving the frame payload.
+	 * @exception IOException
+	 *                if the message is of any other type.
+	 */
+	public void encode(Object msg, OutputStream out) throws IOException {
+		if (msg instanceof String) {
+			out.write(TEXT);
+			out.write(((String) msg).getBytes(StandardCharsets.UTF_8));
+		} else if (msg instanceof Command) {
+			Command command = (Command) msg;
+			byte[] name = command.getName().getBytes(StandardCharsets.UTF_8);
+			if (name.length > 0xFFFF)
+				throw new IOException("command name too long");
+
+			out.write(COMMAND);
+			out.write(name.length >>> 8);
+			out.write(name.length);
+			out.write(name);
+			out.write(command.getArguments().getBytes(StandardCharsets.UTF_8));
+		} else {
+			throw new NotSerializableException(
+					(msg == null ? "null" : msg.getClass().getName()) + " cannot be sent with the binary codec");
+		}
+	}
+
+	/**
+	 * Decodes a string or a command.
+	 *
+	 * @param buffer
+	 *            the array containing the payload.
+	 * @param offset
+	 *            the index of the first byte of the payload.
+	 * @param length
+	 *            the number of bytes in the payload.
+	 * @return the decoded message.
+	 * @exception IOException
+	 *                if the payload is of an unknown type or truncated.
+	 */
+	public Object decode(byte[] buffer, int offset, int length) throws IOException {
+		if (length < 1)
+			throw new StreamCorruptedException("empty payload");
+
+		switch (buffer[offset]) {
+		case TEXT:
+			return new String(buffer, offset + 1, length - 1, StandardCharsets.UTF_8);
+
+		case COMMAND:
+			if (length < 3)
+				throw new StreamCorruptedException("truncated command");
+			int nameLength = ((buffer[offset + 1] & 0xFF) << 8) | (buffer[offset + 2] & 0xFF);
+			if (nameLength == 0 || 3 + nameLength > length)
+				throw new StreamCorruptedException("invalid command name length " + nameLength);
+			String name = new String(buffer, offset + 3, nameLength, StandardCharsets.UTF_8);
+			String arguments = new String(buffer, offset + 3 + nameLength, length - 3 - nameLength,
+					StandardCharsets.UTF_8);
+			return new Command(name, arguments);
+
+		default:
+			throw new StreamCorruptedException("unknown payload type " + buffer[offset]);
+		}
+	}
+}
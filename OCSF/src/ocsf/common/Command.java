@@ -0,0 +1,99 @@
+package ocsf.common;
+
+import java.io.Serializable;
+
+/**
+ * A command sent between a client and a server, such as
+ * <code>#login alice</code>. A command has a name and an argument string; it
+ * is decoded once, when it is received, so handlers need not parse it again.
+ * Its string form is the command line it stands for.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.BinaryCodec
+ */
+public final class Command implements Serializable {
+	// CLASS VARIABLES **************************************************
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The character that starts a command line.
+	 */
+	public static final char PREFIX = '#';
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The name of the command, without the prefix.
+	 */
+	private final String name;
+
+	/**
+	 * The arguments of the command, never null.
+	 */
+	private final String arguments;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a command.
+	 *
+	 * @param name
+	 *            the name of the command, without the prefix.
+	 * @param arguments
+	 *            the arguments, or null if there are none.
+	 */
+	public Command(String name, String arguments) {
+		if (name == null || name.isEmpty())
+			throw new IllegalArgumentException("command name is empty");
+
+		this.name = name;
+		this.arguments = (arguments == null) ? "" : arguments;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Parses a command line such as <code>#setport 5555</code>.
+	 *
+	 * @param line
+	 *            the command line.
+	 * @return the command, or null if the line is not a command.
+	 */
+	public static Command parse(String line) {
+		if (line == null || line.length() < 2 || line.charAt(0) != PREFIX)
+			return null;
+
+		int space = line.indexOf(' ');
+		if (space < 0)
+			return new Command(line.substring(1), "");
+		if (space == 1)
+			return null;
+		return new Command(line.substring(1, space), line.substring(space + 1).trim());
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return the name of the command, without the prefix.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the arguments of the command, or an empty string.
+	 */
+	public String getArguments() {
+		return arguments;
+	}
+
+	/**
+	 * @return the command line this command stands for.
+	 */
+	public String toString() {
+		return arguments.isEmpty() ? PREFIX + name : PREFIX + name + ' ' + arguments;
+	}
+}
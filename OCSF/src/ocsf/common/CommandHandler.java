@@ -0,0 +1,29 @@
+package ocsf.common;
+
+import java.io.IOException;
+
+/**
+ * Carries out a command registered with a <code>CommandRegistry</code>.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @param <T>
+ *            the type of the source of commands, such as the connection a
+ *            command was received from.
+ * @see ocsf.common.CommandRegistry
+ */
+@FunctionalInterface
+public interface CommandHandler<T> {
+	/**
+	 * Carries out a command.
+	 *
+	 * @param source
+	 *            where the command comes from.
+	 * @param command
+	 *            the command, already parsed.
+	 * @exception IOException
+	 *                if a reply cannot be sent.
+	 */
+	void handle(T source, Command command) throws IOException;
+}
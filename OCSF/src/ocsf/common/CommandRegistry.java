@@ -0,0 +1,97 @@
+package ocsf.common;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A table of command handlers indexed by command name. A command is parsed
+ * once, into a <code>Command</code>, and dispatched with a single lookup
+ * instead of being compared with every known command line. Handlers can be
+ * registered or replaced at any time, even while commands are dispatched,
+ * so an application can be given new commands without changing the code
+ * that dispatches them.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @param <T>
+ *            the type of the source of commands, passed to the handlers.
+ * @see ocsf.common.Command
+ */
+public class CommandRegistry<T> {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The handlers indexed by command name.
+	 */
+	private final ConcurrentHashMap<String, CommandHandler<T>> handlers = new ConcurrentHashMap<String, CommandHandler<T>>();
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Registers the handler of a command, replacing the previous one.
+	 *
+	 * @param name
+	 *            the name of the command, without the prefix.
+	 * @param handler
+	 *            the handler.
+	 * @return the handler replaced, or null.
+	 */
+	public CommandHandler<T> register(String name, CommandHandler<T> handler) {
+		if (name == null || name.isEmpty() || handler == null)
+			throw new IllegalArgumentException("command name or handler missing");
+
+		return handlers.put(name, handler);
+	}
+
+	/**
+	 * Forgets the handler of a command.
+	 *
+	 * @param name
+	 *            the name of the command.
+	 * @return the handler removed, or null.
+	 */
+	public CommandHandler<T> unregister(String name) {
+		return handlers.remove(name);
+	}
+
+	/**
+	 * Returns the handler of a command.
+	 *
+	 * @param name
+	 *            the name of the command.
+	 * @return the handler, or null if the command is unknown.
+	 */
+	public CommandHandler<T> get(String name) {
+		return handlers.get(name);
+	}
+
+	/**
+	 * @return the names of the commands registered, in alphabetical order.
+	 */
+	public Set<String> getNames() {
+		return new TreeSet<String>(handlers.keySet());
+	}
+
+	/**
+	 * Hands a command to its handler.
+	 *
+	 * @param source
+	 *            where the command comes from.
+	 * @param command
+	 *            the command.
+	 * @return false if no handler is registered for the command.
+	 * @exception IOException
+	 *                if the handler fails to send a reply.
+	 */
+	public boolean dispatch(T source, Command command) throws IOException {
+		CommandHandler<T> handler = handlers.get(command.getName());
+		if (handler == null)
+			return false;
+
+		handler.handle(source, command);
+		return true;
+	}
+}
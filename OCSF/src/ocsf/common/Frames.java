@@ -0,0 +1,140 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * Utility methods for the framed wire format. A frame is a four byte, big
+ * endian payload length followed by the payload produced by a
+ * <code> MessageCodec </code>. Framing lets a reader find message boundaries
+ * without decoding, which is what non-blocking transports need.
+ * <p>
+ * A frame with an empty payload, which no codec produces, is a heartbeat:
+ * a server sends one to a client that has been silent, and the client
+ * answers with another, which proves that the connection is still alive.
+ * Heartbeats are never handed to the application.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.MessageCodec
+ */
+public final class Frames {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The number of bytes in front of each payload.
+	 */
+	public static final int HEADER_LENGTH = 4;
+
+	/**
+	 * The largest payload accepted by a reader. Longer frames are treated as a
+	 * corrupted stream.
+	 */
+	public static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+	/**
+	 * Returned by <code>read</code> for a heartbeat frame.
+	 */
+	public static final Object HEARTBEAT = new Object() {
+		public String toString() {
+			return "heartbeat";
+		}
+	};
+
+	/**
+	 * The heartbeat frame: a header announcing an empty payload.
+	 */
+	private static final byte[] HEARTBEAT_FRAME = new byte[HEADER_LENGTH];
+
+	// CONSTRUCTORS *****************************************************
+
+	private Frames() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Encodes a message into a complete frame, header included.
+	 *
+	 * @param codec
+	 *            the codec used to encode the payload.
+	 * @param msg
+	 *            the message.
+	 * @return the frame.
+	 * @exception IOException
+	 *                if the message cannot be encoded.
+	 */
+	public static byte[] encode(MessageCodec codec, Object msg) throws IOException {
+		FrameBuffer buffer = new FrameBuffer();
+		codec.encode(msg, buffer);
+		return buffer.toFrame();
+	}
+
+	/**
+	 * Reads one frame from a blocking stream and decodes it.
+	 *
+	 * @param in
+	 *            the stream to read from.
+	 * @param codec
+	 *            the codec used to decode the payload.
+	 * @return the decoded message, or <code>HEARTBEAT</code> if the frame
+	 *         is a heartbeat.
+	 * @exception IOException
+	 *                if the stream ends or the frame is invalid.
+	 */
+	public static Object read(DataInputStream in, MessageCodec codec) throws IOException {
+		int length = checkLength(in.readInt());
+		if (length == 0)
+			return HEARTBEAT;
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return codec.decode(payload, 0, length);
+	}
+
+	/**
+	 * Returns the heartbeat frame. The array is shared and must not be
+	 * modified.
+	 *
+	 * @return the frame, header included.
+	 */
+	public static byte[] heartbeat() {
+		return HEARTBEAT_FRAME;
+	}
+
+	/**
+	 * Validates a payload length read from a frame header.
+	 *
+	 * @param length
+	 *            the length read.
+	 * @return the same length.
+	 * @exception StreamCorruptedException
+	 *                if the length is out of range.
+	 */
+	public static int checkLength(int length) throws StreamCorruptedException {
+		if (length < 0 || length > MAX_PAYLOAD_LENGTH)
+			throw new StreamCorruptedException("invalid frame length " + length);
+		return length;
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A byte array stream that reserves room for the frame header, so that the
+	 * codec writes the payload directly behind it.
+	 */
+	private static final class FrameBuffer extends ByteArrayOutputStream {
+		FrameBuffer() {
+			super(64);
+			count = HEADER_LENGTH;
+		}
+
+		byte[] toFrame() {
+			int length = count - HEADER_LENGTH;
+			buf[0] = (byte) (length >>> 24);
+			buf[1] = (byte) (length >>> 16);
+			buf[2] = (byte) (length >>> 8);
+			buf[3] = (byte) length;
+			return toByteArray();
+		}
+	}
+}
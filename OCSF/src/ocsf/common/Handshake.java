@@ -0,0 +1,207 @@
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The exchange that lets a client and a server agree on a
+ * <code> MessageCodec </code>. The client opens the connection with the
+ * four bytes <code>OCSF</code> followed by a frame listing the names of the
+ * codecs it can use, in order of preference. The server answers with the
+ * same four bytes and a frame naming the codec it picked, or an empty name if
+ * it can use none of them. Every message after that is a frame of the chosen
+ * codec.
+ * <p>
+ * A server tells a negotiating client apart from one using object streams,
+ * which start with the serialization magic number <code>0xACED</code>, and
+ * from one sending frames straight away, which start with a small length.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class Handshake {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The first four bytes of a hello or a reply: <code>OCSF</code>.
+	 */
+	public static final int MAGIC = 0x4F435346;
+
+	/**
+	 * The version of the handshake.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * The first two bytes of a Java serialization stream.
+	 */
+	public static final int STREAM_MAGIC = 0xACED;
+
+	/**
+	 * The largest hello or reply payload accepted.
+	 */
+	public static final int MAX_PAYLOAD_LENGTH = 1024;
+
+	// CONSTRUCTORS *****************************************************
+
+	private Handshake() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Performs the client side of the handshake.
+	 *
+	 * @param in
+	 *            the stream from the server.
+	 * @param out
+	 *            the stream to the server.
+	 * @param offered
+	 *            the codecs the client can use, in order of preference.
+	 * @return the codec chosen by the server.
+	 * @exception IOException
+	 *                if the server chose none of the codecs offered or
+	 *                answered with something else than a reply.
+	 */
+	public static MessageCodec negotiate(DataInputStream in, OutputStream out, MessageCodec[] offered)
+			throws IOException {
+		StringBuilder names = new StringBuilder();
+		for (int i = 0; i < offered.length; i++) {
+			if (i > 0)
+				names.append(',');
+			names.append(offered[i].getName());
+		}
+		out.write(message(names.toString()));
+		out.flush();
+
+		if (in.readInt() != MAGIC)
+			throw new StreamCorruptedException("the server does not support codec negotiation");
+		String chosen = parse(readPayload(in));
+		for (MessageCodec codec : offered) {
+			if (codec.getName().equals(chosen))
+				return codec;
+		}
+		throw new IOException("the server accepts none of the codecs offered");
+	}
+
+	/**
+	 * Performs the server side of the handshake, once the magic number has
+	 * been read.
+	 *
+	 * @param in
+	 *            the stream from the client, positioned after the magic
+	 *            number.
+	 * @param out
+	 *            the stream to the client.
+	 * @param accepted
+	 *            the codecs the server can use.
+	 * @return the codec chosen.
+	 * @exception IOException
+	 *                if the client offered no acceptable codec, in which case
+	 *                the client has been told so.
+	 */
+	public static MessageCodec accept(DataInputStream in, OutputStream out, MessageCodec[] accepted)
+			throws IOException {
+		byte[] payload = readPayload(in);
+		MessageCodec codec = select(parse(payload), accepted);
+		out.write(reply(codec));
+		out.flush();
+		if (codec == null)
+			throw new IOException("the client offered no acceptable codec");
+		return codec;
+	}
+
+	/**
+	 * Picks the first offered codec that is also accepted.
+	 *
+	 * @param offered
+	 *            the comma separated names offered by the client.
+	 * @param accepted
+	 *            the codecs the server can use.
+	 * @return the codec chosen, or null if there is none.
+	 */
+	public static MessageCodec select(String offered, MessageCodec[] accepted) {
+		for (String name : offered.split(",")) {
+			for (MessageCodec codec : accepted) {
+				if (codec.getName().equals(name))
+					return codec;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Builds the reply of a server.
+	 *
+	 * @param codec
+	 *            the codec chosen, or null if there is none.
+	 * @return the bytes of the reply.
+	 */
+	public static byte[] reply(MessageCodec codec) {
+		return message(codec == null ? "" : codec.getName());
+	}
+
+	/**
+	 * Decodes the payload of a hello or a reply.
+	 *
+	 * @param buffer
+	 *            the array containing the payload.
+	 * @param offset
+	 *            the index of the first byte of the payload.
+	 * @param length
+	 *            the number of bytes in the payload.
+	 * @return the codec names it carries.
+	 * @exception IOException
+	 *                if the payload is of an unsupported version.
+	 */
+	public static String parse(byte[] buffer, int offset, int length) throws IOException {
+		if (length < 1 || buffer[offset] != VERSION)
+			throw new StreamCorruptedException("unsupported handshake version");
+		return new String(buffer, offset + 1, length - 1, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Validates the payload length of a hello or a reply.
+	 *
+	 * @param length
+	 *            the length read.
+	 * @return the same length.
+	 * @exception StreamCorruptedException
+	 *                if the length is out of range.
+	 */
+	public static int checkLength(int length) throws StreamCorruptedException {
+		if (length < 1 || length > MAX_PAYLOAD_LENGTH)
+			throw new StreamCorruptedException("invalid handshake length " + length);
+		return length;
+	}
+
+	// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+	private static String parse(byte[] payload) throws IOException {
+		return parse(payload, 0, payload.length);
+	}
+
+	private static byte[] readPayload(DataInputStream in) throws IOException {
+		byte[] payload = new byte[checkLength(in.readInt())];
+		in.readFully(payload);
+		return payload;
+	}
+
+	private static byte[] message(String names) {
+		byte[] text = names.getBytes(StandardCharsets.UTF_8);
+		int length = 1 + text.length;
+		byte[] message = new byte[8 + length];
+		writeInt(message, 0, MAGIC);
+		writeInt(message, 4, length);
+		message[8] = VERSION;
+		System.arraycopy(text, 0, message, 9, text.length);
+		return message;
+	}
+
+	private static void writeInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+}
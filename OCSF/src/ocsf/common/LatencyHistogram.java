@@ -0,0 +1,208 @@
+package ocsf.common;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A histogram of durations in the manner of HdrHistogram: values are
+ * counted in buckets whose width grows with the value, so that every
+ * recorded value is known to within 1/64 of itself (about 1.6%) over the
+ * whole range of a <code>long</code>. Recording is lock-free and allocates
+ * nothing, so the histogram can be shared by many threads on hot paths.
+ * <p>
+ * Percentiles are read while recording goes on; they are then only
+ * approximately consistent with each other, which is enough for
+ * monitoring.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class LatencyHistogram {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The number of bits of precision kept below the leading bit.
+	 */
+	private static final int SUB_BUCKET_BITS = 6;
+
+	/**
+	 * The number of buckets per power of two.
+	 */
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * The number of buckets needed to cover every positive long.
+	 */
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The number of values counted in each bucket.
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+	/**
+	 * The number of values recorded.
+	 */
+	private final LongAdder totalCount = new LongAdder();
+
+	/**
+	 * The sum of the values recorded.
+	 */
+	private final LongAdder totalSum = new LongAdder();
+
+	/**
+	 * The largest value recorded.
+	 */
+	private final AtomicLong max = new AtomicLong();
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 *
+	 * @param value
+	 *            the value, typically in nanoseconds.
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+
+		counts.incrementAndGet(indexOf(value));
+		totalCount.increment();
+		totalSum.add(value);
+
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value))
+			;
+	}
+
+	/**
+	 * Adds the values recorded by another histogram to this one.
+	 *
+	 * @param other
+	 *            the other histogram.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			long count = other.counts.get(i);
+			if (count != 0)
+				counts.addAndGet(i, count);
+		}
+		totalCount.add(other.totalCount.sum());
+		totalSum.add(other.totalSum.sum());
+
+		long value = other.max.get();
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value))
+			;
+	}
+
+	/**
+	 * Forgets every value recorded.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			counts.set(i, 0);
+		totalCount.reset();
+		totalSum.reset();
+		max.set(0);
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return the number of values recorded.
+	 */
+	public long getCount() {
+		return totalCount.sum();
+	}
+
+	/**
+	 * @return the sum of the values recorded.
+	 */
+	public long getSum() {
+		return totalSum.sum();
+	}
+
+	/**
+	 * @return the largest value recorded, or 0.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the mean of the values recorded, or 0.
+	 */
+	public double getMean() {
+		long count = totalCount.sum();
+		return count == 0 ? 0 : (double) totalSum.sum() / count;
+	}
+
+	/**
+	 * Returns the value below which a given share of the recorded values
+	 * fall.
+	 *
+	 * @param percentile
+	 *            the percentile, between 0 and 100.
+	 * @return the highest value equivalent to the percentile, or 0 if no
+	 *         value was recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("percentile out of range");
+
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			count += counts.get(i);
+		if (count == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestValueOf(i), max.get());
+		}
+		return max.get();
+	}
+
+	// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+	/**
+	 * Returns the bucket counting a value. Values below
+	 * <code>SUB_BUCKET_COUNT</code> have a bucket each; above, each power of
+	 * two is split into <code>SUB_BUCKET_COUNT</code> buckets.
+	 *
+	 * @param value
+	 *            a non-negative value.
+	 * @return the index of the bucket.
+	 */
+	private static int indexOf(long value) {
+		int magnitude = 63 - Long.numberOfLeadingZeros(value | 1);
+		if (magnitude < SUB_BUCKET_BITS)
+			return (int) value;
+
+		int shift = magnitude - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+		return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	/**
+	 * @param index
+	 *            the index of a bucket.
+	 * @return the highest value counted in the bucket.
+	 */
+	private static long highestValueOf(int index) {
+		int bucket = index >>> SUB_BUCKET_BITS;
+		long subBucket = index & (SUB_BUCKET_COUNT - 1);
+		if (bucket == 0)
+			return subBucket;
+
+		int shift = bucket - 1;
+		long lowest = (SUB_BUCKET_COUNT + subBucket) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
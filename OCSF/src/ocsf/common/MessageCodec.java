@@ -0,0 +1,53 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * A <code> MessageCodec </code> turns the objects exchanged between a client
+ * and a server into bytes and back. Codecs are used when messages travel as
+ * length-prefixed frames (see <code> Frames </code>) rather than over a
+ * continuous object stream. Implementations must be stateless, so that one
+ * instance can be shared by all the connections of a server.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.Frames
+ */
+public interface MessageCodec {
+	/**
+	 * Returns the name under which the codec is negotiated. Codecs with the
+	 * same name must produce the same bytes.
+	 *
+	 * @return the name of the codec.
+	 * @see ocsf.common.Handshake
+	 */
+	String getName();
+
+	/**
+	 * Writes the encoded form of a message.
+	 *
+	 * @param msg
+	 *            the message to encode.
+	 * @param out
+	 *            the stream receiving the frame payload.
+	 * @exception IOException
+	 *                if the message cannot be encoded.
+	 */
+	void encode(Object msg, OutputStream out) throws IOException;
+
+	/**
+	 * Rebuilds a message from the payload of a frame.
+	 *
+	 * @param buffer
+	 *            the array containing the payload.
+	 * @param offset
+	 *            the index of the first byte of the payload.
+	 * @param length
+	 *            the number of bytes in the payload.
+	 * @return the decoded message.
+	 * @exception IOException
+	 *                if the payload is not a valid message.
+	 */
+	Object decode(byte[] buffer, int offset, int length) throws IOException;
+}
@@ -0,0 +1,123 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * A <code> MessageCodec </code> based on Java serialization. Each message is
+ * written with its own <code> ObjectOutputStream </code>, so frames can be
+ * decoded independently of one another and no state is carried from one
+ * message to the next.
+ * <p>
+ * Deserializing lets the peer choose the classes instantiated, so the frames
+ * are decoded through a filter that only accepts the classes it allows. The
+ * default filter, <code>DEFAULT_FILTER</code>, accepts strings, boxed
+ * primitives and commands; a codec using another filter must be created for
+ * other messages. Servers do not accept this codec unless told to.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class SerializationCodec implements MessageCodec {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The name under which this codec is negotiated.
+	 */
+	public static final String NAME = "java";
+
+	/**
+	 * The filter used unless another is given: it accepts strings, boxed
+	 * primitives and <code> Command </code> objects, nested at most eight
+	 * deep, and rejects any other class.
+	 */
+	public static final ObjectInputFilter DEFAULT_FILTER = ObjectInputFilter.Config.createFilter(
+			"maxdepth=8;maxarray=65536;java.lang.String;java.lang.Boolean;java.lang.Character;java.lang.Number;"
+					+ "java.lang.Byte;java.lang.Short;java.lang.Integer;java.lang.Long;java.lang.Float;"
+					+ "java.lang.Double;ocsf.common.Command;!*");
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The filter the decoded frames go through.
+	 */
+	private final ObjectInputFilter filter;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Creates a codec decoding through <code>DEFAULT_FILTER</code>.
+	 */
+	public SerializationCodec() {
+		this(DEFAULT_FILTER);
+	}
+
+	/**
+	 * Creates a codec decoding through a given filter.
+	 *
+	 * @param filter
+	 *            the filter, which should only accept the classes of the
+	 *            messages expected.
+	 */
+	public SerializationCodec(ObjectInputFilter filter) {
+		if (filter == null)
+			throw new IllegalArgumentException("filter is null");
+
+		this.filter = filter;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return the name under which this codec is negotiated.
+	 */
+	public String getName() {
+		return NAME;
+	}
+
+	/**
+	 * @return the filter the decoded frames go through.
+	 */
+	public ObjectInputFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Serializes a message.
+	 *
+	 * @param msg
+	 *            the message to encode; must be serializable.
+	 * @param out
+	 *            the stream receiving the frame payload.
+	 * @exception IOException
+	 *                if the message cannot be serialized.
+	 */
+	public void encode(Object msg, OutputStream out) throws IOException {
+		ObjectOutputStream objectOutput = new ObjectOutputStream(out);
+		objectOutput.writeObject(msg);
+		objectOutput.flush();
+	}
+
+	/**
+	 * Deserializes a message.
+	 *
+	 * @param buffer
+	 *            the array containing the payload.
+	 * @param offset
+	 *            the index of the first byte of the payload.
+	 * @param length
+	 *            the number of bytes in the payload.
+	 * @return the decoded message.
+	 * @exception IOException
+	 *                if the payload is not a serialized object, or the filter
+	 *                rejects it.
+	 */
+	public Object decode(byte[] buffer, int offset, int length) throws IOException {
+		ObjectInputStream objectInput = new ObjectInputStream(new ByteArrayInputStream(buffer, offset, length));
+		objectInput.setObjectInputFilter(filter);
+		try {
+			return objectInput.readObject();
+		} catch (ClassNotFoundException ex) {
+			throw new InvalidClassException(ex.getMessage());
+		}
+	}
+}
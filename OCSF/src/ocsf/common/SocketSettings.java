@@ -0,0 +1,208 @@
+package ocsf.common;
+
+import java.net.*;
+
+/**
+ * The options applied to the sockets of a client or of the clients of a
+ * server, and the size of the buffer placed between each socket and the
+ * streams reading and writing it.
+ * <p>
+ * By default Nagle's algorithm is disabled, since the framework coalesces
+ * messages itself: a connection flushes its buffer only when no more
+ * messages are waiting to be written, so a burst of messages leaves in few
+ * segments while a lone message leaves at once. Buffer sizes of 0 leave the
+ * operating system's defaults in place.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setSocketSettings(SocketSettings)
+ * @see ocsf.client.AbstractClient#setSocketSettings(SocketSettings)
+ */
+public final class SocketSettings {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The default size of the stream buffers.
+	 */
+	public static final int DEFAULT_STREAM_BUFFER_SIZE = 8192;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * Indicates if Nagle's algorithm is disabled. Set to true by default.
+	 */
+	private boolean tcpNoDelay = true;
+
+	/**
+	 * Indicates if TCP keepalive probes are sent. Set to false by default.
+	 */
+	private boolean keepAlive = false;
+
+	/**
+	 * The socket's send buffer size, or 0 for the system default.
+	 */
+	private int sendBufferSize = 0;
+
+	/**
+	 * The socket's receive buffer size, or 0 for the system default.
+	 */
+	private int receiveBufferSize = 0;
+
+	/**
+	 * The size of the buffers placed in front of the socket streams.
+	 */
+	private int streamBufferSize = DEFAULT_STREAM_BUFFER_SIZE;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs the default options.
+	 */
+	public SocketSettings() {
+	}
+
+	/**
+	 * Constructs a copy of other options.
+	 *
+	 * @param other
+	 *            the options to copy.
+	 */
+	public SocketSettings(SocketSettings other) {
+		this.tcpNoDelay = other.tcpNoDelay;
+		this.keepAlive = other.keepAlive;
+		this.sendBufferSize = other.sendBufferSize;
+		this.receiveBufferSize = other.receiveBufferSize;
+		this.streamBufferSize = other.streamBufferSize;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Applies the options to a socket.
+	 *
+	 * @param socket
+	 *            the socket.
+	 * @exception SocketException
+	 *                if an option cannot be set.
+	 */
+	public void apply(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(tcpNoDelay);
+		socket.setKeepAlive(keepAlive);
+		if (sendBufferSize > 0)
+			socket.setSendBufferSize(sendBufferSize);
+		if (receiveBufferSize > 0)
+			socket.setReceiveBufferSize(receiveBufferSize);
+	}
+
+	/**
+	 * Applies the options that accepted sockets inherit from the listening
+	 * socket. A receive buffer larger than 64K must be set before the
+	 * listening socket is bound.
+	 *
+	 * @param serverSocket
+	 *            the listening socket.
+	 * @exception SocketException
+	 *                if an option cannot be set.
+	 */
+	public void apply(ServerSocket serverSocket) throws SocketException {
+		if (receiveBufferSize > 0)
+			serverSocket.setReceiveBufferSize(receiveBufferSize);
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return true if Nagle's algorithm is disabled.
+	 */
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Sets whether Nagle's algorithm is disabled.
+	 *
+	 * @param tcpNoDelay
+	 *            true to send segments without delay.
+	 */
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	/**
+	 * @return true if TCP keepalive probes are sent.
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Sets whether TCP keepalive probes are sent on idle connections.
+	 *
+	 * @param keepAlive
+	 *            true to send keepalive probes.
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * @return the socket's send buffer size, or 0 for the system default.
+	 */
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * Sets the socket's send buffer size.
+	 *
+	 * @param sendBufferSize
+	 *            the size in bytes, or 0 for the system default.
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		if (sendBufferSize < 0)
+			throw new IllegalArgumentException("negative send buffer size");
+
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * @return the socket's receive buffer size, or 0 for the system default.
+	 */
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * Sets the socket's receive buffer size.
+	 *
+	 * @param receiveBufferSize
+	 *            the size in bytes, or 0 for the system default.
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		if (receiveBufferSize < 0)
+			throw new IllegalArgumentException("negative receive buffer size");
+
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * @return the size of the buffers placed in front of the socket streams.
+	 */
+	public int getStreamBufferSize() {
+		return streamBufferSize;
+	}
+
+	/**
+	 * Sets the size of the buffers placed in front of the socket streams.
+	 *
+	 * @param streamBufferSize
+	 *            the size in bytes.
+	 */
+	public void setStreamBufferSize(int streamBufferSize) {
+		if (streamBufferSize < 1)
+			throw new IllegalArgumentException("stream buffer size must be positive");
+
+		this.streamBufferSize = streamBufferSize;
+	}
+}
@@ -5,13 +5,19 @@ package ocsf.server;
 
 import java.net.*;
 import java.io.*;
+import java.nio.channels.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import ocsf.common.*;
 
 /**
 * The <code> AbstractServer </code> class maintains a thread that waits
 * for connection attempts from clients. When a connection attempt occurs
 * it creates a new <code> ConnectionToClient </code> instance which
-* runs as a thread. When a client is thus connected to the
-* server, the two programs can then exchange <code> Object </code>
+* runs as a thread, or which is serviced by an event loop when the
+* <code> SELECTOR </code> engine is used. When a client is thus connected
+* to the server, the two programs can then exchange <code> Object </code>
 * instances.<p>
 *
 * Method <code> handleMessageFromClient </code> must be defined by
@@ -35,9 +41,15 @@ public abstract class AbstractServer implements Runnable
 	// INSTANCE VARIABLES *********************************************
 
 	/**
-	 * The server socket: listens for clients who want to connect.
+	 * The server channel: listens for clients who want to connect.
+	 */
+	private ServerSocketChannel serverChannel = null;
+
+	/**
+	 * The selector the listening thread waits on until connections are
+	 * pending or it is told to stop.
 	 */
-	private ServerSocket serverSocket = null;
+	private Selector acceptSelector = null;
 
 	/**
 	 * The connection listener thread.
@@ -50,26 +62,172 @@ public abstract class AbstractServer implements Runnable
 	private int port;
 
 	/**
-	 * The server timeout while for accepting connections.
-	 * After timing out, the server will check to see if a command to
-	 * stop the server has been issued; it not it will resume accepting
-	 * connections.
-	 * Set to half a second by default.
+	 * The maximum queue length; i.e. the maximum number of clients that
+	 * can be waiting to connect. Large enough by default to absorb all
+	 * clients reconnecting at once after a restart; the operating system
+	 * may cap it.
+	 * Set to 1024 by default.
 	 */
-	private int timeout = 500;
+	private int backlog = 1024;
 
 	/**
-	 * The maximum queue length; i.e. the maximum number of clients that
-	 * can be waiting to connect.
-	 * Set to 10 by default.
+	 * The second, since an arbitrary origin, in which connections are
+	 * currently being counted. Only written by the listening thread.
+	 */
+	private volatile long acceptSecond = 0;
+
+	/**
+	 * The number of connections accepted during <code>acceptSecond</code>.
+	 */
+	private volatile int acceptsThisSecond = 0;
+
+	/**
+	 * The number of connections accepted during the second before
+	 * <code>acceptSecond</code>.
+	 */
+	private volatile int acceptsLastSecond = 0;
+
+	/**
+	 * The largest number of connections accepted during one second.
+	 */
+	private volatile int peakAcceptRate = 0;
+
+	/**
+	 * Indicates if connection threads of the
+	 * <code>THREAD_PER_CONNECTION</code> engine are virtual threads.
+	 * Set to false by default.
+	 */
+	private volatile boolean virtualThreads = false;
+
+	/**
+	 * The connections currently open, whatever the engine serving them.
+	 */
+	private final ClientRegistry clientRegistry = new ClientRegistry();
+
+	/**
+	 * The activity of the server and of its clients.
+	 */
+	private final ServerMetrics metrics = new ServerMetrics(clientRegistry);
+
+	/**
+	 * The engine used for the next call to <code>listen</code>.
+	 * Set to <code>ServerEngine.THREAD_PER_CONNECTION</code> by default.
+	 */
+	private ServerEngine serverEngine = ServerEngine.THREAD_PER_CONNECTION;
+
+	/**
+	 * The number of event loops started by the <code>SELECTOR</code>
+	 * engine. Set to the number of available processors by default.
+	 */
+	private int selectorThreads =
+		Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The event loops of the <code>SELECTOR</code> engine, or null when
+	 * the server is not using that engine.
+	 */
+	private SelectorLoop[] selectorLoops;
+
+	/**
+	 * The index of the event loop that receives the next connection.
+	 */
+	private int nextSelectorLoop = 0;
+
+	/**
+	 * The maximum number of messages waiting to be written to a client.
+	 * Set to 1024 by default.
+	 */
+	private volatile int outboundQueueCapacity = 1024;
+
+	/**
+	 * What happens when a message is sent to a client whose outbound
+	 * queue is full. Set to <code>OverflowPolicy.DROP_OLDEST</code> by
+	 * default, so that a slow client never holds up the others.
+	 */
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+	/**
+	 * How long, in milliseconds, a sender waits for room in a full queue
+	 * with the <code>BLOCK</code> policy. Set to ten seconds by default.
+	 */
+	private volatile long overflowTimeout = 10000;
+
+	/**
+	 * The number of messages written to a client's object stream between
+	 * two resets of the stream. Set to 100 by default.
+	 */
+	private volatile int streamResetInterval = 100;
+
+	/**
+	 * How long, in milliseconds, a client may stay silent before it is sent
+	 * heartbeats, or 0 to send none. Set to 0 by default.
+	 */
+	private volatile long heartbeatInterval = 0;
+
+	/**
+	 * How long, in milliseconds, a client may stay silent before its
+	 * connection is closed, or 0 never to close it. Set to 0 by default.
+	 */
+	private volatile long idleTimeout = 0;
+
+	/**
+	 * Sends the heartbeats and closes the idle connections while the server
+	 * is open, or null if neither is enabled.
+	 */
+	private volatile HeartbeatMonitor heartbeatMonitor;
+
+	/**
+	 * The rate limit applied to the messages of each client, or null if
+	 * there is none. Set to null by default.
+	 */
+	private volatile RateLimit clientRateLimit;
+
+	/**
+	 * The rate limit applied to the messages of all clients together, or
+	 * null if there is none. Set to null by default.
+	 */
+	private volatile RateLimit globalRateLimit;
+
+	/**
+	 * The bucket limiting the rate of the messages of all clients together.
+	 */
+	private final TokenBucket globalRateBucket = new TokenBucket();
+
+	/**
+	 * What happens to a message received faster than the rate limits
+	 * allow. Set to <code>RateLimitPolicy.DROP</code> by default.
+	 */
+	private volatile RateLimitPolicy rateLimitPolicy = RateLimitPolicy.DROP;
+
+	/**
+	 * The options applied to the sockets of the clients.
+	 */
+	private volatile SocketSettings socketSettings = new SocketSettings();
+
+	/**
+	 * The codec imposed on every client, or null to negotiate one with
+	 * each client.
+	 */
+	private volatile MessageCodec codec;
+
+	/**
+	 * The codecs a client may negotiate, in the server's order of
+	 * preference. By default only a <code>BinaryCodec</code>: Java
+	 * serialization must be accepted explicitly.
+	 */
+	private volatile MessageCodec[] acceptedCodecs = { new BinaryCodec() };
+
+	/**
+	 * Indicates if clients that do not negotiate a codec may exchange
+	 * objects over object streams.  Set to false by default.
 	 */
-	private int backlog = 10;
+	private volatile boolean objectStreamsAccepted = false;
 
 	/**
-	 * The thread group associated with client threads. Each member of the
-	 * thread group is a <code> ConnectionToClient </code>.
+	 * The filter the objects read from object streams go through.
 	 */
-	private ThreadGroup clientThreadGroup;
+	private volatile ObjectInputFilter serialFilter =
+		SerializationCodec.DEFAULT_FILTER;
 
 	/**
 	 * Indicates if the listening thread is ready to stop.  Set to
@@ -77,6 +235,31 @@ public abstract class AbstractServer implements Runnable
 	 */
 	private boolean readyToStop = false;
 
+	/**
+	 * The way calls to <code>handleMessageFromClient</code> are serialized.
+	 * Set to <code>DispatchMode.SERIALIZED</code> by default.
+	 */
+	private volatile DispatchMode dispatchMode = DispatchMode.SERIALIZED;
+
+	/**
+	 * The locks used when dispatching in <code>DispatchMode.PER_KEY</code>
+	 * mode. Keys are hashed onto this fixed set of stripes so that no lock
+	 * needs to be allocated per message.
+	 */
+	private final Object[] dispatchLocks = new Object[DISPATCH_LOCK_STRIPES];
+
+	/**
+	 * The number of lock stripes used in <code>DispatchMode.PER_KEY</code>
+	 * mode. Must be a power of two.
+	 */
+	private static final int DISPATCH_LOCK_STRIPES = 64;
+
+	/**
+	 * How often, in nanoseconds, a connection being drained is checked for
+	 * having closed.
+	 */
+	private static final long DRAIN_CHECK_INTERVAL = 5000000L;
+
 
 	// CONSTRUCTOR ******************************************************
 
@@ -89,17 +272,28 @@ public abstract class AbstractServer implements Runnable
 	{
 		this.port = port;
 
-		this.clientThreadGroup =
-			new ThreadGroup("ConnectionToClient threads")
-			{
-				// All uncaught exceptions in connection threads will
-				// be sent to the clientException callback method.
-				public void uncaughtException(
-					Thread thread, Throwable exception)
-				{
-					clientException((ConnectionToClient)thread, exception);
-				}
-			};
+		for (int i=0; i<dispatchLocks.length; i++)
+		{
+			dispatchLocks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Constructs a new server handling the messages of its clients in a
+	 * given dispatch mode. Subclasses should prefer this constructor to
+	 * calling <code>setDispatchMode</code> from their own.
+	 *
+	 * @param port the port number on which to listen.
+	 * @param dispatchMode the dispatch mode.
+	 * @see #setDispatchMode(DispatchMode)
+	 */
+	public AbstractServer(int port, DispatchMode dispatchMode)
+	{
+		this(port);
+		if (dispatchMode == null)
+			throw new IllegalArgumentException("dispatch mode is null");
+
+		this.dispatchMode = dispatchMode;
 	}
 
 
@@ -117,12 +311,36 @@ public abstract class AbstractServer implements Runnable
 	{
 		if (!isListening())
 		{
-			if (serverSocket == null)
+			if (serverChannel == null)
 			{
-				serverSocket = new ServerSocket(getPort(), backlog);
+				ServerSocketChannel channel = ServerSocketChannel.open();
+				Selector selector = null;
+				try
+				{
+					socketSettings.apply(channel.socket());
+					channel.bind(new InetSocketAddress(getPort()), backlog);
+					channel.configureBlocking(false);
+					selector = Selector.open();
+					channel.register(selector, SelectionKey.OP_ACCEPT);
+				}
+				catch (IOException ex)
+				{
+					if (selector != null)
+						selector.close();
+					channel.close();
+					throw ex;
+				}
+				serverChannel = channel;
+				acceptSelector = selector;
+				if (serverEngine == ServerEngine.SELECTOR)
+					startSelectorLoops();
+				if (heartbeatInterval > 0 || idleTimeout > 0)
+				{
+					heartbeatMonitor = new HeartbeatMonitor(this, heartbeatInterval, idleTimeout);
+					heartbeatMonitor.start();
+				}
 			}
 
-			serverSocket.setSoTimeout(timeout);
 			readyToStop = false;
 			connectionListener = new Thread(this);
 			connectionListener.start();
@@ -135,6 +353,11 @@ public abstract class AbstractServer implements Runnable
 	final public void stopListening()
 	{
 		readyToStop = true;
+
+		// Wake the listening thread up so that it stops at once.
+		Selector selector = acceptSelector;
+		if (selector != null)
+			selector.wakeup();
 	}
 
 	/**
@@ -151,29 +374,148 @@ public abstract class AbstractServer implements Runnable
 	 */
 	final synchronized public void close() throws IOException
 	{
-		if (serverSocket == null)
+		if (serverChannel == null)
 			return;
 		stopListening();
 		try
 		{
-			serverSocket.close();
+			try
+			{
+				serverChannel.close();
+			}
+			finally
+			{
+				acceptSelector.close();
+			}
 		}
 		finally
 		{
+			stopHeartbeatMonitor();
+
 			// Close the client sockets of the already connected clients
-			Thread[] clientThreadList = getClientConnections();
-			for (int i=0; i<clientThreadList.length; i++)
+			ConnectionToClient[] clientList = getClientConnections();
+			for (int i=0; i<clientList.length; i++)
 			{
 				try
 				{
-					((ConnectionToClient)clientThreadList[i]).close();
+					clientList[i].close();
 				}
 				// Ignore all exceptions when closing clients.
 				catch(Exception ex) {}
 			}
-			serverSocket = null;
+			stopSelectorLoops();
+			serverChannel = null;
+			acceptSelector = null;
+			serverClosed();
+		}
+	}
+
+	/**
+	 * Closes the server socket, then drains the connections with all
+	 * clients: each client is sent a notice, if one is given, and its
+	 * connection is closed once the messages queued for it, the notice
+	 * included, are written. The connections are drained in parallel, so a
+	 * slow client does not hold the others up, and the connections still
+	 * open when the deadline passes are closed at once, discarding the
+	 * messages they still hold. The method returns when every connection is
+	 * closed. If the server is already closed, this call has no effect.<p>
+	 *
+	 * The server is not locked while the connections drain, so that the
+	 * messages received meanwhile and the <code>clientDisconnected</code>
+	 * hooks, called as each connection closes, can still be handled. The
+	 * server must not be started again before the method returns.
+	 *
+	 * @param timeout the longest time to wait for the messages to be
+	 *        written, in ms.
+	 * @param notice the message sent to each client before its connection
+	 *        is closed, or null to send none.
+	 * @return what was written and discarded, or null if the server was
+	 *         already closed.
+	 * @exception IOException if an I/O error occurs while
+	 * closing the server socket.
+	 */
+	final public ShutdownReport close(long timeout, Object notice) throws IOException
+	{
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+		ConnectionToClient[] clientList;
+		IOException exception = null;
+		synchronized (this)
+		{
+			if (serverChannel == null)
+				return null;
+			stopListening();
+			try
+			{
+				try
+				{
+					serverChannel.close();
+				}
+				finally
+				{
+					acceptSelector.close();
+				}
+			}
+			catch (IOException ex)
+			{
+				// The clients are drained all the same.
+				exception = ex;
+			}
+			stopHeartbeatMonitor();
+			clientList = getClientConnections();
+		}
+
+		long[] flushed = new long[clientList.length];
+		long[] dropped = new long[clientList.length];
+		boolean[] forced = new boolean[clientList.length];
+		Thread[] drains = new Thread[clientList.length];
+		for (int i=0; i<clientList.length; i++)
+		{
+			final int index = i;
+			drains[i] = Thread.startVirtualThread(() ->
+				drainClient(clientList[index], notice, deadline, flushed, dropped, forced, index));
+		}
+		// The drains end by the deadline anyway: an interrupt does not cut
+		// the wait short, and is passed on to the caller.
+		boolean interrupted = false;
+		for (int i=0; i<drains.length; i++)
+		{
+			try
+			{
+				drains[i].join();
+			}
+			catch (InterruptedException ex)
+			{
+				interrupted = true;
+				i--;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		synchronized (this)
+		{
+			// The event loops write the messages drained; stop them last.
+			stopSelectorLoops();
+			serverChannel = null;
+			acceptSelector = null;
 			serverClosed();
 		}
+		if (exception != null)
+			throw exception;
+
+		long flushedMessages = 0;
+		long droppedMessages = 0;
+		int forcedClients = 0;
+		for (int i=0; i<clientList.length; i++)
+		{
+			flushedMessages += flushed[i];
+			droppedMessages += dropped[i];
+			if (forced[i])
+				forcedClients++;
+		}
+		return new ShutdownReport(System.nanoTime() - start, clientList.length,
+			flushedMessages, droppedMessages, forcedClients);
 	}
 
 	/**
@@ -183,22 +525,56 @@ public abstract class AbstractServer implements Runnable
 	 * can be overriden, but if so it should still perform the general
 	 * function of sending to all clients, perhaps after some kind
 	 * of filtering is done. Any exception thrown while
-	 * sending the message to a particular client is ignored.
+	 * sending the message to a particular client is ignored.<p>
+	 *
+	 * The message is encoded once for all the clients that exchange
+	 * frames, and the encoded bytes are shared between them. The message
+	 * is only queued for each client, so a slow client does not delay the
+	 * others.
 	 *
 	 * @param msg   Object The message to be sent
 	 */
 	public void sendToAllClients(Object msg)
 	{
-		Thread[] clientThreadList = getClientConnections();
+		long start = System.nanoTime();
+		Fanout fanout = new Fanout(msg);
 
-		for (int i=0; i<clientThreadList.length; i++)
+		// Scan the registry slots directly: no array is allocated, and
+		// clients that connect or disconnect meanwhile do not disturb
+		// the others.
+		for (int i=0, n=clientRegistry.limit(); i<n; i++)
 		{
-			try
-			{
-				((ConnectionToClient)clientThreadList[i]).sendToClient(msg);
-			}
-			catch (Exception ex) {}
+			ConnectionToClient client = clientRegistry.get(i);
+			if (client != null)
+				fanout.send(client);
+		}
+
+		broadcastSent(fanout, start);
+	}
+
+	/**
+	 * Sends a message to some of the clients connected to the server,
+	 * such as the members of a chat room.  The message is encoded and
+	 * queued as by <code>sendToAllClients</code>, so the cost depends on
+	 * the number of clients given, not on the number connected.  Any
+	 * exception thrown while sending the message to a particular client
+	 * is ignored.
+	 *
+	 * @param clients the clients; null elements are skipped.
+	 * @param msg   Object The message to be sent
+	 */
+	public void sendToClients(ConnectionToClient[] clients, Object msg)
+	{
+		long start = System.nanoTime();
+		Fanout fanout = new Fanout(msg);
+
+		for (ConnectionToClient client : clients)
+		{
+			if (client != null)
+				fanout.send(client);
 		}
+
+		broadcastSent(fanout, start);
 	}
 
 
@@ -223,17 +599,37 @@ public abstract class AbstractServer implements Runnable
 	 * in this migth disconnect. New clients can also connect,
 	 * these later will not appear in the array.
 	 *
-	 * @return an array of <code>Thread</code> containing
+	 * @return an array containing the
 	 * <code>ConnectionToClient</code> instances.
 	 */
-	synchronized final public Thread[] getClientConnections()
+	final public ConnectionToClient[] getClientConnections()
 	{
-		Thread[] clientThreadList = new
-			Thread[clientThreadGroup.activeCount()];
+		return clientRegistry.toArray();
+	}
 
-		clientThreadGroup.enumerate(clientThreadList);
+	/**
+	 * Finds a client connection from its id.
+	 *
+	 * @param id the id of the connection.
+	 * @return the connection, or null if no open connection has that id.
+	 * @see ocsf.server.ConnectionToClient#getId()
+	 */
+	final public ConnectionToClient getClientConnection(long id)
+	{
+		return clientRegistry.getById(id);
+	}
 
-		return clientThreadList;
+	/**
+	 * Finds a client connection from the login id bound to it.
+	 *
+	 * @param loginId the login id.
+	 * @return the connection, or null if no open connection has that
+	 * login id.
+	 * @see ocsf.server.ConnectionToClient#setLoginId(String)
+	 */
+	final public ConnectionToClient getClientConnection(String loginId)
+	{
+		return clientRegistry.getByLoginId(loginId);
 	}
 
 	/**
@@ -243,7 +639,7 @@ public abstract class AbstractServer implements Runnable
 	 */
 	final public int getNumberOfClients()
 	{
-		return clientThreadGroup.activeCount();
+		return clientRegistry.size();
 	}
 
 	/**
@@ -269,22 +665,33 @@ public abstract class AbstractServer implements Runnable
 	}
 
 	/**
-	 * Sets the timeout time when accepting connections.
-	 * The default is half a second. This means that stopping the
-	 * server may take up to timeout duration to actually stop.
-	 * The server must be stopped and restarted for the timeout
-	 * change to be effective.
+	 * Formerly set the timeout after which the listening thread checked
+	 * whether it had to stop. The listening thread is now woken up as
+	 * soon as it is told to stop, so this setting has no effect.
 	 *
 	 * @param timeout the timeout time in ms.
+	 * @deprecated the server stops listening without delay.
 	 */
+	@Deprecated
 	final public void setTimeout(int timeout)
 	{
-		this.timeout = timeout;
+	}
+
+	/**
+	 * Returns the maximum number of waiting connections accepted by the
+	 * operating system.
+	 *
+	 * @return the backlog.
+	 */
+	final public int getBacklog()
+	{
+		return backlog;
 	}
 
 	/**
 	 * Sets the maximum number of waiting connections accepted by the
-	 * operating system. The default is 20.
+	 * operating system. The default is 1024; the operating system may
+	 * use a lower limit.
 	 * The server must be closed and restarted for the backlog
 	 * change to be in effect.
 	 *
@@ -295,93 +702,719 @@ public abstract class AbstractServer implements Runnable
 		this.backlog = backlog;
 	}
 
-	// RUN METHOD -------------------------------------------------------
-
 	/**
-	 * Runs the listening thread that allows clients to connect.
-	 * Not to be called.
+	 * Returns the number of connections accepted since the server was
+	 * created, including those that could not be set up.
+	 *
+	 * @return the number of accepted connections.
 	 */
-	final public void run()
+	final public long getAcceptedConnectionCount()
 	{
-		// call the hook method to notify that the server is starting
-		serverStarted();
-
-		try
-		{
-			// Repeatedly waits for a new client connection, accepts it, and
-			// starts a new thread to handle data exchange.
-			while(!readyToStop)
-			{
-				try
-				{
-					// Wait here for new connection attempts, or a timeout
-					Socket clientSocket = serverSocket.accept();
-
-					// When a client is accepted, create a thread to handle
-					// the data exchange, then add it to thread group
-
-					synchronized(this)
-					{
-						new ConnectionToClient(
-							this.clientThreadGroup, clientSocket, this);
-					}
-				}
-				catch (InterruptedIOException exception)
-				{
-					// This will be thrown when a timeout occurs.
-					// The server will continue to listen if not ready to stop.
-				}
-			}
-
-			// call the hook method to notify that the server has stopped
-			serverStopped();
-		}
-		catch (IOException exception)
-		{
-			if (!readyToStop)
-			{
-				// Closing the socket must have thrown a SocketException
-				listeningException(exception);
-			}
-			else
-			{
-				serverStopped();
-			}
-		}
-		finally
-		{
-			readyToStop = true;
-			connectionListener = null;
-		}
+		return metrics.acceptedConnections;
 	}
 
-
-	// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
-
 	/**
-	 * Hook method called each time a new client connection is
-	 * accepted. The default implementation does nothing.
-	 * @param client the connection connected to the client.
+	 * Returns the number of connections accepted during the last whole
+	 * second.
+	 *
+	 * @return the accept rate, in connections per second.
 	 */
-	protected void clientConnected(ConnectionToClient client) {}
+	final public int getAcceptRate()
+	{
+		long now = System.nanoTime() / 1000000000L;
+		long second = acceptSecond;
+		if (now == second)
+			return acceptsLastSecond;
+		if (now == second + 1)
+			return acceptsThisSecond;
+		return 0;
+	}
 
 	/**
-	 * Hook method called each time a client disconnects.
-	 * The default implementation does nothing. The method
-	 * may be overridden by subclasses but should remains synchronized.
+	 * Returns the largest number of connections accepted during one
+	 * second, for instance while clients reconnect after a restart.
 	 *
-	 * @param client the connection with the client.
+	 * @return the peak accept rate, in connections per second.
 	 */
-	synchronized protected void clientDisconnected(
-		ConnectionToClient client) {}
+	final public int getPeakAcceptRate()
+	{
+		return peakAcceptRate;
+	}
 
 	/**
-	 * Hook method called each time an exception is thrown in a
-	 * ConnectionToClient thread.
-	 * The method may be overridden by subclasses but should remains
-	 * synchronized.
+	 * Returns the engine used to perform I/O with the clients.
 	 *
-	 * @param client the client that raised the exception.
+	 * @return the server engine.
+	 */
+	final public ServerEngine getServerEngine()
+	{
+		return serverEngine;
+	}
+
+	/**
+	 * Sets the engine used to perform I/O with the clients. The
+	 * default, <code>ServerEngine.THREAD_PER_CONNECTION</code>, serves
+	 * each client with its own thread. <code>ServerEngine.SELECTOR</code>
+	 * multiplexes all clients over a few event loops; it always exchanges
+	 * frames, so its clients must negotiate a codec unless one has been
+	 * set.
+	 * The server must be closed and restarted for the engine
+	 * change to be in effect.
+	 * The <code>SELECTOR</code> engine cannot be used with the
+	 * <code>RateLimitPolicy.DELAY</code> policy, as its event loops
+	 * would wait for the rate limits of a client while holding up
+	 * the other clients they serve.
+	 *
+	 * @param serverEngine the server engine.
+	 * @exception IllegalArgumentException if the engine is the
+	 *  <code>SELECTOR</code> engine and the rate limit policy is
+	 *  <code>DELAY</code>.
+	 */
+	final public void setServerEngine(ServerEngine serverEngine)
+	{
+		if (serverEngine == null)
+			throw new IllegalArgumentException("server engine is null");
+		if (serverEngine == ServerEngine.SELECTOR
+			&& rateLimitPolicy == RateLimitPolicy.DELAY)
+			throw new IllegalArgumentException(
+				"the selector engine cannot delay messages");
+
+		this.serverEngine = serverEngine;
+	}
+
+	/**
+	 * Sets the number of event loops started by the
+	 * <code>SELECTOR</code> engine. The default is the number of
+	 * available processors.
+	 * The server must be closed and restarted for the
+	 * change to be in effect.
+	 *
+	 * @param selectorThreads the number of event loops.
+	 */
+	final public void setSelectorThreads(int selectorThreads)
+	{
+		if (selectorThreads < 1)
+			throw new IllegalArgumentException(
+				"at least one selector thread is needed");
+
+		this.selectorThreads = selectorThreads;
+	}
+
+	/**
+	 * Returns true if the <code>THREAD_PER_CONNECTION</code> engine
+	 * runs each client on a virtual thread.
+	 *
+	 * @return true if virtual threads are used.
+	 */
+	final public boolean isUsingVirtualThreads()
+	{
+		return virtualThreads;
+	}
+
+	/**
+	 * Sets whether the <code>THREAD_PER_CONNECTION</code> engine runs
+	 * each client on a virtual thread rather than a platform thread.
+	 * Virtual threads are cheap enough to keep a very large number of
+	 * idle clients connected. The default is false.
+	 * The change is in effect for the clients that connect afterwards.
+	 *
+	 * @param virtualThreads true to use virtual threads.
+	 */
+	final public void setUseVirtualThreads(boolean virtualThreads)
+	{
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Returns the codec imposed on every client.
+	 *
+	 * @return the codec, or null if the codec is negotiated.
+	 */
+	final public MessageCodec getCodec()
+	{
+		return codec;
+	}
+
+	/**
+	 * Imposes a codec on every client: clients must send frames of this
+	 * codec straight away, without negotiating. The default, null, lets
+	 * each client negotiate one of the accepted codecs, and, if object
+	 * streams are accepted, lets clients of the
+	 * <code>THREAD_PER_CONNECTION</code> engine that do not negotiate
+	 * exchange objects over object streams.
+	 * The change is in effect for the clients that connect afterwards.
+	 *
+	 * @param codec the codec, or null to negotiate.
+	 * @see ocsf.common.Handshake
+	 */
+	final public void setCodec(MessageCodec codec)
+	{
+		this.codec = codec;
+	}
+
+	/**
+	 * Returns the codecs a client may negotiate.
+	 *
+	 * @return the codecs, in the server's order of preference.
+	 */
+	final public MessageCodec[] getAcceptedCodecs()
+	{
+		return acceptedCodecs.clone();
+	}
+
+	/**
+	 * Sets the codecs a client may negotiate. The client's order of
+	 * preference prevails; the server's order only matters among codecs
+	 * of the same name. The default only accepts a
+	 * <code>BinaryCodec</code>; a <code>SerializationCodec</code> lets
+	 * clients choose the classes the server instantiates, within the
+	 * limits of its filter.
+	 * The change is in effect for the clients that connect afterwards.
+	 *
+	 * @param codecs the codecs.
+	 */
+	final public void setAcceptedCodecs(MessageCodec... codecs)
+	{
+		if (codecs == null || codecs.length == 0)
+			throw new IllegalArgumentException("no codec accepted");
+		for (MessageCodec codec : codecs)
+		{
+			if (codec == null)
+				throw new IllegalArgumentException("codec is null");
+		}
+
+		this.acceptedCodecs = codecs.clone();
+	}
+
+	/**
+	 * Returns true if clients that do not negotiate a codec may exchange
+	 * objects over object streams.
+	 *
+	 * @return true if object streams are accepted.
+	 */
+	final public boolean isAcceptingObjectStreams()
+	{
+		return objectStreamsAccepted;
+	}
+
+	/**
+	 * Sets whether clients of the <code>THREAD_PER_CONNECTION</code>
+	 * engine that do not negotiate a codec may exchange objects over
+	 * object streams, as OCSF clients did before codecs. The default is
+	 * false, and the connections of such clients are closed: reading an
+	 * object stream lets the client choose the classes the server
+	 * instantiates, within the limits of the serial filter.
+	 * The change is in effect for the clients that connect afterwards.
+	 *
+	 * @param objectStreamsAccepted true to accept object streams.
+	 * @see #setSerialFilter(ObjectInputFilter)
+	 */
+	final public void setAcceptObjectStreams(boolean objectStreamsAccepted)
+	{
+		this.objectStreamsAccepted = objectStreamsAccepted;
+	}
+
+	/**
+	 * Returns the filter the objects read from object streams go
+	 * through.
+	 *
+	 * @return the serial filter.
+	 */
+	final public ObjectInputFilter getSerialFilter()
+	{
+		return serialFilter;
+	}
+
+	/**
+	 * Sets the filter the objects read from object streams go through.
+	 * The default, <code>SerializationCodec.DEFAULT_FILTER</code>, only
+	 * accepts strings, boxed primitives and commands. Frames decoded by a
+	 * <code>SerializationCodec</code> go through the filter of the codec.
+	 * The change is in effect for the clients that connect afterwards.
+	 *
+	 * @param serialFilter the filter, which should only accept the
+	 *  classes of the messages expected.
+	 */
+	final public void setSerialFilter(ObjectInputFilter serialFilter)
+	{
+		if (serialFilter == null)
+			throw new IllegalArgumentException("serial filter is null");
+
+		this.serialFilter = serialFilter;
+	}
+
+	/**
+	 * Returns the number of messages written to a client's object stream
+	 * between two resets of the stream.
+	 *
+	 * @return the reset interval, or 0 if streams are never reset.
+	 */
+	final public int getStreamResetInterval()
+	{
+		return streamResetInterval;
+	}
+
+	/**
+	 * Sets the number of messages written to a client's object stream
+	 * between two resets of the stream. An object stream remembers every
+	 * object written to it, and so does the stream reading at the other
+	 * end, so that it can send references to objects sent before.
+	 * Resetting the stream periodically bounds the memory retained on
+	 * long-lived connections. The default is 100; 0 never resets the
+	 * streams. Framed connections carry no such state and are not
+	 * affected.
+	 * The change is in effect for the clients that connect afterwards.
+	 *
+	 * @param streamResetInterval the reset interval, or 0.
+	 */
+	final public void setStreamResetInterval(int streamResetInterval)
+	{
+		if (streamResetInterval < 0)
+			throw new IllegalArgumentException(
+				"stream reset interval is negative");
+
+		this.streamResetInterval = streamResetInterval;
+	}
+
+	/**
+	 * Returns the options applied to the sockets of the clients.
+	 *
+	 * @return a copy of the socket options.
+	 */
+	final public SocketSettings getSocketSettings()
+	{
+		return new SocketSettings(socketSettings);
+	}
+
+	/**
+	 * Sets the options applied to the sockets of the clients, such as
+	 * TCP_NODELAY, keepalive and the buffer sizes. A receive buffer size
+	 * is also applied to the listening socket, which the server must be
+	 * closed and restarted to recreate.
+	 * The change is in effect for the clients that connect afterwards.
+	 *
+	 * @param socketSettings the socket options, copied.
+	 */
+	final public void setSocketSettings(SocketSettings socketSettings)
+	{
+		if (socketSettings == null)
+			throw new IllegalArgumentException("socket options are null");
+
+		this.socketSettings = new SocketSettings(socketSettings);
+	}
+
+	/**
+	 * Returns the maximum number of messages waiting to be written to
+	 * a client.
+	 *
+	 * @return the capacity of the outbound queues.
+	 */
+	final public int getOutboundQueueCapacity()
+	{
+		return outboundQueueCapacity;
+	}
+
+	/**
+	 * Sets the maximum number of messages waiting to be written to
+	 * a client. The default is 1024.
+	 * The change is in effect for the clients that connect afterwards.
+	 *
+	 * @param outboundQueueCapacity the capacity of the outbound queues.
+	 */
+	final public void setOutboundQueueCapacity(int outboundQueueCapacity)
+	{
+		if (outboundQueueCapacity < 1)
+			throw new IllegalArgumentException(
+				"outbound queue capacity must be positive");
+
+		this.outboundQueueCapacity = outboundQueueCapacity;
+	}
+
+	/**
+	 * Returns what happens when a message is sent to a client whose
+	 * outbound queue is full.
+	 *
+	 * @return the overflow policy.
+	 */
+	final public OverflowPolicy getOverflowPolicy()
+	{
+		return overflowPolicy;
+	}
+
+	/**
+	 * Sets what happens when a message is sent to a client whose
+	 * outbound queue is full. The default is
+	 * <code>OverflowPolicy.DROP_OLDEST</code>. With
+	 * <code>OverflowPolicy.BLOCK</code>, a thread sending to a slow
+	 * client waits for it, unless it holds the monitor of the server.
+	 *
+	 * @param overflowPolicy the overflow policy.
+	 */
+	final public void setOverflowPolicy(OverflowPolicy overflowPolicy)
+	{
+		if (overflowPolicy == null)
+			throw new IllegalArgumentException("overflow policy is null");
+
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Returns how long a sender waits for room in a full queue with the
+	 * <code>BLOCK</code> policy.
+	 *
+	 * @return the overflow timeout in ms.
+	 */
+	final public long getOverflowTimeout()
+	{
+		return overflowTimeout;
+	}
+
+	/**
+	 * Sets how long a sender waits for room in a full queue with the
+	 * <code>BLOCK</code> policy. The default is ten seconds.
+	 *
+	 * @param overflowTimeout the overflow timeout in ms.
+	 */
+	final public void setOverflowTimeout(long overflowTimeout)
+	{
+		this.overflowTimeout = overflowTimeout;
+	}
+
+	/**
+	 * Returns how long a client may stay silent before it is sent
+	 * heartbeats.
+	 *
+	 * @return the heartbeat interval in ms, or 0 if none are sent.
+	 */
+	final public long getHeartbeatInterval()
+	{
+		return heartbeatInterval;
+	}
+
+	/**
+	 * Sets how long a client may stay silent before it is sent heartbeats.
+	 * A heartbeat is an empty frame, which the clients of this framework
+	 * answer with another, so that a live client that has nothing to say
+	 * still shows it is there. Heartbeats are only sent to the clients that
+	 * negotiated a frame codec, and only when nothing else is waiting to be
+	 * written to them. The change takes effect the next time the server
+	 * starts listening after being closed.
+	 *
+	 * @param heartbeatInterval the heartbeat interval in ms, or 0 to send
+	 *            none.
+	 */
+	final public void setHeartbeatInterval(long heartbeatInterval)
+	{
+		if (heartbeatInterval < 0)
+			throw new IllegalArgumentException("negative heartbeat interval");
+
+		this.heartbeatInterval = heartbeatInterval;
+	}
+
+	/**
+	 * Returns how long a client may stay silent before its connection is
+	 * closed.
+	 *
+	 * @return the idle timeout in ms, or 0 if connections are never closed.
+	 */
+	final public long getIdleTimeout()
+	{
+		return idleTimeout;
+	}
+
+	/**
+	 * Sets how long a client may stay silent before its connection is
+	 * closed. Anything received from the client counts, heartbeats
+	 * included, so the timeout should be a few heartbeat intervals. The
+	 * connection is closed as if the client had disconnected, calling
+	 * <code>clientDisconnected</code>, and counted by the metrics. The
+	 * clients that cannot answer heartbeats, because they use object
+	 * streams or have not finished their handshake, are closed after the
+	 * same silence, so they must send something within it. Silence
+	 * is measured with a precision of an eighth of the heartbeat interval,
+	 * or of a quarter of the timeout when heartbeats are not sent. The
+	 * change takes effect the next time the server starts listening after
+	 * being closed.
+	 *
+	 * @param idleTimeout the idle timeout in ms, or 0 never to close
+	 *            connections.
+	 */
+	final public void setIdleTimeout(long idleTimeout)
+	{
+		if (idleTimeout < 0)
+			throw new IllegalArgumentException("negative idle timeout");
+
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Returns the number of messages per second each client may send on
+	 * average.
+	 *
+	 * @return the rate, or 0 if there is no limit per client.
+	 */
+	final public double getClientRateLimit()
+	{
+		RateLimit limit = clientRateLimit;
+		return limit == null ? 0 : limit.rate;
+	}
+
+	/**
+	 * Returns the number of messages each client may send at once, above
+	 * the rate.
+	 *
+	 * @return the burst, or 0 if there is no limit per client.
+	 */
+	final public int getClientRateBurst()
+	{
+		RateLimit limit = clientRateLimit;
+		return limit == null ? 0 : limit.burst;
+	}
+
+	/**
+	 * Limits the rate of the messages each client sends, so that a single
+	 * client cannot keep <code>handleMessageFromClient</code> busy, nor
+	 * flood the other clients through the messages it makes the server
+	 * broadcast. A client may send <code>burst</code> messages at once,
+	 * then <code>rate</code> messages per second; the messages it sends
+	 * faster are handled according to the rate limit policy, before they
+	 * reach <code>handleMessageFromClient</code>. The change takes effect
+	 * for the next message received.
+	 *
+	 * @param rate the number of messages per second, or 0 for no limit.
+	 * @param burst the number of messages that may be sent at once.
+	 */
+	final public void setClientRateLimit(double rate, int burst)
+	{
+		clientRateLimit = RateLimit.of(rate, burst);
+	}
+
+	/**
+	 * Returns the number of messages per second all clients together may
+	 * send on average.
+	 *
+	 * @return the rate, or 0 if there is no global limit.
+	 */
+	final public double getGlobalRateLimit()
+	{
+		RateLimit limit = globalRateLimit;
+		return limit == null ? 0 : limit.rate;
+	}
+
+	/**
+	 * Returns the number of messages all clients together may send at
+	 * once, above the rate.
+	 *
+	 * @return the burst, or 0 if there is no global limit.
+	 */
+	final public int getGlobalRateBurst()
+	{
+		RateLimit limit = globalRateLimit;
+		return limit == null ? 0 : limit.burst;
+	}
+
+	/**
+	 * Limits the rate of the messages all clients send together, which
+	 * bounds the work of the server however many clients there are. A
+	 * message is only counted against the global limit once it is within
+	 * the limit of its client, so that a client sending too fast does not
+	 * use up the rate of the others. The change takes effect for the next
+	 * message received.
+	 *
+	 * @param rate the number of messages per second, or 0 for no limit.
+	 * @param burst the number of messages that may be sent at once.
+	 * @see #setClientRateLimit(double, int)
+	 */
+	final public void setGlobalRateLimit(double rate, int burst)
+	{
+		globalRateLimit = RateLimit.of(rate, burst);
+	}
+
+	/**
+	 * Returns what happens to a message received faster than the rate
+	 * limits allow.
+	 *
+	 * @return the current rate limit policy.
+	 */
+	final public RateLimitPolicy getRateLimitPolicy()
+	{
+		return rateLimitPolicy;
+	}
+
+	/**
+	 * Sets what happens to a message received faster than the rate limits
+	 * allow. The default is <code>RateLimitPolicy.DROP</code>.
+	 * <code>RateLimitPolicy.DELAY</code> cannot be used with the
+	 * <code>SELECTOR</code> engine.
+	 *
+	 * @param rateLimitPolicy the new rate limit policy.
+	 * @exception IllegalArgumentException if the policy is
+	 *  <code>DELAY</code> and the server engine is the
+	 *  <code>SELECTOR</code> engine.
+	 */
+	final public void setRateLimitPolicy(RateLimitPolicy rateLimitPolicy)
+	{
+		if (rateLimitPolicy == null)
+			throw new IllegalArgumentException("rate limit policy is null");
+		if (rateLimitPolicy == RateLimitPolicy.DELAY
+			&& serverEngine == ServerEngine.SELECTOR)
+			throw new IllegalArgumentException(
+				"the selector engine cannot delay messages");
+
+		this.rateLimitPolicy = rateLimitPolicy;
+	}
+
+	/**
+	 * Returns the way calls to <code>handleMessageFromClient</code>
+	 * are serialized.
+	 *
+	 * @return the current dispatch mode.
+	 */
+	final public DispatchMode getDispatchMode()
+	{
+		return dispatchMode;
+	}
+
+	/**
+	 * Sets the way calls to <code>handleMessageFromClient</code> are
+	 * serialized. The default, <code>DispatchMode.SERIALIZED</code>,
+	 * handles one message at a time for the whole server. The other modes
+	 * let the messages of different clients be handled in parallel.
+	 * The change takes effect for the next message received.
+	 *
+	 * @param dispatchMode the new dispatch mode.
+	 */
+	final public void setDispatchMode(DispatchMode dispatchMode)
+	{
+		if (dispatchMode == null)
+			throw new IllegalArgumentException("dispatch mode is null");
+
+		this.dispatchMode = dispatchMode;
+	}
+
+	/**
+	 * Returns the counters and latency histograms describing the activity
+	 * of the server since it was created. They are updated as the server
+	 * runs.
+	 *
+	 * @return the metrics of the server.
+	 */
+	final public ServerMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	// RUN METHOD -------------------------------------------------------
+
+	/**
+	 * Runs the listening thread that allows clients to connect.
+	 * Not to be called.
+	 */
+	final public void run()
+	{
+		// call the hook method to notify that the server is starting
+		serverStarted();
+
+		// close() clears these fields once it has closed them, which may
+		// happen while this thread is between two calls.
+		Selector selector = acceptSelector;
+		ServerSocketChannel listeningChannel = serverChannel;
+		try
+		{
+			// Repeatedly waits for new client connections, accepts them,
+			// and sets up the data exchange with each of them.
+			while(!readyToStop && selector != null && listeningChannel != null)
+			{
+				// Wait here for new connection attempts, or until told
+				// to stop
+				selector.select();
+				selector.selectedKeys().clear();
+
+				// Accept every pending connection, so that a burst of
+				// connections is absorbed in a single wakeup.
+				SocketChannel channel;
+				while (!readyToStop && (channel = listeningChannel.accept()) != null)
+				{
+					connectionAccepted();
+					try
+					{
+						synchronized(this)
+						{
+							if (selectorLoops != null)
+							{
+								new ConnectionToClient(channel,
+									nextSelectorLoop(), this, codec);
+							}
+							else
+							{
+								channel.configureBlocking(true);
+								new ConnectionToClient(clientThreadBuilder(),
+									channel.socket(), this, codec);
+							}
+						}
+					}
+					catch (IOException exception)
+					{
+						// A client that cannot be set up is dropped; the
+						// server keeps accepting the others.
+						try
+						{
+							channel.close();
+						}
+						catch (IOException ex) {}
+					}
+				}
+			}
+
+			// call the hook method to notify that the server has stopped
+			serverStopped();
+		}
+		catch (IOException | ClosedSelectorException exception)
+		{
+			if (!readyToStop)
+			{
+				// Closing the socket must have thrown a SocketException
+				listeningException(exception);
+			}
+			else
+			{
+				serverStopped();
+			}
+		}
+		finally
+		{
+			readyToStop = true;
+			connectionListener = null;
+		}
+	}
+
+
+	// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
+
+	/**
+	 * Hook method called each time a new client connection is
+	 * accepted. The default implementation does nothing.
+	 * @param client the connection connected to the client.
+	 */
+	protected void clientConnected(ConnectionToClient client) {}
+
+	/**
+	 * Hook method called each time a client disconnects.
+	 * The default implementation does nothing. The method
+	 * may be overridden by subclasses but should remains synchronized.
+	 *
+	 * @param client the connection with the client.
+	 */
+	synchronized protected void clientDisconnected(
+		ConnectionToClient client) {}
+
+	/**
+	 * Hook method called each time an exception is thrown in a
+	 * ConnectionToClient thread.
+	 * The method may be overridden by subclasses but should remains
+	 * synchronized.
+	 *
+	 * @param client the client that raised the exception.
 	 * @param Throwable the exception thrown.
 	 */
 	synchronized protected void clientException(
@@ -419,12 +1452,50 @@ public abstract class AbstractServer implements Runnable
 	 */
 	protected void serverClosed() {}
 
+	/**
+	 * Hook method called each time a message is refused because its client,
+	 * or all clients together, send faster than the rate limits allow.
+	 * With the <code>DISCONNECT</code> policy, the client is disconnected
+	 * once this method returns, and messages sent to it here are still
+	 * written. The method is called before the dispatch lock is taken, and
+	 * may be called by several threads at once. The default implementation
+	 * does nothing. This method may be overriden by subclasses.
+	 *
+	 * @param msg   the message refused.
+	 * @param client the connection connected to the client that
+	 *  sent the message.
+	 * @param policy the policy applied to the message.
+	 */
+	protected void clientRateLimited(Object msg, ConnectionToClient client,
+		RateLimitPolicy policy) {}
+
+	/**
+	 * Hook method called in <code>DispatchMode.PER_KEY</code> mode to
+	 * select the key under which a message is handled. Messages
+	 * with equal keys are never handled at the same time. A
+	 * <code>null</code> key lets the message be handled without any lock.
+	 * The default implementation returns the client, which serializes the
+	 * messages of each connection. This method may be overriden by
+	 * subclasses, for example to key messages by chat room.
+	 *
+	 * @param msg   the message sent.
+	 * @param client the connection connected to the client that
+	 *  sent the message.
+	 * @return the key under which the message is handled.
+	 */
+	protected Object dispatchKey(Object msg, ConnectionToClient client)
+	{
+		return client;
+	}
+
 	/**
 	 * Handles a command sent from one client to the server.
 	 * This MUST be implemented by subclasses, who should respond to
 	 * messages.
-	 * This method is called by a synchronized method so it is also
-	 * implcitly synchronized.
+	 * In the default <code>DispatchMode.SERIALIZED</code> mode this
+	 * method is called by a synchronized method so it is also
+	 * implcitly synchronized. In the other modes it may be called
+	 * concurrently for different clients.
 	 *
 	 * @param msg   the message sent.
 	 * @param client the connection connected to the client that
@@ -439,19 +1510,432 @@ public abstract class AbstractServer implements Runnable
 	/**
 	 * Receives a command sent from the client to the server.
 	 * Called by the run method of <code>ConnectionToClient</code>
-	 * instances that are watching for messages coming from the server
-	 * This method is synchronized to ensure that whatever effects it has
-	 * do not conflict with work being done by other threads. The method
-	 * simply calls the <code>handleMessageFromClient</code> slot method.
+	 * instances that are watching for messages coming from the server.
+	 * Depending on the dispatch mode, this method holds the server's
+	 * monitor, the connection's lock, a keyed lock or no lock at all
+	 * while it calls the <code>handleMessageFromClient</code> slot method.
+	 * The time taken, lock included, is recorded in the server's metrics.
+	 * Messages exceeding the rate limits are refused or held back first.
 	 *
 	 * @param msg   the message sent.
 	 * @param client the connection connected to the client that
 	 *  sent the message.
 	 */
-	final synchronized void receiveMessageFromClient(
+	final void receiveMessageFromClient(
 		Object msg, ConnectionToClient client)
 	{
-		this.handleMessageFromClient(msg, client);
+		client.messageReceived();
+		if (!withinRateLimits(msg, client))
+			return;
+
+		long start = System.nanoTime();
+		try
+		{
+			dispatch(msg, client);
+		}
+		finally
+		{
+			metrics.handlerLatency.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Takes the tokens of a message from the rate limits of its client and
+	 * of the server, and applies the rate limit policy if they run out:
+	 * waits for the tokens, or refuses the message and possibly
+	 * disconnects the client. A message refused by either limit takes no
+	 * token from the other.
+	 *
+	 * @param msg   the message sent.
+	 * @param client the connection connected to the client that
+	 *  sent the message.
+	 * @return true if the message is to be handled.
+	 */
+	private boolean withinRateLimits(Object msg, ConnectionToClient client)
+	{
+		RateLimit perClient = clientRateLimit;
+		RateLimit global = globalRateLimit;
+		if (perClient == null && global == null)
+			return true;
+
+		long now = System.nanoTime();
+		RateLimitPolicy policy = rateLimitPolicy;
+		// An event loop serves other clients too, so it never waits, even
+		// if the engine was changed while the server was listening.
+		if (policy == RateLimitPolicy.DELAY && SelectorLoop.isLoopThread())
+			policy = RateLimitPolicy.DROP;
+		long maxWait = (policy == RateLimitPolicy.DELAY) ? Long.MAX_VALUE : 0;
+
+		// The bucket of the client is only used by the thread reading from
+		// it, so checking it first and taking its token once the global
+		// bucket has let the message through gives the same wait.
+		long wait = 0;
+		if (perClient != null)
+			wait = client.rateBucket.check(now, perClient.interval, perClient.burst, maxWait);
+		if (wait >= 0 && global != null)
+		{
+			long globalWait = globalRateBucket.take(now, global.interval, global.burst, maxWait);
+			wait = (globalWait < 0) ? -1 : Math.max(wait, globalWait);
+		}
+		if (wait >= 0 && perClient != null)
+			client.rateBucket.take(now, perClient.interval, perClient.burst, maxWait);
+
+		if (wait == 0)
+			return true;
+		if (wait > 0)
+		{
+			metrics.messagesDelayed.increment();
+			try
+			{
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+			return true;
+		}
+
+		metrics.messagesRateLimited.increment();
+		clientRateLimited(msg, client, policy);
+		if (policy == RateLimitPolicy.DISCONNECT)
+		{
+			metrics.rateLimitDisconnections.increment();
+			try
+			{
+				client.close();
+			}
+			// The connection is closed anyway, and the message dropped
+			// whatever the clientDisconnected hook throws.
+			catch (Exception ex) {}
+		}
+		return false;
+	}
+
+	/**
+	 * Records a newly opened connection.
+	 * Called by the constructors of <code>ConnectionToClient</code>.
+	 *
+	 * @param client the connection.
+	 * @return false if the server cannot accept more clients.
+	 */
+	final boolean addClientConnection(ConnectionToClient client)
+	{
+		if (!clientRegistry.add(client))
+			return false;
+
+		HeartbeatMonitor monitor = heartbeatMonitor;
+		if (monitor != null)
+			monitor.watch(client);
+		return true;
+	}
+
+	/**
+	 * Forgets a closed connection.
+	 * Called when a <code>ConnectionToClient</code> is closed.
+	 *
+	 * @param client the connection.
+	 */
+	final void removeClientConnection(ConnectionToClient client)
+	{
+		if (clientRegistry.remove(client))
+			metrics.disconnections.increment();
+	}
+
+	/**
+	 * Binds a login id to a connection.
+	 * Called by <code>ConnectionToClient.setLoginId</code>.
+	 *
+	 * @param client the connection.
+	 * @param previous the login id the connection had, or null.
+	 * @param loginId the new login id.
+	 * @return false if another connection already has that login id.
+	 */
+	final boolean bindLoginId(
+		ConnectionToClient client, String previous, String loginId)
+	{
+		return clientRegistry.bindLoginId(client, previous, loginId);
+	}
+
+	/**
+	 * Releases the login id of a connection if the connection has been
+	 * removed.
+	 *
+	 * @param client the connection.
+	 * @param loginId its login id.
+	 */
+	final void releaseLoginId(ConnectionToClient client, String loginId)
+	{
+		clientRegistry.releaseLoginId(client, loginId);
+	}
+
+	/**
+	 * Records a broadcast in the metrics.
+	 *
+	 * @param fanout the broadcast.
+	 * @param start when it started, as given by <code>System.nanoTime</code>.
+	 */
+	private void broadcastSent(Fanout fanout, long start)
+	{
+		metrics.broadcasts.increment();
+		metrics.broadcastRecipients.add(fanout.recipients);
+		metrics.broadcastLatency.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Calls <code>handleMessageFromClient</code> while holding the lock
+	 * required by the dispatch mode.
+	 *
+	 * @param msg   the message sent.
+	 * @param client the connection connected to the client that
+	 *  sent the message.
+	 */
+	private void dispatch(Object msg, ConnectionToClient client)
+	{
+		switch (dispatchMode)
+		{
+			case CONCURRENT:
+				this.handleMessageFromClient(msg, client);
+				break;
+
+			case PER_CONNECTION:
+				synchronized(client.dispatchLock)
+				{
+					this.handleMessageFromClient(msg, client);
+				}
+				break;
+
+			case PER_KEY:
+				Object key = dispatchKey(msg, client);
+				if (key == null)
+				{
+					this.handleMessageFromClient(msg, client);
+				}
+				else
+				{
+					synchronized(dispatchLockFor(key))
+					{
+						this.handleMessageFromClient(msg, client);
+					}
+				}
+				break;
+
+			default:
+				synchronized(this)
+				{
+					this.handleMessageFromClient(msg, client);
+				}
+		}
+	}
+
+	/**
+	 * Returns the builder of the threads serving clients with the
+	 * <code>THREAD_PER_CONNECTION</code> engine.
+	 *
+	 * @return a thread builder.
+	 */
+	private Thread.Builder clientThreadBuilder()
+	{
+		return virtualThreads
+			? Thread.ofVirtual().name("ConnectionToClient")
+			: Thread.ofPlatform().name("ConnectionToClient");
+	}
+
+	/**
+	 * Starts the event loops of the <code>SELECTOR</code> engine.
+	 *
+	 * @exception IOException if a selector cannot be opened.
+	 */
+	private void startSelectorLoops() throws IOException
+	{
+		SelectorLoop[] loops = new SelectorLoop[selectorThreads];
+		try
+		{
+			for (int i=0; i<loops.length; i++)
+			{
+				loops[i] = new SelectorLoop("SelectorLoop-" + getPort() + "-" + i);
+			}
+		}
+		catch (IOException ex)
+		{
+			for (int i=0; i<loops.length && loops[i] != null; i++)
+			{
+				loops[i].stop();
+			}
+			serverChannel.close();
+			acceptSelector.close();
+			serverChannel = null;
+			acceptSelector = null;
+			throw ex;
+		}
+		selectorLoops = loops;
+	}
+
+	/**
+	 * Counts a connection accepted by the listening thread.
+	 */
+	private void connectionAccepted()
+	{
+		long now = System.nanoTime() / 1000000000L;
+		if (now != acceptSecond)
+		{
+			acceptsLastSecond = (now == acceptSecond + 1) ? acceptsThisSecond : 0;
+			acceptsThisSecond = 0;
+			acceptSecond = now;
+		}
+		int accepts = acceptsThisSecond + 1;
+		acceptsThisSecond = accepts;
+		if (accepts > peakAcceptRate)
+			peakAcceptRate = accepts;
+		metrics.acceptedConnections = metrics.acceptedConnections + 1;
+	}
+
+	/**
+	 * Sends a client the shutdown notice and closes its connection once the
+	 * messages queued for it are written, or at the deadline. Runs on a
+	 * thread of its own for each client.
+	 *
+	 * @param client the connection.
+	 * @param notice the message sent before closing, or null.
+	 * @param deadline when the connection must be closed, as given by
+	 *        <code>System.nanoTime</code>.
+	 * @param flushed where the number of messages written is stored.
+	 * @param dropped where the number of messages discarded is stored, if
+	 *        the connection was closed at the deadline.
+	 * @param forced where it is noted that the connection was closed at the
+	 *        deadline.
+	 * @param index the index of the client in the arrays.
+	 */
+	private void drainClient(ConnectionToClient client, Object notice, long deadline,
+		long[] flushed, long[] dropped, boolean[] forced, int index)
+	{
+		// Messages queued while the connection drains are written too, so
+		// count what the writer writes rather than what was queued.
+		long written = client.getWrittenMessageCount();
+
+		// A notice that does not fit in the queue would only hold the
+		// sender up until the overflow timeout.
+		if (notice != null && client.getOutboundQueueDepth() < outboundQueueCapacity)
+		{
+			try
+			{
+				client.sendToClient(notice);
+			}
+			// The client is gone, or its queue just filled up.
+			catch (IOException ex) {}
+		}
+		try
+		{
+			client.close();
+		}
+		// Closing failed; the connection is closed anyway.
+		catch (Exception ex) {}
+
+		while (!client.isClosed() && deadline - System.nanoTime() > 0)
+		{
+			LockSupport.parkNanos(Math.min(DRAIN_CHECK_INTERVAL, deadline - System.nanoTime()));
+		}
+		if (!client.isClosed())
+		{
+			forced[index] = true;
+			dropped[index] = client.getOutboundQueueDepth();
+			client.abort();
+		}
+		flushed[index] = client.getWrittenMessageCount() - written;
+	}
+
+	/**
+	 * Stops the monitor of idle connections, if any.
+	 */
+	private void stopHeartbeatMonitor()
+	{
+		if (heartbeatMonitor != null)
+		{
+			heartbeatMonitor.stop();
+			heartbeatMonitor = null;
+		}
+	}
+
+	/**
+	 * Stops the event loops of the <code>SELECTOR</code> engine, if any.
+	 */
+	private void stopSelectorLoops()
+	{
+		if (selectorLoops == null)
+			return;
+
+		for (int i=0; i<selectorLoops.length; i++)
+		{
+			selectorLoops[i].stop();
+		}
+		selectorLoops = null;
+	}
+
+	/**
+	 * Returns the event loop that receives the next connection, spreading
+	 * connections over the loops in turn.
+	 *
+	 * @return an event loop.
+	 */
+	private SelectorLoop nextSelectorLoop()
+	{
+		SelectorLoop loop = selectorLoops[nextSelectorLoop];
+		nextSelectorLoop = (nextSelectorLoop + 1) % selectorLoops.length;
+		return loop;
+	}
+
+	/**
+	 * Returns the lock stripe associated with a dispatch key.
+	 *
+	 * @param key the dispatch key.
+	 * @return the lock to hold while handling messages with that key.
+	 */
+	private Object dispatchLockFor(Object key)
+	{
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return dispatchLocks[h & (DISPATCH_LOCK_STRIPES - 1)];
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A rate limit, kept in a single object so that it is read at once.
+	 */
+	private static final class RateLimit
+	{
+		/**
+		 * The number of messages per second.
+		 */
+		final double rate;
+
+		/**
+		 * The interval between two messages at the rate, in nanoseconds.
+		 */
+		final long interval;
+
+		/**
+		 * The number of messages that may be sent at once.
+		 */
+		final int burst;
+
+		private RateLimit(double rate, int burst)
+		{
+			this.rate = rate;
+			this.interval = Math.max(1, (long) (1e9 / rate));
+			this.burst = burst;
+		}
+
+		/**
+		 * @return the limit, or null for no limit if the rate is 0.
+		 * @exception IllegalArgumentException if the limit is invalid.
+		 */
+		static RateLimit of(double rate, int burst)
+		{
+			if (rate < 0 || Double.isNaN(rate) || Double.isInfinite(rate) || (rate > 0 && burst < 1))
+				throw new IllegalArgumentException("invalid rate limit");
+			return (rate == 0) ? null : new RateLimit(rate, burst);
+		}
 	}
 }
 // End of AbstractServer Class
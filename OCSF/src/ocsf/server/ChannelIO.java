@@ -0,0 +1,572 @@
+package ocsf.server;
+
+import java.io.*;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ocsf.common.*;
+
+/**
+ * The non-blocking channel side of a <code> ConnectionToClient </code> served
+ * by the <code> SELECTOR </code> engine. Incoming bytes are accumulated until
+ * whole frames are available; each frame is decoded and handed to the server.
+ * Outgoing frames are written immediately when the socket accepts them and
+ * queued otherwise, to be written by the loop once the socket is writable.
+ * Frames sent by a loop thread, while it handles a message, are queued and
+ * written together when the loop's pass ends.
+ * <p>
+ * Unless the server imposes a codec, the client first negotiates one.
+ * Messages sent meanwhile are held and encoded once the codec is known.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.SelectorLoop
+ */
+final class ChannelIO {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The initial size of the read buffer. It grows as needed to hold the
+	 * largest frame received.
+	 */
+	private static final int INITIAL_READ_BUFFER_SIZE = 8192;
+
+	/**
+	 * The maximum number of queued frames written by a single gathering
+	 * write.
+	 */
+	private static final int MAX_GATHER = 64;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The connection owning this channel.
+	 */
+	private final ConnectionToClient client;
+
+	/**
+	 * The server the connection belongs to.
+	 */
+	private final AbstractServer server;
+
+	/**
+	 * The client's channel, in non-blocking mode.
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * The loop servicing the channel.
+	 */
+	private final SelectorLoop loop;
+
+	/**
+	 * The codec used to encode and decode frames, or null until it is
+	 * negotiated. Only set by the loop thread, while holding the write
+	 * queue's lock.
+	 */
+	private volatile MessageCodec codec;
+
+	/**
+	 * Messages sent before the codec was negotiated, or null once it is
+	 * known. Guarded by the write queue's lock.
+	 */
+	private ArrayList<Object> pending;
+
+	/**
+	 * Bytes read but not yet decoded. Only used by the loop thread.
+	 */
+	private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+
+	/**
+	 * Frames waiting for the socket to become writable. Also used as the
+	 * lock guarding writes to the channel and the key's interest set.
+	 */
+	private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * The frames passed to a gathering write. Guarded by the write queue's
+	 * lock.
+	 */
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+	/**
+	 * Indicates if a loop will flush the write queue at the end of its pass.
+	 * Guarded by the write queue's lock.
+	 */
+	private boolean flushDeferred = false;
+
+	/**
+	 * The maximum number of frames waiting in the write queue.
+	 */
+	private final int capacity;
+
+	/**
+	 * The registration of the channel with the loop's selector, or null
+	 * until the loop has registered it.
+	 */
+	private SelectionKey key;
+
+	/**
+	 * Indicates if the channel has been closed.
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * Indicates if the channel is to be closed once the queued frames are
+	 * written. No more input is read meanwhile.
+	 */
+	private volatile boolean closing = false;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Prepares a channel to be served by a loop.
+	 *
+	 * @param client
+	 *            the connection owning the channel.
+	 * @param server
+	 *            the server the connection belongs to.
+	 * @param channel
+	 *            the accepted channel.
+	 * @param loop
+	 *            the loop that will service the channel.
+	 * @param codec
+	 *            the codec imposed on the client, or null to negotiate one.
+	 * @exception IOException
+	 *                if the channel cannot be made non-blocking.
+	 */
+	ChannelIO(ConnectionToClient client, AbstractServer server, SocketChannel channel, SelectorLoop loop,
+			MessageCodec codec) throws IOException {
+		this.client = client;
+		this.server = server;
+		this.channel = channel;
+		this.loop = loop;
+		this.codec = codec;
+		this.capacity = server.getOutboundQueueCapacity();
+		this.pending = (codec == null) ? new ArrayList<Object>() : null;
+
+		channel.configureBlocking(false);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Encodes a message and sends it. Never blocks on the socket.
+	 *
+	 * @param msg
+	 *            the message to send.
+	 * @exception IOException
+	 *                if the message cannot be encoded or the channel is
+	 *                closed.
+	 */
+	void send(Object msg) throws IOException {
+		synchronized (writeQueue) {
+			if (pending != null) {
+				if (closed || closing)
+					throw new SocketException("socket does not exist");
+				if (pending.size() >= capacity) {
+					client.messageDropped();
+					throw new IOException("outbound queue full");
+				}
+				pending.add(msg);
+				return;
+			}
+		}
+		send(Frames.encode(codec, msg));
+	}
+
+	/**
+	 * Sends an already encoded frame. Never blocks on the socket. When the
+	 * write queue is full, the server's overflow policy is applied; the event
+	 * loops never wait for room.
+	 *
+	 * @param frame
+	 *            the frame, header included.
+	 * @exception IOException
+	 *                if the channel is closed, or if the frame is discarded
+	 *                because the queue is full.
+	 */
+	void send(byte[] frame) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+		synchronized (writeQueue) {
+			if (closed || closing)
+				throw new SocketException("socket does not exist");
+
+			if (writeQueue.isEmpty() && !flushDeferred && key != null && SelectorLoop.deferFlush(this)) {
+				flushDeferred = true;
+				writeQueue.add(buffer);
+				return;
+			} else if (writeQueue.isEmpty()) {
+				client.bytesSent(channel.write(buffer));
+				if (!buffer.hasRemaining()) {
+					written(buffer);
+					return;
+				}
+			} else if (writeQueue.size() >= capacity && !makeRoom()) {
+				// Disconnect outside the lock, since the hooks called
+				// may send to other clients.
+				buffer = null;
+			}
+
+			if (buffer != null) {
+				writeQueue.add(buffer);
+				if (key != null && !flushDeferred && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					loop.wakeup();
+				}
+				return;
+			}
+		}
+
+		IOException exception = new IOException("outbound queue full, slow client disconnected");
+		client.connectionFailed(exception);
+		throw exception;
+	}
+
+	/**
+	 * Sends a heartbeat frame, unless frames are already waiting to be
+	 * written: the heartbeat would only wait behind them.
+	 *
+	 * @return true if the heartbeat was sent or queued.
+	 */
+	boolean sendHeartbeat() {
+		synchronized (writeQueue) {
+			if (closed || closing || !writeQueue.isEmpty())
+				return false;
+		}
+		try {
+			send(Frames.heartbeat());
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the number of frames waiting to be written.
+	 */
+	int queueDepth() {
+		synchronized (writeQueue) {
+			return writeQueue.size() + (pending == null ? 0 : pending.size());
+		}
+	}
+
+	/**
+	 * @return true once the channel is closed.
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return the codec used for frames, or null until it is negotiated.
+	 */
+	MessageCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Closes the channel once the frames already queued are written.
+	 * 
+	 * @exception IOException
+	 *                if the channel is closed immediately and an error
+	 *                occurs.
+	 */
+	void closeAfterFlush() throws IOException {
+		synchronized (writeQueue) {
+			if (!writeQueue.isEmpty() && key != null && key.isValid()) {
+				closing = true;
+				key.interestOps(SelectionKey.OP_WRITE);
+				loop.wakeup();
+				return;
+			}
+		}
+		close();
+	}
+
+	/**
+	 * Closes the channel. Frames still queued are discarded.
+	 *
+	 * @exception IOException
+	 *                if an error occurs when closing the channel.
+	 */
+	void close() throws IOException {
+		synchronized (writeQueue) {
+			closed = true;
+			writeQueue.clear();
+			if (pending != null)
+				pending.clear();
+			writeQueue.notifyAll();
+		}
+		channel.close();
+	}
+
+	/**
+	 * Applies the server's overflow policy when the write queue is full.
+	 * Called while holding the queue's lock.
+	 *
+	 * @return true once there is room for one more frame, false if the
+	 *         client must be disconnected.
+	 * @exception IOException
+	 *                if the frame must be discarded.
+	 */
+	private boolean makeRoom() throws IOException {
+		switch (server.getOverflowPolicy()) {
+		case DROP_OLDEST:
+			// The head may be partly written; discard the one behind it.
+			if (writeQueue.size() > 1) {
+				ByteBuffer head = writeQueue.poll();
+				writeQueue.poll();
+				writeQueue.addFirst(head);
+			} else {
+				writeQueue.poll();
+			}
+			client.messageDropped();
+			return true;
+
+		case DISCONNECT:
+			client.messageDropped();
+			return false;
+
+		default:
+			// Neither an event loop nor a thread holding the server's
+			// monitor may wait for a single client.
+			if (!SelectorLoop.isLoopThread() && !Thread.holdsLock(server)) {
+				long deadline = System.nanoTime() + server.getOverflowTimeout() * 1000000L;
+				long remaining;
+				while (writeQueue.size() >= capacity && !closed
+						&& (remaining = deadline - System.nanoTime()) > 0) {
+					try {
+						writeQueue.wait(Math.max(1, remaining / 1000000L));
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+				if (closed)
+					throw new SocketException("socket does not exist");
+				if (writeQueue.size() < capacity)
+					return true;
+			}
+			client.messageDropped();
+			throw new IOException("outbound queue full");
+		}
+	}
+
+	// METHODS CALLED BY THE LOOP THREAD --------------------------------
+
+	/**
+	 * Registers the channel with the loop's selector and notifies the server
+	 * that the client is connected.
+	 *
+	 * @param selector
+	 *            the loop's selector.
+	 * @exception IOException
+	 *                if the channel cannot be registered.
+	 */
+	void registered(Selector selector) throws IOException {
+		synchronized (writeQueue) {
+			int ops = writeQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+			key = channel.register(selector, ops, this);
+		}
+		if (codec != null)
+			server.clientConnected(client);
+	}
+
+	/**
+	 * Reads what is available and dispatches every complete frame.
+	 *
+	 * @exception Exception
+	 *                if the channel fails, the peer closes it, a frame is
+	 *                invalid or the handler throws.
+	 */
+	void readable() throws Exception {
+		if (closing)
+			return;
+
+		int count = channel.read(readBuffer);
+		if (count < 0)
+			throw new EOFException();
+		client.bytesReceived(count);
+
+		readBuffer.flip();
+		int needed = 0;
+		if (codec == null) {
+			negotiate();
+			if (codec == null) {
+				readBuffer.compact();
+				return;
+			}
+			server.clientConnected(client);
+			if (closed || closing)
+				return;
+		}
+		while (readBuffer.remaining() >= Frames.HEADER_LENGTH) {
+			int start = readBuffer.position();
+			int length = Frames.checkLength(readBuffer.getInt(start));
+			if (readBuffer.remaining() < Frames.HEADER_LENGTH + length) {
+				needed = Frames.HEADER_LENGTH + length;
+				break;
+			}
+
+			readBuffer.position(start + Frames.HEADER_LENGTH + length);
+			if (length == 0)
+				continue; // a heartbeat, only there to show the client is alive
+			Object msg = codec.decode(readBuffer.array(), start + Frames.HEADER_LENGTH, length);
+			server.receiveMessageFromClient(msg, client);
+			if (closed || closing)
+				return;
+		}
+		readBuffer.compact();
+
+		if (needed > readBuffer.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, readBuffer.capacity() * 2));
+			readBuffer.flip();
+			larger.put(readBuffer);
+			readBuffer = larger;
+		}
+	}
+
+	/**
+	 * Reads the client's hello from the read buffer and answers it. Once it
+	 * is answered, the messages held meanwhile are queued after the reply.
+	 * Does nothing until the whole hello has been read.
+	 *
+	 * @exception IOException
+	 *                if the client does not negotiate, or offers no
+	 *                acceptable codec.
+	 */
+	private void negotiate() throws IOException {
+		int start = readBuffer.position();
+		if (readBuffer.remaining() < 4)
+			return;
+
+		int magic = readBuffer.getInt(start);
+		if (magic >>> 16 == Handshake.STREAM_MAGIC)
+			throw new StreamCorruptedException("object streams are not supported by the selector engine");
+		if (magic != Handshake.MAGIC)
+			throw new StreamCorruptedException("unrecognized client stream");
+		if (readBuffer.remaining() < 8)
+			return;
+
+		int length = Handshake.checkLength(readBuffer.getInt(start + 4));
+		if (readBuffer.remaining() < 8 + length)
+			return;
+		readBuffer.position(start + 8 + length);
+
+		MessageCodec chosen = Handshake.select(Handshake.parse(readBuffer.array(), start + 8, length),
+				server.getAcceptedCodecs());
+		ByteBuffer reply = ByteBuffer.wrap(Handshake.reply(chosen));
+		synchronized (writeQueue) {
+			if (chosen == null) {
+				// Nothing else is queued yet, so the short reply goes
+				// straight to the socket.
+				client.bytesSent(channel.write(reply));
+				throw new IOException("the client offered no acceptable codec");
+			}
+
+			writeQueue.add(reply);
+			for (Object msg : pending) {
+				try {
+					writeQueue.add(ByteBuffer.wrap(Frames.encode(chosen, msg)));
+				} catch (IOException ex) {
+					client.messageDropped();
+				}
+			}
+			pending = null;
+			codec = chosen;
+			if (!closing)
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Writes the frames queued while a loop handled its last pass. Called by
+	 * the loop that deferred the flush, which may not be the loop servicing
+	 * the channel.
+	 */
+	void flush() {
+		synchronized (writeQueue) {
+			flushDeferred = false;
+			if (closed)
+				return;
+		}
+		try {
+			writable();
+		} catch (CancelledKeyException exception) {
+			// The connection was closed by another thread.
+		} catch (Exception exception) {
+			failed(exception);
+		}
+	}
+
+	/**
+	 * Writes queued frames until the queue is empty or the socket is full.
+	 * Frames that accumulated during a burst are coalesced into gathering
+	 * writes, so that they cost few system calls and segments.
+	 *
+	 * @exception IOException
+	 *                if the channel fails.
+	 */
+	void writable() throws IOException {
+		synchronized (writeQueue) {
+			while (!writeQueue.isEmpty()) {
+				int count = 0;
+				for (ByteBuffer buffer : writeQueue) {
+					gather[count++] = buffer;
+					if (count == MAX_GATHER)
+						break;
+				}
+				client.bytesSent(channel.write(gather, 0, count));
+				boolean full = gather[count - 1].hasRemaining();
+				Arrays.fill(gather, 0, count, null);
+
+				while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining())
+					written(writeQueue.poll());
+				if (full)
+					break;
+			}
+			// Wake up senders waiting for room.
+			writeQueue.notifyAll();
+			if (!writeQueue.isEmpty()) {
+				if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+					key.interestOps(closing ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					loop.wakeup();
+				}
+				return;
+			}
+			if (!closing)
+				key.interestOps(SelectionKey.OP_READ);
+		}
+
+		if (closing)
+			close();
+	}
+
+	/**
+	 * Counts a frame written in full, unless it is a heartbeat. Called while
+	 * holding the queue's lock.
+	 *
+	 * @param buffer
+	 *            the frame.
+	 */
+	private void written(ByteBuffer buffer) {
+		if (buffer.array() != Frames.heartbeat())
+			client.messagesWritten(1);
+	}
+
+	/**
+	 * Reports a failure of the channel to the connection.
+	 *
+	 * @param exception
+	 *            the exception raised.
+	 */
+	void failed(Exception exception) {
+		client.connectionFailed(exception);
+	}
+}
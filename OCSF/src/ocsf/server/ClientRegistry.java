@@ -0,0 +1,317 @@
+package ocsf.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The set of connections open on a server. Each connection occupies a slot
+ * that does not move for as long as it is registered, so the slots can be
+ * scanned by index without locking, without allocating and without being
+ * disturbed by connections that come and go during the scan. Freed slots are
+ * kept on a lock-free stack and reused, so adding and removing connections
+ * are constant time operations.
+ * <p>
+ * Slots are grouped in segments that are allocated on first use and never
+ * released, which bounds the registry to <code>MAX_CLIENTS</code>
+ * connections.
+ * <p>
+ * A connection's id combines its slot with a generation number, so a
+ * connection can be found from its id with a single slot read. Connections
+ * can also be found from the login id bound to them.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#getClientConnection(long)
+ */
+final class ClientRegistry {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The number of bits of a slot index that select a slot in a segment.
+	 */
+	private static final int SEGMENT_SHIFT = 10;
+
+	/**
+	 * The number of slots in a segment.
+	 */
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+	/**
+	 * The maximum number of segments.
+	 */
+	private static final int MAX_SEGMENTS = 4096;
+
+	/**
+	 * The maximum number of connections that can be registered at once.
+	 */
+	static final int MAX_CLIENTS = SEGMENT_SIZE * MAX_SEGMENTS;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The segments of slots, allocated on first use.
+	 */
+	private final AtomicReferenceArray<Segment> segments = new AtomicReferenceArray<Segment>(MAX_SEGMENTS);
+
+	/**
+	 * One past the highest slot index ever handed out. Scans stop there.
+	 */
+	private final AtomicInteger limit = new AtomicInteger();
+
+	/**
+	 * The head of the stack of free slots: a version number in the high
+	 * word, to defeat the ABA problem, and the slot index plus one in the low
+	 * word. A low word of zero means the stack is empty.
+	 */
+	private final AtomicLong freeHead = new AtomicLong();
+
+	/**
+	 * The number of connections registered.
+	 */
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * The generation given to the next registered connection.
+	 */
+	private final AtomicInteger generation = new AtomicInteger();
+
+	/**
+	 * The connections indexed by the login id bound to them.
+	 */
+	private final ConcurrentHashMap<String, ConnectionToClient> byLoginId = new ConcurrentHashMap<String, ConnectionToClient>();
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Registers a connection and gives it its id.
+	 *
+	 * @param client
+	 *            the connection.
+	 * @return false if the registry is full.
+	 */
+	boolean add(ConnectionToClient client) {
+		int index = popFree();
+		if (index < 0) {
+			index = limit.getAndIncrement();
+			if (index >= MAX_CLIENTS) {
+				limit.decrementAndGet();
+				return false;
+			}
+		}
+
+		client.registered(index, ((long) generation.incrementAndGet() << 32) | index);
+		segmentFor(index).clients.set(index & (SEGMENT_SIZE - 1), client);
+		size.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Removes a connection and the login id bound to it. Has no effect if the
+	 * connection is not registered.
+	 *
+	 * @param client
+	 *            the connection.
+	 * @return true if the connection was registered.
+	 */
+	boolean remove(ConnectionToClient client) {
+		int index = client.getRegistrySlot();
+		if (index < 0)
+			return false;
+
+		boolean removed = segments.get(index >>> SEGMENT_SHIFT).clients.compareAndSet(index & (SEGMENT_SIZE - 1),
+				client, null);
+		if (removed) {
+			size.decrementAndGet();
+			pushFree(index);
+		}
+
+		String loginId = client.getLoginId();
+		if (loginId != null)
+			byLoginId.remove(loginId, client);
+		return removed;
+	}
+
+	/**
+	 * Binds a login id to a registered connection, replacing the one it had.
+	 *
+	 * @param client
+	 *            the connection.
+	 * @param previous
+	 *            the login id previously bound to the connection, or null.
+	 * @param loginId
+	 *            the login id.
+	 * @return false if another connection already has this login id, or if
+	 *         the connection is no longer registered.
+	 */
+	boolean bindLoginId(ConnectionToClient client, String previous, String loginId) {
+		ConnectionToClient existing = byLoginId.putIfAbsent(loginId, client);
+		if (existing != null && existing != client)
+			return false;
+
+		if (previous != null && !previous.equals(loginId))
+			byLoginId.remove(previous, client);
+
+		// The connection may have been removed while the id was bound.
+		int index = client.getRegistrySlot();
+		if (index < 0 || get(index) != client) {
+			byLoginId.remove(loginId, client);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Releases the login id bound to a connection if the connection is no
+	 * longer registered. Called when a connection failed to change its login
+	 * id, in case it was removed meanwhile with the new id in place of the
+	 * one still bound.
+	 *
+	 * @param client
+	 *            the connection.
+	 * @param loginId
+	 *            the login id bound to the connection.
+	 */
+	void releaseLoginId(ConnectionToClient client, String loginId) {
+		int index = client.getRegistrySlot();
+		if (index < 0 || get(index) != client)
+			byLoginId.remove(loginId, client);
+	}
+
+	/**
+	 * @return one past the highest slot index that may hold a connection.
+	 */
+	int limit() {
+		return limit.get();
+	}
+
+	/**
+	 * Returns the connection held by a slot.
+	 *
+	 * @param index
+	 *            the slot index, below <code>limit()</code>.
+	 * @return the connection, or null if the slot is free.
+	 */
+	ConnectionToClient get(int index) {
+		Segment segment = segments.get(index >>> SEGMENT_SHIFT);
+		return segment == null ? null : segment.clients.get(index & (SEGMENT_SIZE - 1));
+	}
+
+	/**
+	 * Finds a connection from its id.
+	 *
+	 * @param id
+	 *            the connection id.
+	 * @return the connection, or null if it is no longer registered.
+	 */
+	ConnectionToClient getById(long id) {
+		int index = (int) id;
+		if (index < 0 || index >= limit.get())
+			return null;
+
+		ConnectionToClient client = get(index);
+		return (client != null && client.getId() == id) ? client : null;
+	}
+
+	/**
+	 * Finds a connection from the login id bound to it.
+	 *
+	 * @param loginId
+	 *            the login id.
+	 * @return the connection, or null if no connection has this login id.
+	 */
+	ConnectionToClient getByLoginId(String loginId) {
+		return byLoginId.get(loginId);
+	}
+
+	/**
+	 * @return the number of connections registered.
+	 */
+	int size() {
+		return size.get();
+	}
+
+	/**
+	 * Copies the registered connections into a new array.
+	 *
+	 * @return the connections.
+	 */
+	ConnectionToClient[] toArray() {
+		ConnectionToClient[] clients = new ConnectionToClient[size.get()];
+		int count = 0;
+		for (int i = 0, n = limit(); i < n; i++) {
+			ConnectionToClient client = get(i);
+			if (client == null)
+				continue;
+			if (count == clients.length)
+				clients = Arrays.copyOf(clients, count * 2 + 1);
+			clients[count++] = client;
+		}
+		return count == clients.length ? clients : Arrays.copyOf(clients, count);
+	}
+
+	// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+	/**
+	 * Returns the segment holding a slot, allocating it if needed.
+	 *
+	 * @param index
+	 *            the slot index.
+	 * @return the segment.
+	 */
+	private Segment segmentFor(int index) {
+		int s = index >>> SEGMENT_SHIFT;
+		Segment segment = segments.get(s);
+		if (segment == null) {
+			segments.compareAndSet(s, null, new Segment());
+			segment = segments.get(s);
+		}
+		return segment;
+	}
+
+	/**
+	 * Pushes a slot onto the free stack.
+	 *
+	 * @param index
+	 *            the slot index.
+	 */
+	private void pushFree(int index) {
+		Segment segment = segments.get(index >>> SEGMENT_SHIFT);
+		long head;
+		do {
+			head = freeHead.get();
+			segment.nextFree.set(index & (SEGMENT_SIZE - 1), (int) head);
+		} while (!freeHead.compareAndSet(head, (((head >>> 32) + 1) << 32) | (index + 1)));
+	}
+
+	/**
+	 * Pops a slot from the free stack.
+	 *
+	 * @return the slot index, or -1 if the stack is empty.
+	 */
+	private int popFree() {
+		long head;
+		int next;
+		int index;
+		do {
+			head = freeHead.get();
+			index = (int) head - 1;
+			if (index < 0)
+				return -1;
+			next = segments.get(index >>> SEGMENT_SHIFT).nextFree.get(index & (SEGMENT_SIZE - 1));
+		} while (!freeHead.compareAndSet(head, (((head >>> 32) + 1) << 32) | (next & 0xFFFFFFFFL)));
+		return index;
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A fixed block of slots and the links of the free stack through them.
+	 */
+	private static final class Segment {
+		final AtomicReferenceArray<ConnectionToClient> clients = new AtomicReferenceArray<ConnectionToClient>(
+				SEGMENT_SIZE);
+		final AtomicIntegerArray nextFree = new AtomicIntegerArray(SEGMENT_SIZE);
+	}
+}
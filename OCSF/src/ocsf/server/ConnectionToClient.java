@@ -4,8 +4,19 @@
 package ocsf.server;
 
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.net.*;
-import java.util.HashMap;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.common.*;
 
 /**
  * An instance of this class is created by the server when a client connects. It
@@ -14,6 +25,20 @@ import java.util.HashMap;
  * contains a set of instances of this class and is responsible for adding and
  * deleting them.
  * <p>
+ * With the <code>THREAD_PER_CONNECTION</code> engine each instance is run by
+ * its own thread, blocking on the socket. With the <code>SELECTOR</code>
+ * engine the instance is serviced by one of the server's event loops.
+ * <p>
+ * Up to version 2.14 this class extended <code>Thread</code>. It now only
+ * implements <code>Runnable</code>, so that its thread can be a virtual
+ * thread, or the connection be serviced without a thread of its own. The
+ * <code>Thread</code> methods used on connections, <code>getName</code>,
+ * <code>isAlive</code>, <code>interrupt</code>, <code>isInterrupted</code>
+ * and <code>join</code>, are kept and act on the thread reading from the
+ * client. Code that starts the connection, changes the priority of its
+ * thread, or treats it as an <code>instanceof Thread</code>, must be
+ * changed: the server starts the connection itself.
+ * <p>
  * Project Name: OCSF (Object Client-Server Framework)
  * <p>
  * 
@@ -23,7 +48,7 @@ import java.util.HashMap;
  * @author Paul Holden
  * @version September 2024 (2.14)
  */
-public class ConnectionToClient extends Thread {
+public class ConnectionToClient implements Runnable {
 	// INSTANCE VARIABLES ***********************************************
 
 	/**
@@ -37,7 +62,7 @@ public class ConnectionToClient extends Thread {
 	 * 
 	 * @see java.net.Socket
 	 */
-	private Socket clientSocket;
+	private volatile Socket clientSocket;
 
 	/**
 	 * Stream used to read from the client.
@@ -49,47 +74,299 @@ public class ConnectionToClient extends Thread {
 	 */
 	private ObjectOutputStream output;
 
+	/**
+	 * The codec used when messages are exchanged as frames, or null when
+	 * object streams are used or while the codec is being negotiated.
+	 */
+	private volatile MessageCodec codec;
+
+	/**
+	 * Indicates if the streams have been set up, once the client has been
+	 * recognized and any codec negotiated.
+	 */
+	private volatile boolean streamsReady = false;
+
+	/**
+	 * The number of messages written to the object stream between two
+	 * resets, or 0 if the stream is never reset.
+	 */
+	private int resetInterval;
+
+	/**
+	 * The number of messages written to the object stream since it was last
+	 * reset. Only used by the writer.
+	 */
+	private int writtenSinceReset = 0;
+
+	/**
+	 * The size of the buffers in front of the socket streams.
+	 */
+	private int streamBufferSize;
+
+	/**
+	 * Stream used to read frames from the client when a codec is used.
+	 */
+	private DataInputStream frameInput;
+
+	/**
+	 * Stream used to write frames to the client when a codec is used.
+	 */
+	private OutputStream frameOutput;
+
+	/**
+	 * The non-blocking channel state when the connection is served by the
+	 * <code>SELECTOR</code> engine, null otherwise.
+	 */
+	private ChannelIO channelIO;
+
+	/**
+	 * The thread reading from the client with the
+	 * <code>THREAD_PER_CONNECTION</code> engine, null otherwise.
+	 */
+	private Thread readerThread;
+
 	/**
 	 * Indicates if the thread is ready to stop. Set to true when closing of the
 	 * connection is initiated.
 	 */
-	private boolean readyToStop;
+	private volatile boolean readyToStop;
+
+	/**
+	 * The id given to the connection by the server.
+	 */
+	private long id;
+
+	/**
+	 * The slot occupied by the connection in the server's registry, or -1
+	 * until the connection is registered.
+	 */
+	private int registrySlot = -1;
+
+	/**
+	 * The login id bound to the connection, or null.
+	 */
+	private volatile String loginId;
+
+	/**
+	 * The session attributes of the client, one slot per session key. Slots
+	 * are read and written with release and acquire semantics, so that an
+	 * attribute set by one handler is seen whole by the others. The array
+	 * only grows, when a key is created after the connection.
+	 */
+	private volatile Object[] attributes = new Object[SessionKey.count()];
 
 	/**
-	 * Map to save information about the client such as its login ID. The
+	 * The lock serializing the writers of session attributes.
+	 */
+	private final Object attributeLock = new Object();
+
+	/**
+	 * Map to save information about the client that has no session key. The
 	 * initial size of the map is small since it is not expected that concrete
 	 * servers will want to store many different types of information about each
 	 * client. Used by the setInfo and getInfo methods.
 	 */
-	private HashMap<String, Object> savedInfo	= new HashMap <String, Object>	(10);
+	private final ConcurrentHashMap<String, Object> savedInfo = new ConcurrentHashMap<String, Object>(4);
+
+	/**
+	 * Messages and encoded frames waiting to be written to the client by the
+	 * <code>THREAD_PER_CONNECTION</code> engine.
+	 */
+	private final ConcurrentLinkedQueue<Object> outbound = new ConcurrentLinkedQueue<Object>();
+
+	/**
+	 * Free places in the outbound queue. A permit is taken when a message is
+	 * queued and given back once it is written, so the queue never holds more
+	 * messages than the capacity set on the server when the client connected.
+	 */
+	private Semaphore outboundPermits;
+
+	/**
+	 * The capacity of the outbound queue.
+	 */
+	private int outboundCapacity;
+
+	/**
+	 * The number of messages to this client discarded because its outbound
+	 * queue was full.
+	 */
+	private final AtomicLong droppedMessages = new AtomicLong();
+
+	/**
+	 * The number of messages sent to this client.
+	 */
+	private final AtomicLong sentMessages = new AtomicLong();
+
+	/**
+	 * The bucket limiting the rate of the messages received from this
+	 * client. Only the thread reading from the client uses it.
+	 */
+	final TokenBucket rateBucket = new TokenBucket();
+
+	/**
+	 * The number of messages received from this client. Only updated by the
+	 * thread reading from the client.
+	 */
+	private volatile long receivedMessages = 0;
+
+	/**
+	 * The number of bytes read from this client. Only updated by the thread
+	 * reading from the client.
+	 */
+	private volatile long receivedBytes = 0;
+
+	/**
+	 * The number of bytes written to this client. Only updated by the writer,
+	 * or by the holder of the channel's write lock.
+	 */
+	private volatile long sentBytes = 0;
+
+	/**
+	 * The number of messages written to this client, heartbeats excluded.
+	 * Frames sent at once with <code>sendFrames</code> count as one. Only
+	 * updated by the writer, or by the holder of the channel's write lock.
+	 */
+	private volatile long writtenMessages = 0;
+
+	/**
+	 * The number of messages written to the socket stream since it was last
+	 * flushed. Only used by the writer.
+	 */
+	private int unflushedMessages = 0;
+
+	/**
+	 * The metrics of the server, updated along with those of this
+	 * connection.
+	 */
+	private final ServerMetrics metrics;
+
+	/**
+	 * Indicates if a writer is draining the outbound queue. At most one
+	 * writer runs at a time, so messages are written in the order they were
+	 * queued.
+	 */
+	private final AtomicBoolean writing = new AtomicBoolean(false);
+
+	/**
+	 * Indicates if a failure of the connection has already been reported.
+	 */
+	private final AtomicBoolean failed = new AtomicBoolean(false);
+
+	/**
+	 * Indicates if the connection has been closed, so that it is closed
+	 * once when several threads close it at the same time.
+	 */
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	/**
+	 * Queued after the last message when the connection is closed while
+	 * messages are still waiting, so that the writer closes the socket once
+	 * they are written.
+	 */
+	private static final Object CLOSE = new Object();
+
+	/**
+	 * The heartbeat frame, shared by all connections.
+	 */
+	private static final EncodedFrame HEARTBEAT = new EncodedFrame(Frames.heartbeat());
+
+	/**
+	 * Accesses the slots of the session attributes.
+	 */
+	private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Object[].class);
+
+	/**
+	 * Lock held by the server while it handles a message from this client in
+	 * <code>DispatchMode.PER_CONNECTION</code> mode.
+	 */
+	final Object dispatchLock = new Object();
 
 	// CONSTRUCTORS *****************************************************
 
 	/**
-	 * Constructs a new connection to a client.
+	 * Constructs a new connection to a client served by its own thread. The
+	 * streams are set up by that thread, so a client that is slow to send
+	 * its first bytes does not hold up the server.
 	 * 
-	 * @param group
-	 *            the thread groupSystem.out.println("Client at "+ client +
-	 *            "connected"); that contains the connections.
+	 * @param threadBuilder
+	 *            the builder of the thread, platform or virtual, that reads
+	 *            from the client.
 	 * @param clientSocket
 	 *            contains the client's socket.
 	 * @param server
 	 *            a reference to the server that created this instance
+	 * @param codec
+	 *            the codec imposed on the client, or null to negotiate one
+	 *            or use object streams.
 	 * @exception IOException
 	 *                if an I/O error occur when creating the connection.
 	 */
-	ConnectionToClient(ThreadGroup group, Socket clientSocket, AbstractServer server) throws IOException {
-		super(group, (Runnable) null);
+	ConnectionToClient(Thread.Builder threadBuilder, Socket clientSocket, AbstractServer server, MessageCodec codec)
+			throws IOException {
 		// Initialize variables
 		this.clientSocket = clientSocket;
 		this.server = server;
+		this.codec = codec;
+		this.metrics = server.getMetrics();
+
+		this.outboundCapacity = server.getOutboundQueueCapacity();
+		this.resetInterval = server.getStreamResetInterval();
+		this.outboundPermits = new Semaphore(outboundCapacity);
+
+		SocketSettings options = server.getSocketSettings();
+		this.streamBufferSize = options.getStreamBufferSize();
+
+		try {
+			clientSocket.setSoTimeout(0); // make sure timeout is infinite
+			options.apply(clientSocket);
+		} catch (IOException ex) {
+			try {
+				closeAll();
+			} catch (Exception exc) {
+			}
+
+			throw ex; // Rethrow the exception.
+		}
+
+		// Messages sent before the streams are ready wait in the queue;
+		// the reader starts the writer once they are.
+		writing.set(true);
+
+		readyToStop = false;
+		register();
+		readerThread = threadBuilder.unstarted(this);
+		// All uncaught exceptions in the reader thread will
+		// be sent to the clientException callback method.
+		readerThread.setUncaughtExceptionHandler((thread, exception) -> server.clientException(this, exception));
+		readerThread.start(); // Start the thread waits for data from the socket
+	}
 
-		clientSocket.setSoTimeout(0); // make sure timeout is infinite
+	/**
+	 * Constructs a new connection to a client served by an event loop. The
+	 * <code>clientConnected</code> hook is called by the loop once the
+	 * channel is registered and any codec negotiated.
+	 * 
+	 * @param channel
+	 *            the client's channel.
+	 * @param loop
+	 *            the event loop that will service the channel.
+	 * @param server
+	 *            a reference to the server that created this instance
+	 * @param codec
+	 *            the codec imposed on the client, or null to negotiate one.
+	 * @exception IOException
+	 *                if an I/O error occur when creating the connection.
+	 */
+	ConnectionToClient(SocketChannel channel, SelectorLoop loop, AbstractServer server, MessageCodec codec)
+			throws IOException {
+		this.clientSocket = channel.socket();
+		this.server = server;
+		this.codec = codec;
+		this.metrics = server.getMetrics();
 
-		// Initialize the objects streams
 		try {
-			input = new ObjectInputStream(clientSocket.getInputStream());
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
+			server.getSocketSettings().apply(clientSocket);
+			channelIO = new ChannelIO(this, server, channel, loop, codec);
 		} catch (IOException ex) {
 			try {
 				closeAll();
@@ -100,30 +377,102 @@ public class ConnectionToClient extends Thread {
 		}
 
 		readyToStop = false;
-		start(); // Start the thread waits for data from the socket
+		register();
+		loop.register(channelIO);
 	}
 
 	// INSTANCE METHODS *************************************************
 
 	/**
-	 * Sends an object to the client.
+	 * Sends an object to the client. This method may be called by several
+	 * threads at once and does not wait for the message to be written: each
+	 * connection writes its messages in order, on a writer of its own, so a
+	 * slow client never delays the thread sending to it. A failure to write
+	 * closes the connection and is reported through the server's
+	 * <code>clientException</code> hook.<p>
+	 * 
+	 * Messages wait in a bounded queue. When it is full, the server's
+	 * overflow policy decides whether an older message is discarded, the
+	 * client is disconnected, or the sender waits for room.
 	 * 
 	 * @param msg
 	 *            the message to be sent.
 	 * @exception IOException
-	 *                if an I/O error occur when sending the message.
+	 *                if the connection is closed, if the message cannot be
+	 *                encoded with the connection's codec, or if the message
+	 *                is discarded because the queue is full.
 	 */
 	final public void sendToClient(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
-			throw new SocketException("socket does not exist");
+		ChannelIO io = channelIO;
+		if (io != null) {
+			io.send(msg);
+		} else {
+			// Until the codec is known, the writer encodes the message.
+			MessageCodec current = codec;
+			if (current != null)
+				enqueue(new EncodedFrame(Frames.encode(current, msg)));
+			else
+				enqueue(msg);
+		}
+		messageSent();
+	}
 
-		output.writeObject(msg);
+	/**
+	 * Sends messages already encoded as frames, such as a history kept in
+	 * encoded form, as a single write. Codecs of the same name produce the
+	 * same bytes, so the frames are only sent if this connection exchanges
+	 * frames with a codec of that name; otherwise the caller must send the
+	 * messages one by one with <code>sendToClient</code>.
+	 * 
+	 * @param codecName
+	 *            the name of the codec that encoded the frames.
+	 * @param frames
+	 *            complete frames, headers included, back to back. The array
+	 *            must not be modified afterwards.
+	 * @param count
+	 *            the number of frames, for the message counts.
+	 * @return false if nothing was sent because the connection uses another
+	 *         codec, object streams, or has not negotiated its codec yet.
+	 * @exception IOException
+	 *                if the connection is closed, or if the frames are
+	 *                discarded because the queue is full.
+	 */
+	final public boolean sendFrames(String codecName, byte[] frames, int count) throws IOException {
+		MessageCodec current = getFrameCodec();
+		if (current == null || !current.getName().equals(codecName))
+			return false;
+
+		ChannelIO io = channelIO;
+		if (io != null)
+			io.send(frames);
+		else
+			enqueue(new EncodedFrame(frames));
+		sentMessages.addAndGet(count);
+		metrics.messagesSent.add(count);
+		return true;
 	}
 
+	/**
+	 * Sends a message already encoded with this connection's codec.
+	 * 
+	 * @param frame
+	 *            the encoded frame, possibly shared with other connections.
+	 * @exception IOException
+	 *                if the connection is closed.
+	 */
+	final void sendFrame(EncodedFrame frame) throws IOException {
+		ChannelIO io = channelIO;
+		if (io != null)
+			io.send(frame.bytes);
+		else
+			enqueue(frame);
+		messageSent();
+	}
 
 	/**
-	 * Closes the client. If the connection is already closed, this call has no
-	 * effect.
+	 * Closes the client. Messages already sent to the client are written
+	 * before the socket is closed. If the connection is already closed, this
+	 * call has no effect.
 	 * 
 	 * @exception IOException
 	 *                if an error occurs when closing the socket.
@@ -132,12 +481,88 @@ public class ConnectionToClient extends Thread {
 		readyToStop = true; // Set the flag that tells the thread to stop
 
 		try {
-			closeAll();
+			closeAfterFlush();
 		} finally {
 			server.clientDisconnected(this);
 		}
 	}
 
+	// THREAD METHODS ---------------------------------------------------
+
+	/**
+	 * Returns the name of the thread reading from the client, or a name
+	 * made of the connection id with the <code>SELECTOR</code> engine.
+	 * 
+	 * @return the name of the connection's thread.
+	 */
+	final public String getName() {
+		Thread reader = readerThread;
+		return reader == null ? "ConnectionToClient-" + id : reader.getName();
+	}
+
+	/**
+	 * Tests if the connection is still being serviced: its thread is alive
+	 * or, with the <code>SELECTOR</code> engine, its channel is open.
+	 * 
+	 * @return true if the connection is serviced.
+	 */
+	final public boolean isAlive() {
+		Thread reader = readerThread;
+		return reader == null ? channelIO != null && !isClosed() : reader.isAlive();
+	}
+
+	/**
+	 * Interrupts the thread reading from the client. Has no effect with the
+	 * <code>SELECTOR</code> engine, whose event loops are shared.
+	 */
+	final public void interrupt() {
+		Thread reader = readerThread;
+		if (reader != null)
+			reader.interrupt();
+	}
+
+	/**
+	 * Tests if the thread reading from the client has been interrupted.
+	 * 
+	 * @return true if it has, false with the <code>SELECTOR</code> engine.
+	 */
+	final public boolean isInterrupted() {
+		Thread reader = readerThread;
+		return reader != null && reader.isInterrupted();
+	}
+
+	/**
+	 * Waits for the connection to stop being serviced.
+	 * 
+	 * @exception InterruptedException
+	 *                if the calling thread is interrupted.
+	 */
+	final public void join() throws InterruptedException {
+		join(0);
+	}
+
+	/**
+	 * Waits at most a given time for the connection to stop being
+	 * serviced.
+	 * 
+	 * @param millis
+	 *            the time to wait in milliseconds, or 0 to wait forever.
+	 * @exception InterruptedException
+	 *                if the calling thread is interrupted.
+	 */
+	final public void join(long millis) throws InterruptedException {
+		Thread reader = readerThread;
+		if (reader != null) {
+			reader.join(millis);
+			return;
+		}
+
+		// The event loops go on after the connection; wait for its channel.
+		long deadline = System.currentTimeMillis() + millis;
+		while (isAlive() && (millis == 0 || System.currentTimeMillis() < deadline))
+			Thread.sleep(10);
+	}
+
 	// ACCESSING METHODS ------------------------------------------------
 
 	/**
@@ -146,7 +571,201 @@ public class ConnectionToClient extends Thread {
 	 * @return the client's Internet address.
 	 */
 	final public InetAddress getInetAddress() {
-		return clientSocket == null ? null : clientSocket.getInetAddress();
+		Socket socket = clientSocket;
+		return socket == null ? null : socket.getInetAddress();
+	}
+
+	/**
+	 * Returns the id given to this connection by the server. Ids are unique
+	 * among the connections of a server.
+	 * 
+	 * @return the connection id.
+	 * @see ocsf.server.AbstractServer#getClientConnection(long)
+	 */
+	final public long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the login id bound to this connection with setLoginId.
+	 * 
+	 * @return the login id, or null.
+	 */
+	final public String getLoginId() {
+		return loginId;
+	}
+
+	/**
+	 * Binds a login id to this connection, so that the server can find the
+	 * connection from it. A login id can only be bound to one open connection
+	 * at a time; the binding is released when the connection closes.
+	 * 
+	 * @param loginId
+	 *            the login id.
+	 * @return false if the login id is already bound to another connection,
+	 *         in which case this connection keeps its previous login id.
+	 * @see ocsf.server.AbstractServer#getClientConnection(String)
+	 */
+	final public boolean setLoginId(String loginId) {
+		if (loginId == null)
+			throw new IllegalArgumentException("login id is null");
+
+		synchronized (dispatchLock) {
+			// Publish the new id first, so that a concurrent close
+			// releases whichever binding it finds.
+			String previous = this.loginId;
+			this.loginId = loginId;
+			if (!server.bindLoginId(this, previous, loginId)) {
+				this.loginId = previous;
+				// A close that read the new id missed the previous binding.
+				if (previous != null)
+					server.releaseLoginId(this, previous);
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the number of messages waiting to be written to this client.
+	 * 
+	 * @return the depth of the outbound queue.
+	 */
+	final public int getOutboundQueueDepth() {
+		ChannelIO io = channelIO;
+		if (io != null)
+			return io.queueDepth();
+
+		Semaphore permits = outboundPermits;
+		return permits == null ? 0 : outboundCapacity - permits.availablePermits();
+	}
+
+	/**
+	 * Returns the number of messages to this client that were discarded
+	 * because its outbound queue was full.
+	 * 
+	 * @return the number of dropped messages.
+	 */
+	final public long getDroppedMessageCount() {
+		return droppedMessages.get();
+	}
+
+	/**
+	 * Counts a message discarded because the outbound queue was full.
+	 */
+	void messageDropped() {
+		droppedMessages.incrementAndGet();
+		metrics.messagesDropped.increment();
+	}
+
+	/**
+	 * Returns the number of messages received from this client.
+	 * 
+	 * @return the number of messages received.
+	 */
+	final public long getReceivedMessageCount() {
+		return receivedMessages;
+	}
+
+	/**
+	 * Returns the number of messages accepted for sending to this client,
+	 * including those later dropped.
+	 * 
+	 * @return the number of messages sent.
+	 */
+	final public long getSentMessageCount() {
+		return sentMessages.get();
+	}
+
+	/**
+	 * Returns the number of bytes read from this client, framing and
+	 * negotiation included.
+	 * 
+	 * @return the number of bytes received.
+	 */
+	final public long getReceivedByteCount() {
+		return receivedBytes;
+	}
+
+	/**
+	 * Returns the number of bytes written to this client, framing and
+	 * negotiation included.
+	 * 
+	 * @return the number of bytes sent.
+	 */
+	final public long getSentByteCount() {
+		return sentBytes;
+	}
+
+	/**
+	 * Counts a message received from the client. Called by the thread
+	 * reading from the client.
+	 */
+	void messageReceived() {
+		receivedMessages = receivedMessages + 1;
+		metrics.messagesReceived.increment();
+	}
+
+	/**
+	 * Counts bytes read from the client. Called by the thread reading from
+	 * the client.
+	 * 
+	 * @param count
+	 *            the number of bytes read.
+	 */
+	void bytesReceived(long count) {
+		receivedBytes = receivedBytes + count;
+		metrics.bytesReceived.add(count);
+	}
+
+	/**
+	 * Counts bytes written to the client. Called by one writer at a time.
+	 * 
+	 * @param count
+	 *            the number of bytes written.
+	 */
+	void bytesSent(long count) {
+		sentBytes = sentBytes + count;
+		metrics.bytesSent.add(count);
+	}
+
+	/**
+	 * Returns the number of messages actually written to this client, as
+	 * opposed to those accepted for sending.
+	 * 
+	 * @return the number of messages written.
+	 */
+	long getWrittenMessageCount() {
+		return writtenMessages;
+	}
+
+	/**
+	 * Counts messages written to the client. Called by one writer at a time.
+	 * 
+	 * @param count
+	 *            the number of messages written.
+	 */
+	void messagesWritten(int count) {
+		writtenMessages = writtenMessages + count;
+	}
+
+	/**
+	 * Counts a message accepted for sending.
+	 */
+	private void messageSent() {
+		sentMessages.incrementAndGet();
+		metrics.messagesSent.increment();
+	}
+
+	/**
+	 * Returns the codec used to exchange frames with this client.
+	 * 
+	 * @return the codec, or null if objects are exchanged over object
+	 *         streams or the codec is not known yet.
+	 */
+	final MessageCodec getFrameCodec() {
+		ChannelIO io = channelIO;
+		return (io != null) ? io.getCodec() : codec;
 	}
 
 	/**
@@ -155,29 +774,87 @@ public class ConnectionToClient extends Thread {
 	 * @return the client's description.
 	 */
 	public String toString() {
-		return clientSocket == null ? null : clientSocket.getInetAddress().getHostName() + " ("
-				+ clientSocket.getInetAddress().getHostAddress() + ")";
+		// The socket is cleared when the connection closes.
+		Socket socket = clientSocket;
+		return socket == null ? null : socket.getInetAddress().getHostName() + " ("
+				+ socket.getInetAddress().getHostAddress() + ")";
+	}
+
+	/**
+	 * Returns a session attribute of this client. Reading an attribute takes
+	 * no lock and sees the last value set, from whichever thread.
+	 * 
+	 * @param key
+	 *            the key of the attribute.
+	 * @return the value of the attribute, or null if it is not set.
+	 */
+	@SuppressWarnings("unchecked")
+	final public <T> T getAttribute(SessionKey<T> key) {
+		Object[] slots = attributes;
+		return key.index < slots.length ? (T) SLOT.getAcquire(slots, key.index) : null;
+	}
+
+	/**
+	 * Sets a session attribute of this client.
+	 * 
+	 * @param key
+	 *            the key of the attribute.
+	 * @param value
+	 *            the value of the attribute, or null to clear it.
+	 */
+	final public <T> void setAttribute(SessionKey<T> key, T value) {
+		synchronized (attributeLock) {
+			SLOT.setRelease(slotsFor(key.index), key.index, value);
+		}
+	}
+
+	/**
+	 * Sets a session attribute of this client unless it is already set.
+	 * 
+	 * @param key
+	 *            the key of the attribute.
+	 * @param value
+	 *            the value of the attribute.
+	 * @return the value the attribute already had, or null if it was set to
+	 *         the given value.
+	 */
+	@SuppressWarnings("unchecked")
+	final public <T> T setAttributeIfAbsent(SessionKey<T> key, T value) {
+		synchronized (attributeLock) {
+			Object[] slots = slotsFor(key.index);
+			Object current = SLOT.getAcquire(slots, key.index);
+			if (current == null)
+				SLOT.setRelease(slots, key.index, value);
+			return (T) current;
+		}
 	}
 
 	/**
 	 * Saves arbitrary information about this client. Designed to be used by
-	 * concrete subclasses of AbstractServer. Based on a hash map.
+	 * concrete subclasses of AbstractServer. Based on a concurrent hash map,
+	 * so it may be called from any thread; information read on every message
+	 * is better kept in a session attribute.
 	 * 
 	 * @param infoType
 	 *            identifies the type of information
 	 * @param info
-	 *            the information itself.
+	 *            the information itself, or null to remove it.
+	 * @see #setAttribute(SessionKey, Object)
 	 */
 	public void setInfo(String infoType, Object info) {
-		savedInfo.put(infoType, info);
+		if (info == null)
+			savedInfo.remove(infoType);
+		else
+			savedInfo.put(infoType, info);
 	}
 
 	/**
-	 * Returns information about the client saved using setInfo. Based on a hash
-	 * map.
+	 * Returns information about the client saved using setInfo. Based on a
+	 * concurrent hash map.
 	 * 
 	 * @param infoType
 	 *            identifies the type of information
+	 * @see #getAttribute(SessionKey)
 	 */
 	public Object getInfo(String infoType) {
 		return savedInfo.get(infoType);
@@ -190,6 +867,18 @@ public class ConnectionToClient extends Thread {
 	 * read to the server. Not to be called.
 	 */
 	final public void run() {
+		try {
+			openStreams();
+		} catch (Exception exception) {
+			connectionFailed(exception);
+			return;
+		}
+
+		// Let the writer send the messages queued meanwhile.
+		writing.set(false);
+		if (!outbound.isEmpty() && writing.compareAndSet(false, true))
+			Thread.startVirtualThread(this::drain);
+
 		server.clientConnected(this);
 
 		// This loop reads the input stream and responds to messages
@@ -201,22 +890,371 @@ public class ConnectionToClient extends Thread {
 			while (!readyToStop) {
 				// This block waits until it reads a message from the client
 				// and then sends it for handling by the server
-				msg = input.readObject();
-				server.receiveMessageFromClient(msg, this);
+				msg = (codec == null) ? input.readObject() : Frames.read(frameInput, codec);
+				if (msg != Frames.HEARTBEAT)
+					server.receiveMessageFromClient(msg, this);
 			}
 		} catch (Exception exception) {
-			if (!readyToStop) {
+			connectionFailed(exception);
+		}
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * Recognizes the client from its first bytes and sets up the streams. A
+	 * client opening with the serialization magic number uses object
+	 * streams, if the server accepts them; one opening with the handshake
+	 * magic number negotiates a codec. A codec imposed by the server is used
+	 * without looking.
+	 * 
+	 * @exception IOException
+	 *                if the client cannot be recognized, uses object streams
+	 *                the server does not accept, or no codec can be agreed
+	 *                upon.
+	 */
+	private void openStreams() throws IOException {
+		// The connection may be closed, by the reaper for instance, while
+		// its client is still being recognized.
+		Socket socket = clientSocket;
+		if (socket == null)
+			throw new SocketException("socket does not exist");
+
+		BufferedInputStream in = new BufferedInputStream(new CountingInputStream(socket.getInputStream()),
+				streamBufferSize);
+		DataInputStream data = new DataInputStream(in);
+		OutputStream out = new BufferedOutputStream(new CountingOutputStream(socket.getOutputStream()),
+				streamBufferSize);
+
+		if (codec == null) {
+			in.mark(4);
+			int magic = data.readInt();
+			if (magic >>> 16 == Handshake.STREAM_MAGIC) {
+				if (!server.isAcceptingObjectStreams())
+					throw new StreamCorruptedException("object streams are not accepted");
+				in.reset();
+				input = new ObjectInputStream(in);
+				input.setObjectInputFilter(server.getSerialFilter());
+				output = new ObjectOutputStream(out);
+				output.flush(); // the client waits for the stream header
+				streamsReady = true;
+				return;
+			}
+			if (magic != Handshake.MAGIC)
+				throw new StreamCorruptedException("unrecognized client stream");
+			codec = Handshake.accept(data, out, server.getAcceptedCodecs());
+		}
+
+		frameInput = data;
+		frameOutput = out;
+		streamsReady = true;
+	}
+
+	/**
+	 * Registers this connection with its server.
+	 * 
+	 * @exception IOException
+	 *                if the server cannot accept more clients.
+	 */
+	private void register() throws IOException {
+		if (!server.addClientConnection(this)) {
+			try {
+				closeAll();
+			} catch (Exception ex) {
+			}
+
+			throw new SocketException("too many clients");
+		}
+	}
+
+	/**
+	 * Records the place given to this connection by the server's registry.
+	 * 
+	 * @param registrySlot
+	 *            the slot occupied by the connection.
+	 * @param id
+	 *            the connection id.
+	 */
+	void registered(int registrySlot, long id) {
+		this.registrySlot = registrySlot;
+		this.id = id;
+	}
+
+	/**
+	 * @return the slot occupied by this connection in the server's registry,
+	 *         or -1 if it has not been registered.
+	 */
+	int getRegistrySlot() {
+		return registrySlot;
+	}
+
+	/**
+	 * Queues a message or an encoded frame for the writer, starting a writer
+	 * if none is running.
+	 * 
+	 * @param item
+	 *            the message or frame.
+	 * @exception IOException
+	 *                if the connection is closed.
+	 */
+	private void enqueue(Object item) throws IOException {
+		if (clientSocket == null || readyToStop)
+			throw new SocketException("socket does not exist");
+
+		if (!outboundPermits.tryAcquire())
+			makeRoom();
+
+		outbound.add(item);
+		if (writing.compareAndSet(false, true))
+			Thread.startVirtualThread(this::drain);
+	}
+
+	/**
+	 * Applies the server's overflow policy when the outbound queue is full.
+	 * Returns once a permit for one more message has been obtained.
+	 * 
+	 * @exception IOException
+	 *                if the message must be discarded.
+	 */
+	private void makeRoom() throws IOException {
+		switch (server.getOverflowPolicy()) {
+		case DROP_OLDEST:
+			while (!outboundPermits.tryAcquire()) {
+				// The permit of the discarded message goes to the new one.
+				Object oldest = outbound.poll();
+				if (oldest == CLOSE) {
+					outbound.add(CLOSE);
+					throw new SocketException("socket does not exist");
+				}
+				if (oldest != null) {
+					messageDropped();
+					return;
+				}
+				// The writer holds the last message; it is about to be
+				// written and its permit released.
+				Thread.onSpinWait();
+			}
+			return;
+
+		case DISCONNECT:
+			messageDropped();
+			connectionFailed(new IOException("outbound queue full, slow client disconnected"));
+			throw new SocketException("socket does not exist");
+
+		default:
+			// A thread holding the server's monitor, such as a synchronized
+			// hook, would hold up the clients being accepted.
+			long timeout = Thread.holdsLock(server) ? 0 : server.getOverflowTimeout();
+			try {
+				if (outboundPermits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+					return;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			messageDropped();
+			throw new IOException("outbound queue full");
+		}
+	}
+
+	/**
+	 * Writes queued items until the queue is empty. Runs on a virtual thread
+	 * so that blocking on a full socket costs no platform thread.<p>
+	 * 
+	 * The socket stream is buffered and only flushed once the queue is
+	 * empty: a lone message is sent at once, while the messages of a burst
+	 * are coalesced into few writes to the socket.
+	 */
+	private void drain() {
+		try {
+			do {
+				Object item;
+				while ((item = outbound.poll()) != null) {
+					write(item);
+					if (item != CLOSE)
+						outboundPermits.release();
+					if (item != CLOSE && item != HEARTBEAT)
+						unflushedMessages++;
+				}
+				flush();
+				writing.set(false);
+				// Items queued after the last poll but before the flag was
+				// cleared would otherwise wait for the next message.
+			} while (!outbound.isEmpty() && writing.compareAndSet(false, true));
+		} catch (Exception exception) {
+			outbound.clear();
+			unflushedMessages = 0;
+			writing.set(false);
+			if (readyToStop) {
+				// The connection was being closed; finish closing it.
 				try {
 					closeAll();
 				} catch (Exception ex) {
 				}
+			} else {
+				connectionFailed(exception);
+			}
+		}
+	}
+
+	/**
+	 * Writes one queued item to the socket.
+	 * 
+	 * @param item
+	 *            a message, or an encoded frame.
+	 * @exception IOException
+	 *                if an I/O error occurs.
+	 */
+	private void write(Object item) throws IOException {
+		if (item == CLOSE) {
+			// Messages written in the same pass are still buffered.
+			flush();
+			closeAll();
+		} else if (item instanceof EncodedFrame) {
+			OutputStream out = frameOutput;
+			if (out == null)
+				throw new SocketException("socket does not exist");
+			out.write(((EncodedFrame) item).bytes);
+		} else if (codec != null) {
+			// Queued before the codec was negotiated.
+			OutputStream out = frameOutput;
+			if (out == null)
+				throw new SocketException("socket does not exist");
+			out.write(Frames.encode(codec, item));
+		} else {
+			ObjectOutputStream out = output;
+			if (out == null)
+				throw new SocketException("socket does not exist");
+			out.writeObject(item);
 
-				server.clientException(this, exception);
+			// Forget the objects written so far, so that neither this
+			// stream nor the client's input stream keeps them reachable.
+			if (resetInterval > 0 && ++writtenSinceReset >= resetInterval) {
+				out.reset();
+				writtenSinceReset = 0;
 			}
 		}
 	}
 
-	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+	/**
+	 * Sends the bytes buffered by the writer to the socket.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occurs.
+	 */
+	private void flush() throws IOException {
+		OutputStream out = output;
+		if (out == null)
+			out = frameOutput;
+		if (out != null)
+			out.flush();
+		messagesWritten(unflushedMessages);
+		unflushedMessages = 0;
+	}
+
+	/**
+	 * Sends the client a heartbeat, which it answers with another. Does
+	 * nothing if the client cannot answer, because it uses object streams or
+	 * has not negotiated its codec yet, or if the outbound queue is full: the
+	 * heartbeat would only wait behind the messages already queued.
+	 * 
+	 * @return true if the heartbeat was queued.
+	 */
+	boolean sendHeartbeat() {
+		if (getFrameCodec() == null)
+			return false;
+
+		ChannelIO io = channelIO;
+		if (io != null)
+			return io.sendHeartbeat();
+
+		if (clientSocket == null || readyToStop || !outboundPermits.tryAcquire())
+			return false;
+		outbound.add(HEARTBEAT);
+		if (writing.compareAndSet(false, true))
+			Thread.startVirtualThread(this::drain);
+		return true;
+	}
+
+	/**
+	 * Closes a connection whose client stopped answering, without writing
+	 * the messages queued, which would never be received, and reports it
+	 * through the server's <code>clientDisconnected</code> hook.
+	 */
+	void reap() {
+		abort();
+		server.clientDisconnected(this);
+	}
+
+	/**
+	 * Closes the connection at once, discarding the messages queued.
+	 */
+	void abort() {
+		readyToStop = true;
+		try {
+			closeAll();
+		} catch (Exception ex) {
+		}
+	}
+
+	/**
+	 * @return true once the socket of the connection is closed.
+	 */
+	boolean isClosed() {
+		ChannelIO io = channelIO;
+		if (io != null)
+			return io.isClosed();
+		return closed.get();
+	}
+
+	/**
+	 * Handles an exception raised while reading from or writing to the
+	 * client. Unless the connection is being closed, the connection is closed
+	 * and the server's <code>clientException</code> hook is called, once.
+	 * 
+	 * @param exception
+	 *            the exception raised.
+	 */
+	void connectionFailed(Exception exception) {
+		if (!readyToStop && failed.compareAndSet(false, true)) {
+			// A client closing its end is not an error.
+			if (!(exception instanceof EOFException))
+				metrics.connectionFailures.increment();
+			try {
+				closeAll();
+			} catch (Exception ex) {
+			}
+
+			server.clientException(this, exception);
+		}
+	}
+
+	/**
+	 * Closes the connection once the messages already queued are written.
+	 * The connection is immediately removed from the server, so that it
+	 * receives no further messages.
+	 * 
+	 * @exception IOException
+	 *                if the connection is closed immediately and an error
+	 *                occurs.
+	 */
+	private void closeAfterFlush() throws IOException {
+		server.removeClientConnection(this);
+
+		ChannelIO io = channelIO;
+		if (io != null) {
+			io.closeAfterFlush();
+			return;
+		}
+
+		if (!streamsReady || (!writing.get() && outbound.isEmpty())) {
+			closeAll();
+			return;
+		}
+
+		outbound.add(CLOSE);
+		if (writing.compareAndSet(false, true))
+			Thread.startVirtualThread(this::drain);
+	}
 
 	/**
 	 * Closes all connection to the server.
@@ -225,18 +1263,34 @@ public class ConnectionToClient extends Thread {
 	 *                if an I/O error occur when closing the connection.
 	 */
 	private void closeAll() throws IOException {
+		server.removeClientConnection(this);
+		outbound.clear();
+
+		// The reader, the writer, the reaper and the application may all
+		// close the connection; only the first one does.
+		if (!closed.compareAndSet(false, true))
+			return;
+
+		ChannelIO io = channelIO;
+		Socket socket = clientSocket;
+		ObjectOutputStream out = output;
+		ObjectInputStream in = input;
 		try {
+			// Close the channel
+			if (io != null)
+				io.close();
+
 			// Close the socket
-			if (clientSocket != null)
-				clientSocket.close();
+			if (socket != null)
+				socket.close();
 
 			// Close the output stream
-			if (output != null)
-				output.close();
+			if (out != null)
+				out.close();
 
 			// Close the input stream
-			if (input != null)
-				input.close();
+			if (in != null)
+				in.close();
 		} finally {
 			// Set the streams and the sockets to NULL no matter what
 			// Doing so allows, but does not require, any finalizers
@@ -244,10 +1298,32 @@ public class ConnectionToClient extends Thread {
 			// when they are garbage collected.
 			output = null;
 			input = null;
+			frameOutput = null;
+			frameInput = null;
 			clientSocket = null;
 		}
 	}
 
+	/**
+	 * Returns the slots of the session attributes, grown to hold a given
+	 * slot if a key was created after this connection. Called while holding
+	 * the attribute lock.
+	 * 
+	 * @param index
+	 *            the slot needed.
+	 * @return the slots.
+	 */
+	private Object[] slotsFor(int index) {
+		Object[] slots = attributes;
+		if (index >= slots.length) {
+			// The copy is published by the volatile write; slots written
+			// before it were written under the same lock.
+			slots = Arrays.copyOf(slots, Math.max(index + 1, SessionKey.count()));
+			attributes = slots;
+		}
+		return slots;
+	}
+
 	/**
 	 * This method is called by garbage collection.
 	 */
@@ -257,5 +1333,51 @@ public class ConnectionToClient extends Thread {
 		} catch (IOException e) {
 		}
 	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * Counts the bytes read from the socket. Placed under the buffer, so
+	 * that it is called once per read from the socket.
+	 */
+	private final class CountingInputStream extends FilterInputStream {
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0)
+				bytesReceived(1);
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = in.read(b, off, len);
+			if (count > 0)
+				bytesReceived(count);
+			return count;
+		}
+	}
+
+	/**
+	 * Counts the bytes written to the socket. Placed under the buffer, so
+	 * that it is called once per write to the socket.
+	 */
+	private final class CountingOutputStream extends FilterOutputStream {
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			bytesSent(1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			bytesSent(len);
+		}
+	}
 }
 // End of ConnectionToClient class
@@ -0,0 +1,46 @@
+package ocsf.server;
+
+/**
+ * The <code> DispatchMode </code> enumeration selects how an
+ * <code> AbstractServer </code> serializes calls to its
+ * <code> handleMessageFromClient </code> method.
+ * <p>
+ * Whatever the mode, messages coming from a single client are always handled
+ * in the order in which they were received, since each connection hands its
+ * messages to the server one at a time.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setDispatchMode(DispatchMode)
+ */
+public enum DispatchMode {
+	/**
+	 * Every message is handled while holding the server's monitor, so only one
+	 * message is handled at a time across all clients. This is the historical
+	 * behaviour of the framework and the default.
+	 */
+	SERIALIZED,
+
+	/**
+	 * Messages from different clients are handled in parallel without any
+	 * lock. The handler is responsible for the thread safety of any state it
+	 * shares between clients.
+	 */
+	CONCURRENT,
+
+	/**
+	 * Messages are handled while holding a lock that is private to the
+	 * connection that received them. Handlers of different clients run in
+	 * parallel, but work done on behalf of one client never overlaps.
+	 */
+	PER_CONNECTION,
+
+	/**
+	 * Messages are handled while holding a lock selected by the key returned
+	 * from <code> AbstractServer.dispatchKey </code>. Messages that map to
+	 * equal keys are serialized; all others run in parallel. A
+	 * <code> null </code> key means no lock is taken.
+	 */
+	PER_KEY
+}
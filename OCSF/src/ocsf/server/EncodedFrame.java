@@ -0,0 +1,32 @@
+package ocsf.server;
+
+/**
+ * A message already encoded as a complete frame, header included. A single
+ * instance is shared by all the connections a broadcast is sent to, so the
+ * message is encoded once whatever the number of recipients.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.Frames
+ */
+final class EncodedFrame {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The bytes of the frame. Never modified once built.
+	 */
+	final byte[] bytes;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Wraps an encoded frame.
+	 *
+	 * @param bytes
+	 *            the bytes of the frame.
+	 */
+	EncodedFrame(byte[] bytes) {
+		this.bytes = bytes;
+	}
+}
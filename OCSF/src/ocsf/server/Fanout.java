@@ -0,0 +1,89 @@
+package ocsf.server;
+
+import ocsf.common.*;
+
+/**
+ * Sends one message to several connections, encoding it once per codec.
+ * The frames of the last two codecs met are kept, so that clients of two
+ * codecs interleaved among the recipients do not cause re-encoding. Clients
+ * exchanging serialized objects each serialize the message themselves,
+ * since object streams carry per-stream state.
+ * <p>
+ * An instance serves a single message and is used by a single thread.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.EncodedFrame
+ */
+final class Fanout {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The message sent.
+	 */
+	private final Object msg;
+
+	/**
+	 * The codec of the last frame encoded or reused, and that frame.
+	 */
+	private MessageCodec encodedWith;
+	private EncodedFrame frame;
+
+	/**
+	 * The codec of the frame encoded before, and that frame.
+	 */
+	private MessageCodec otherCodec;
+	private EncodedFrame otherFrame;
+
+	/**
+	 * The number of connections the message was handed to.
+	 */
+	int recipients;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Prepares to send a message.
+	 *
+	 * @param msg
+	 *            the message.
+	 */
+	Fanout(Object msg) {
+		this.msg = msg;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Hands the message to a connection. Any exception is ignored, so that
+	 * a closed connection does not keep the message from the others.
+	 *
+	 * @param client
+	 *            the connection.
+	 */
+	void send(ConnectionToClient client) {
+		try {
+			MessageCodec clientCodec = client.getFrameCodec();
+			if (clientCodec == null) {
+				client.sendToClient(msg);
+			} else {
+				if (clientCodec != encodedWith) {
+					MessageCodec swapCodec = encodedWith;
+					EncodedFrame swapFrame = frame;
+					if (clientCodec == otherCodec) {
+						frame = otherFrame;
+					} else {
+						frame = new EncodedFrame(Frames.encode(clientCodec, msg));
+					}
+					encodedWith = clientCodec;
+					otherCodec = swapCodec;
+					otherFrame = swapFrame;
+				}
+				client.sendFrame(frame);
+			}
+			recipients++;
+		} catch (Exception ex) {
+		}
+	}
+}
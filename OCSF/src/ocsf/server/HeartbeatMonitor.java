@@ -0,0 +1,281 @@
+package ocsf.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Finds the clients of a server that stopped sending, with a single thread
+ * whatever the number of connections. A client that sent nothing for a
+ * heartbeat interval is sent a heartbeat, which a live client answers; one
+ * that sent nothing for the idle timeout, heartbeat answers included, is
+ * considered dead and its connection is closed. The clients that cannot
+ * answer heartbeats, because they use object streams or have not finished
+ * their handshake, are closed after the same silence: they must send
+ * something within the timeout.
+ * <p>
+ * Each connection is checked once per interval. The checks are kept in a
+ * hashed timer wheel, so scheduling one takes constant time and each tick
+ * only looks at the checks of one slot. A check compares the number of bytes
+ * received from the client with the number seen by the previous check:
+ * the connections count them anyway, so reading messages costs nothing
+ * more.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setHeartbeatInterval(long)
+ * @see ocsf.server.AbstractServer#setIdleTimeout(long)
+ */
+final class HeartbeatMonitor implements Runnable {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The number of slots of the wheel. Must be a power of two.
+	 */
+	private static final int WHEEL_SIZE = 512;
+
+	/**
+	 * The shortest tick, in nanoseconds.
+	 */
+	private static final long MIN_TICK = 10000000L;
+
+	/**
+	 * The number of ticks in a check interval, which sets the precision of
+	 * the heartbeats and of the timeout.
+	 */
+	private static final int TICKS_PER_CHECK = 8;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The server whose connections are watched.
+	 */
+	private final AbstractServer server;
+
+	/**
+	 * The duration of a tick, in nanoseconds.
+	 */
+	private final long tickLength;
+
+	/**
+	 * The number of ticks between two checks of a connection.
+	 */
+	private final long checkTicks;
+
+	/**
+	 * The number of ticks of silence after which a client is sent
+	 * heartbeats, or 0 if it never is.
+	 */
+	private final long heartbeatTicks;
+
+	/**
+	 * The number of ticks of silence after which a connection is closed, or
+	 * 0 if it never is.
+	 */
+	private final long timeoutTicks;
+
+	/**
+	 * The checks, in the slot of the tick they are due at modulo the size of
+	 * the wheel. Only used by the monitor thread.
+	 */
+	private final ArrayDeque<Watch>[] wheel;
+
+	/**
+	 * The connections opened since the last tick, waiting to be scheduled.
+	 */
+	private final ConcurrentLinkedQueue<ConnectionToClient> opened = new ConcurrentLinkedQueue<ConnectionToClient>();
+
+	/**
+	 * The thread of the monitor.
+	 */
+	private final Thread thread;
+
+	/**
+	 * Indicates if the monitor is stopped.
+	 */
+	private volatile boolean stopped = false;
+
+	/**
+	 * The current tick. Only used by the monitor thread.
+	 */
+	private long tick = 0;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Creates a monitor. It does nothing until started.
+	 *
+	 * @param server
+	 *            the server whose connections are watched.
+	 * @param heartbeatInterval
+	 *            the silence after which a client is sent heartbeats, in
+	 *            milliseconds, or 0 for none.
+	 * @param idleTimeout
+	 *            the silence after which a connection is closed, in
+	 *            milliseconds, or 0 never to close it.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	HeartbeatMonitor(AbstractServer server, long heartbeatInterval, long idleTimeout) {
+		this.server = server;
+
+		long checkInterval = (heartbeatInterval > 0) ? heartbeatInterval : Math.max(1, idleTimeout / 4);
+		this.tickLength = Math.max(MIN_TICK, checkInterval * 1000000L / TICKS_PER_CHECK);
+		this.checkTicks = toTicks(checkInterval);
+		this.heartbeatTicks = (heartbeatInterval > 0) ? toTicks(heartbeatInterval) : 0;
+		this.timeoutTicks = (idleTimeout > 0) ? toTicks(idleTimeout) : 0;
+
+		this.wheel = new ArrayDeque[WHEEL_SIZE];
+		for (int i = 0; i < WHEEL_SIZE; i++)
+			wheel[i] = new ArrayDeque<Watch>();
+
+		thread = new Thread(this, "HeartbeatMonitor-" + server.getPort());
+		thread.setDaemon(true);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Starts watching the connections.
+	 */
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Stops watching the connections. The connections are left open.
+	 */
+	void stop() {
+		stopped = true;
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Starts watching a connection. Called by any thread.
+	 *
+	 * @param client
+	 *            the connection.
+	 */
+	void watch(ConnectionToClient client) {
+		opened.add(client);
+	}
+
+	// RUN METHOD -------------------------------------------------------
+
+	/**
+	 * Runs the checks as they fall due. Not to be called.
+	 */
+	public void run() {
+		long start = System.nanoTime();
+		while (!stopped) {
+			long wait = start + (tick + 1) * tickLength - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+			tick++;
+
+			ConnectionToClient client;
+			while ((client = opened.poll()) != null)
+				schedule(new Watch(client, tick));
+
+			ArrayDeque<Watch> slot = wheel[(int) (tick & (WHEEL_SIZE - 1))];
+			for (int n = slot.size(); n > 0; n--) {
+				Watch watch = slot.poll();
+				if (watch.due > tick)
+					slot.add(watch); // due after another turn of the wheel
+				else
+					check(watch);
+			}
+		}
+	}
+
+	// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+	/**
+	 * Checks a connection: sends it a heartbeat or closes it if the client
+	 * has been silent for too long, and schedules the next check unless it
+	 * is closed.
+	 *
+	 * @param watch
+	 *            the check.
+	 */
+	private void check(Watch watch) {
+		ConnectionToClient client = watch.client;
+		if (server.getClientConnection(client.getId()) != client)
+			return; // closed meanwhile
+
+		long received = client.getReceivedByteCount();
+		if (received != watch.received) {
+			watch.received = received;
+			watch.silentSince = tick;
+		}
+
+		long silence = tick - watch.silentSince;
+		if (timeoutTicks > 0 && silence >= timeoutTicks) {
+			server.getMetrics().reapedConnections.increment();
+			// The hooks called may be slow; the monitor must not wait.
+			Thread.startVirtualThread(client::reap);
+			return;
+		}
+		if (heartbeatTicks > 0 && silence >= heartbeatTicks)
+			client.sendHeartbeat();
+		schedule(watch);
+	}
+
+	/**
+	 * Schedules the next check of a connection.
+	 *
+	 * @param watch
+	 *            the check.
+	 */
+	private void schedule(Watch watch) {
+		watch.due = tick + checkTicks;
+		wheel[(int) (watch.due & (WHEEL_SIZE - 1))].add(watch);
+	}
+
+	/**
+	 * Converts a duration to a number of ticks, rounded up.
+	 *
+	 * @param millis
+	 *            the duration, in milliseconds.
+	 * @return the number of ticks, at least one.
+	 */
+	private long toTicks(long millis) {
+		return Math.max(1, (millis * 1000000L + tickLength - 1) / tickLength);
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * The state of the checks of a connection.
+	 */
+	private static final class Watch {
+		/**
+		 * The connection.
+		 */
+		final ConnectionToClient client;
+
+		/**
+		 * The number of bytes received from the client at the last check.
+		 */
+		long received;
+
+		/**
+		 * The tick at which the client was last found to have sent
+		 * something.
+		 */
+		long silentSince;
+
+		/**
+		 * The tick at which the next check is due.
+		 */
+		long due;
+
+		Watch(ConnectionToClient client, long tick) {
+			this.client = client;
+			this.received = client.getReceivedByteCount();
+			this.silentSince = tick;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package ocsf.server;
+
+/**
+ * The <code> OverflowPolicy </code> enumeration selects what happens when a
+ * message is sent to a client whose outbound queue is full, that is, to a
+ * client that does not read its messages as fast as they are sent.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setOverflowPolicy(OverflowPolicy)
+ */
+public enum OverflowPolicy {
+	/**
+	 * The oldest message waiting in the queue is discarded to make room for
+	 * the new one. The client misses messages but the sender never waits.
+	 * This is the default.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * The client is considered too slow and is disconnected. The server's
+	 * <code> clientException </code> hook is called.
+	 */
+	DISCONNECT,
+
+	/**
+	 * The sender waits for room in the queue, up to the overflow timeout.
+	 * If the queue is still full, the message is discarded and the sender
+	 * gets an <code> IOException </code>. A single slow client thus holds up
+	 * whoever sends to it, such as a thread broadcasting to all clients. The
+	 * event loops of the <code> SELECTOR </code> engine, and threads holding
+	 * the server's monitor, which accepting clients needs, never wait:
+	 * messages they send to a full queue are discarded at once.
+	 */
+	BLOCK
+}
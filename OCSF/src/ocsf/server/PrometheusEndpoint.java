@@ -0,0 +1,273 @@
+package ocsf.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ocsf.common.LatencyHistogram;
+
+/**
+ * Publishes the metrics of a server over HTTP, in the Prometheus text
+ * exposition format, at <code>http://127.0.0.1:&lt;port&gt;/metrics</code>.
+ * The endpoint only listens on the loopback interface; a scraper on another
+ * host must go through a proxy or a tunnel.
+ * <p>
+ * Counters are exported as they are. Latency histograms are exported as
+ * summaries over the whole life of the server, in seconds.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.ServerMetrics
+ */
+public class PrometheusEndpoint {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The content type of the text exposition format.
+	 */
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/**
+	 * The quantiles exported for each latency histogram.
+	 */
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The server whose metrics are published.
+	 */
+	private final AbstractServer server;
+
+	/**
+	 * The HTTP server answering scrapes, or null when stopped.
+	 */
+	private HttpServer httpServer;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Creates an endpoint for the metrics of a server. The endpoint does not
+	 * listen until it is started.
+	 *
+	 * @param server
+	 *            the server whose metrics are published.
+	 */
+	public PrometheusEndpoint(AbstractServer server) {
+		this.server = server;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Starts answering scrapes. Has no effect if the endpoint is already
+	 * started.
+	 *
+	 * @param port
+	 *            the port to listen on, or 0 for any free port.
+	 * @exception IOException
+	 *                if the port cannot be bound.
+	 */
+	final public synchronized void start(int port) throws IOException {
+		if (httpServer != null)
+			return;
+
+		HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		http.createContext("/metrics", this::scrape);
+		http.start();
+		httpServer = http;
+	}
+
+	/**
+	 * Stops answering scrapes. Has no effect if the endpoint is not started.
+	 */
+	final public synchronized void stop() {
+		if (httpServer == null)
+			return;
+
+		httpServer.stop(0);
+		httpServer = null;
+	}
+
+	/**
+	 * @return the port the endpoint listens on, or -1 if it is not started.
+	 */
+	final public synchronized int getPort() {
+		return httpServer == null ? -1 : httpServer.getAddress().getPort();
+	}
+
+	/**
+	 * Writes the current metrics of the server in the text exposition
+	 * format.
+	 *
+	 * @param out
+	 *            where the metrics are written.
+	 * @exception IOException
+	 *                if writing fails.
+	 */
+	public void write(Appendable out) throws IOException {
+		ServerMetrics metrics = server.getMetrics();
+
+		gauge(out, "ocsf_uptime_seconds", "Time since the server was created.", metrics.getUptime() / 1e9);
+		gauge(out, "ocsf_clients_connected", "Clients currently connected.", metrics.getConnectedClients());
+		counter(out, "ocsf_connections_accepted_total", "Connections accepted.", metrics.getAcceptedConnections());
+		gauge(out, "ocsf_connections_accepted_per_second", "Connections accepted during the last whole second.",
+				server.getAcceptRate());
+		counter(out, "ocsf_disconnections_total", "Connections closed.", metrics.getDisconnections());
+		counter(out, "ocsf_connection_failures_total", "Connections closed because of an I/O error.",
+				metrics.getConnectionFailures());
+		counter(out, "ocsf_connections_reaped_total", "Connections closed because the client stopped answering.",
+				metrics.getReapedConnections());
+		counter(out, "ocsf_messages_received_total", "Messages received from clients.",
+				metrics.getMessagesReceived());
+		counter(out, "ocsf_messages_sent_total", "Messages queued for clients.", metrics.getMessagesSent());
+		counter(out, "ocsf_messages_dropped_total", "Messages discarded because a client's queue was full.",
+				metrics.getMessagesDropped());
+		counter(out, "ocsf_messages_rate_limited_total", "Messages refused because they exceeded a rate limit.",
+				metrics.getMessagesRateLimited());
+		counter(out, "ocsf_messages_delayed_total", "Messages held back until a rate limit allowed them.",
+				metrics.getMessagesDelayed());
+		counter(out, "ocsf_rate_limit_disconnections_total", "Clients disconnected because they exceeded a rate limit.",
+				metrics.getRateLimitDisconnections());
+		counter(out, "ocsf_bytes_received_total", "Bytes read from clients.", metrics.getBytesReceived());
+		counter(out, "ocsf_bytes_sent_total", "Bytes written to clients.", metrics.getBytesSent());
+		gauge(out, "ocsf_outbound_queue_depth", "Messages waiting to be written, over all clients.",
+				metrics.getOutboundQueueDepth());
+		counter(out, "ocsf_broadcasts_total", "Messages sent to all clients or to a group of them.", metrics.getBroadcasts());
+		counter(out, "ocsf_broadcast_recipients_total", "Clients the broadcasts were sent to.",
+				metrics.getBroadcastRecipients());
+		summary(out, "ocsf_handler_latency_seconds", "Time taken to dispatch a message received.",
+				metrics.getHandlerLatency());
+		summary(out, "ocsf_broadcast_latency_seconds", "Time taken to hand a broadcast to every recipient.",
+				metrics.getBroadcastLatency());
+	}
+
+	// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+	/**
+	 * Answers a scrape.
+	 *
+	 * @param exchange
+	 *            the HTTP request and its response.
+	 * @exception IOException
+	 *                if the response cannot be sent.
+	 */
+	private void scrape(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			String method = exchange.getRequestMethod();
+			if (!method.equals("GET") && !method.equals("HEAD")) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			StringBuilder text = new StringBuilder(4096);
+			write(text);
+			byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			if (method.equals("HEAD")) {
+				exchange.sendResponseHeaders(200, -1);
+			} else {
+				exchange.sendResponseHeaders(200, body.length);
+				exchange.getResponseBody().write(body);
+			}
+		}
+	}
+
+	/**
+	 * Writes a counter.
+	 *
+	 * @param out
+	 *            where the metric is written.
+	 * @param name
+	 *            the name of the metric.
+	 * @param help
+	 *            the description of the metric.
+	 * @param value
+	 *            the value of the counter.
+	 * @exception IOException
+	 *                if writing fails.
+	 */
+	private static void counter(Appendable out, String name, String help, long value) throws IOException {
+		header(out, name, help, "counter");
+		out.append(name).append(' ').append(Long.toString(value)).append('\n');
+	}
+
+	/**
+	 * Writes a gauge.
+	 *
+	 * @param out
+	 *            where the metric is written.
+	 * @param name
+	 *            the name of the metric.
+	 * @param help
+	 *            the description of the metric.
+	 * @param value
+	 *            the value of the gauge.
+	 * @exception IOException
+	 *                if writing fails.
+	 */
+	private static void gauge(Appendable out, String name, String help, double value) throws IOException {
+		header(out, name, help, "gauge");
+		out.append(name).append(' ').append(format(value)).append('\n');
+	}
+
+	/**
+	 * Writes a histogram of nanoseconds as a summary in seconds.
+	 *
+	 * @param out
+	 *            where the metric is written.
+	 * @param name
+	 *            the name of the metric.
+	 * @param help
+	 *            the description of the metric.
+	 * @param histogram
+	 *            the histogram.
+	 * @exception IOException
+	 *                if writing fails.
+	 */
+	private static void summary(Appendable out, String name, String help, LatencyHistogram histogram)
+			throws IOException {
+		header(out, name, help, "summary");
+		for (double quantile : QUANTILES) {
+			out.append(name).append("{quantile=\"").append(Double.toString(quantile)).append("\"} ")
+					.append(format(histogram.getValueAtPercentile(quantile * 100) / 1e9)).append('\n');
+		}
+		out.append(name).append("_sum ").append(format(histogram.getSum() / 1e9)).append('\n');
+		out.append(name).append("_count ").append(Long.toString(histogram.getCount())).append('\n');
+	}
+
+	/**
+	 * Writes the comments describing a metric.
+	 *
+	 * @param out
+	 *            where the metric is written.
+	 * @param name
+	 *            the name of the metric.
+	 * @param help
+	 *            the description of the metric.
+	 * @param type
+	 *            the type of the metric.
+	 * @exception IOException
+	 *                if writing fails.
+	 */
+	private static void header(Appendable out, String name, String help, String type) throws IOException {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Formats a value, writing integral values without a fraction.
+	 *
+	 * @param value
+	 *            the value.
+	 * @return the text of the value.
+	 */
+	private static String format(double value) {
+		return (value == Math.rint(value) && Math.abs(value) < 1e15) ? Long.toString((long) value)
+				: Double.toString(value);
+	}
+}
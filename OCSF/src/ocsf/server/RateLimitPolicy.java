@@ -0,0 +1,36 @@
+package ocsf.server;
+
+/**
+ * The <code> RateLimitPolicy </code> enumeration selects what happens to a
+ * message received from a client when the client, or all the clients
+ * together, send faster than the rate limits of the server allow.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setRateLimitPolicy(RateLimitPolicy)
+ */
+public enum RateLimitPolicy {
+	/**
+	 * The message is discarded without being handled. The server's
+	 * <code> clientRateLimited </code> hook is called. This is the default.
+	 */
+	DROP,
+
+	/**
+	 * The message is handled once the rate allows it. Meanwhile nothing
+	 * more is read from the client, so a client that keeps sending too fast
+	 * is slowed down to the rate. This policy cannot be used with the
+	 * <code> SELECTOR </code> engine, whose event loops would hold up the
+	 * other clients they serve while waiting.
+	 */
+	DELAY,
+
+	/**
+	 * The message is discarded and the client is disconnected, once the
+	 * server's <code> clientRateLimited </code> hook has been called, which
+	 * may tell the client why. The messages already sent to the client are
+	 * written first.
+	 */
+	DISCONNECT
+}
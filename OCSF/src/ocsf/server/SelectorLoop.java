@@ -0,0 +1,199 @@
+package ocsf.server;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An event loop of the <code> SELECTOR </code> engine. Each loop owns a
+ * <code> Selector </code> and a thread that waits on it, reads from the
+ * channels that are ready and writes the output that could not be sent
+ * immediately. A connection stays on the loop it was registered with for
+ * its whole life, so its messages are always handled in order.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.ChannelIO
+ */
+final class SelectorLoop implements Runnable {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The loop run by the current thread, if any. Loop threads must never
+	 * wait for room in a client's queue since they are the ones emptying the
+	 * queues.
+	 */
+	private static final ThreadLocal<SelectorLoop> LOOP_THREAD = new ThreadLocal<SelectorLoop>();
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The selector multiplexing the channels of this loop.
+	 */
+	private final Selector selector;
+
+	/**
+	 * Connections waiting to be registered with the selector. Registration
+	 * must happen on the loop thread.
+	 */
+	private final Queue<ChannelIO> registrations = new ConcurrentLinkedQueue<ChannelIO>();
+
+	/**
+	 * Channels given output while handling the current pass, to be flushed
+	 * once it ends. Only used by the loop thread.
+	 */
+	private final ArrayList<ChannelIO> flushes = new ArrayList<ChannelIO>();
+
+	/**
+	 * The thread running the loop.
+	 */
+	private final Thread thread;
+
+	/**
+	 * Indicates if the loop is ready to stop.
+	 */
+	private volatile boolean readyToStop = false;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Opens the selector and starts the loop thread.
+	 *
+	 * @param name
+	 *            the name of the loop thread.
+	 * @exception IOException
+	 *                if the selector cannot be opened.
+	 */
+	SelectorLoop(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, name);
+		thread.start();
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @return true if the calling thread runs an event loop.
+	 */
+	static boolean isLoopThread() {
+		return LOOP_THREAD.get() != null;
+	}
+
+	/**
+	 * Asks the loop run by the current thread to flush a channel at the end
+	 * of its current pass. Output produced while handling the messages of a
+	 * pass, such as the copies of broadcasts, is then written with one
+	 * gathering write per channel instead of one write per message.
+	 *
+	 * @param io
+	 *            the channel with queued output.
+	 * @return false if the current thread runs no loop.
+	 */
+	static boolean deferFlush(ChannelIO io) {
+		SelectorLoop loop = LOOP_THREAD.get();
+		if (loop == null)
+			return false;
+		loop.flushes.add(io);
+		return true;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Hands a new connection to this loop. The channel is registered and the
+	 * server's <code>clientConnected</code> hook is called on the loop thread.
+	 *
+	 * @param io
+	 *            the channel state of the connection.
+	 */
+	void register(ChannelIO io) {
+		registrations.add(io);
+		selector.wakeup();
+	}
+
+	/**
+	 * Wakes the loop up so that it notices a change of interest set.
+	 */
+	void wakeup() {
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops the loop. Channels still registered are left to their owners.
+	 */
+	void stop() {
+		readyToStop = true;
+		selector.wakeup();
+	}
+
+	// RUN METHOD -------------------------------------------------------
+
+	/**
+	 * Waits for channels to become ready and services them. Not to be called.
+	 */
+	public void run() {
+		LOOP_THREAD.set(this);
+		try {
+			while (!readyToStop) {
+				selector.select(this::service);
+				flushPending();
+				registerPending();
+			}
+		} catch (IOException | ClosedSelectorException exception) {
+			// The selector is unusable; the loop can only stop.
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+	/**
+	 * Services one ready key.
+	 *
+	 * @param key
+	 *            the key selected.
+	 */
+	private void service(SelectionKey key) {
+		ChannelIO io = (ChannelIO) key.attachment();
+		try {
+			if (key.isValid() && key.isReadable())
+				io.readable();
+			if (key.isValid() && key.isWritable())
+				io.writable();
+		} catch (CancelledKeyException exception) {
+			// The connection was closed by another thread.
+		} catch (Exception exception) {
+			io.failed(exception);
+		}
+	}
+
+	/**
+	 * Flushes the channels given output during the last pass.
+	 */
+	private void flushPending() {
+		for (int i = 0; i < flushes.size(); i++)
+			flushes.get(i).flush();
+		flushes.clear();
+	}
+
+	/**
+	 * Registers the connections handed to this loop since the last pass.
+	 */
+	private void registerPending() {
+		ChannelIO io;
+		while ((io = registrations.poll()) != null) {
+			try {
+				io.registered(selector);
+			} catch (Exception exception) {
+				io.failed(exception);
+			}
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package ocsf.server;
+
+/**
+ * The <code> ServerEngine </code> enumeration selects how an
+ * <code> AbstractServer </code> performs I/O with its clients. The hook
+ * methods of the server are called in the same way whatever the engine.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setServerEngine(ServerEngine)
+ */
+public enum ServerEngine {
+	/**
+	 * Each client is served by its own thread that blocks while reading
+	 * from the socket. This is the historical behaviour of the framework and
+	 * the default.
+	 */
+	THREAD_PER_CONNECTION,
+
+	/**
+	 * All clients are multiplexed over a small number of event loop threads,
+	 * each owning a <code> Selector </code> and non-blocking socket channels.
+	 * Messages are exchanged as frames, so clients must use a
+	 * <code> MessageCodec </code>.
+	 */
+	SELECTOR
+}
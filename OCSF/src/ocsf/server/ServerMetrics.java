@@ -0,0 +1,297 @@
+package ocsf.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import ocsf.common.LatencyHistogram;
+
+/**
+ * The activity of a server since it was created: messages and bytes
+ * exchanged with its clients, connections lost, time spent handling
+ * messages and fanning broadcasts out. The framework updates these figures
+ * on its hot paths, so counters are striped <code>LongAdder</code>s and
+ * durations go to lock-free histograms; reading them never blocks the
+ * server.
+ * <p>
+ * Figures that only describe the present, such as the number of connected
+ * clients or the depth of their queues, are computed when read.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#getMetrics()
+ * @see ocsf.server.PrometheusEndpoint
+ */
+public final class ServerMetrics {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The connections of the server.
+	 */
+	private final ClientRegistry registry;
+
+	/**
+	 * The number of connections accepted since the server was created.
+	 * Only written by the listening thread.
+	 */
+	volatile long acceptedConnections = 0;
+
+	/**
+	 * When the server was created, as given by <code>System.nanoTime</code>.
+	 */
+	private final long startTime = System.nanoTime();
+
+	/**
+	 * The number of messages received from clients.
+	 */
+	final LongAdder messagesReceived = new LongAdder();
+
+	/**
+	 * The number of messages accepted for sending to clients.
+	 */
+	final LongAdder messagesSent = new LongAdder();
+
+	/**
+	 * The number of messages discarded because a client's queue was full.
+	 */
+	final LongAdder messagesDropped = new LongAdder();
+
+	/**
+	 * The number of bytes read from clients.
+	 */
+	final LongAdder bytesReceived = new LongAdder();
+
+	/**
+	 * The number of bytes written to clients.
+	 */
+	final LongAdder bytesSent = new LongAdder();
+
+	/**
+	 * The number of connections removed from the server.
+	 */
+	final LongAdder disconnections = new LongAdder();
+
+	/**
+	 * The number of connections closed because of an error.
+	 */
+	final LongAdder connectionFailures = new LongAdder();
+
+	/**
+	 * The number of connections closed because the client stayed silent.
+	 */
+	final LongAdder reapedConnections = new LongAdder();
+
+	/**
+	 * The number of messages refused because they exceeded a rate limit.
+	 */
+	final LongAdder messagesRateLimited = new LongAdder();
+
+	/**
+	 * The number of messages held back until a rate limit allowed them.
+	 */
+	final LongAdder messagesDelayed = new LongAdder();
+
+	/**
+	 * The number of clients disconnected because they exceeded a rate
+	 * limit.
+	 */
+	final LongAdder rateLimitDisconnections = new LongAdder();
+
+	/**
+	 * The number of messages sent to all clients or to a group of them.
+	 */
+	final LongAdder broadcasts = new LongAdder();
+
+	/**
+	 * The number of clients the broadcasts were sent to.
+	 */
+	final LongAdder broadcastRecipients = new LongAdder();
+
+	/**
+	 * The time taken to dispatch each received message, in nanoseconds.
+	 */
+	final LatencyHistogram handlerLatency = new LatencyHistogram();
+
+	/**
+	 * The time taken to hand each broadcast to every client, in
+	 * nanoseconds.
+	 */
+	final LatencyHistogram broadcastLatency = new LatencyHistogram();
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Creates the metrics of a server. Only the connections are given, not
+	 * the server itself, which is still being constructed.
+	 *
+	 * @param registry
+	 *            the connections of the server.
+	 */
+	ServerMetrics(ClientRegistry registry) {
+		this.registry = registry;
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return the time elapsed since the server was created, in
+	 *         nanoseconds.
+	 */
+	public long getUptime() {
+		return System.nanoTime() - startTime;
+	}
+
+	/**
+	 * @return the number of messages received from clients.
+	 */
+	public long getMessagesReceived() {
+		return messagesReceived.sum();
+	}
+
+	/**
+	 * Returns the number of messages accepted for sending to clients. A
+	 * broadcast counts once per recipient.
+	 *
+	 * @return the number of messages sent.
+	 */
+	public long getMessagesSent() {
+		return messagesSent.sum();
+	}
+
+	/**
+	 * @return the number of messages discarded because a client's outbound
+	 *         queue was full.
+	 */
+	public long getMessagesDropped() {
+		return messagesDropped.sum();
+	}
+
+	/**
+	 * @return the number of bytes read from clients.
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	/**
+	 * @return the number of bytes written to clients.
+	 */
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	/**
+	 * @return the number of clients connected.
+	 */
+	public int getConnectedClients() {
+		return registry.size();
+	}
+
+	/**
+	 * @return the number of connections accepted, including those that
+	 *         could not be set up.
+	 */
+	public long getAcceptedConnections() {
+		return acceptedConnections;
+	}
+
+	/**
+	 * @return the number of connections closed, whatever the reason.
+	 */
+	public long getDisconnections() {
+		return disconnections.sum();
+	}
+
+	/**
+	 * @return the number of connections closed because reading from or
+	 *         writing to the client failed.
+	 */
+	public long getConnectionFailures() {
+		return connectionFailures.sum();
+	}
+
+	/**
+	 * @return the number of connections closed because the client sent
+	 *         nothing, not even heartbeats, for the idle timeout.
+	 */
+	public long getReapedConnections() {
+		return reapedConnections.sum();
+	}
+
+	/**
+	 * @return the number of messages received from clients that exceeded a
+	 *         rate limit and were not handled.
+	 */
+	public long getMessagesRateLimited() {
+		return messagesRateLimited.sum();
+	}
+
+	/**
+	 * @return the number of messages received from clients that exceeded a
+	 *         rate limit and were handled late.
+	 */
+	public long getMessagesDelayed() {
+		return messagesDelayed.sum();
+	}
+
+	/**
+	 * @return the number of clients disconnected because they exceeded a
+	 *         rate limit.
+	 */
+	public long getRateLimitDisconnections() {
+		return rateLimitDisconnections.sum();
+	}
+
+	/**
+	 * @return the number of messages sent to all clients, or to a group of
+	 *         them with <code>sendToClients</code>.
+	 */
+	public long getBroadcasts() {
+		return broadcasts.sum();
+	}
+
+	/**
+	 * @return the total number of clients the broadcasts were sent to.
+	 */
+	public long getBroadcastRecipients() {
+		return broadcastRecipients.sum();
+	}
+
+	/**
+	 * Returns the number of messages waiting to be written, summed over the
+	 * connected clients.
+	 *
+	 * @return the total depth of the outbound queues.
+	 */
+	public long getOutboundQueueDepth() {
+		long depth = 0;
+		for (int i = 0, n = registry.limit(); i < n; i++) {
+			ConnectionToClient client = registry.get(i);
+			if (client != null)
+				depth += client.getOutboundQueueDepth();
+		}
+		return depth;
+	}
+
+	/**
+	 * Returns the time taken to dispatch the messages received, from their
+	 * decoding to the return of <code>handleMessageFromClient</code>,
+	 * including any wait for the dispatch lock. The histogram is live and
+	 * must not be modified.
+	 *
+	 * @return the histogram of durations, in nanoseconds.
+	 */
+	public LatencyHistogram getHandlerLatency() {
+		return handlerLatency;
+	}
+
+	/**
+	 * Returns the time taken by <code>sendToAllClients</code> and
+	 * <code>sendToClients</code> to hand each message to every recipient. The histogram is live and must not be
+	 * modified.
+	 *
+	 * @return the histogram of durations, in nanoseconds.
+	 */
+	public LatencyHistogram getBroadcastLatency() {
+		return broadcastLatency;
+	}
+}
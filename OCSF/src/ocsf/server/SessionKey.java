@@ -0,0 +1,100 @@
+package ocsf.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Identifies an attribute of the session of a client, such as the chat
+ * room it is in. Each key is given a slot of its own when it is created,
+ * so reading an attribute is an array access: no hashing, no boxing of the
+ * key and, thanks to the type parameter, no cast in the caller.
+ * <p>
+ * Keys are meant to be created once, typically as constants, and shared by
+ * all the connections of a server:
+ *
+ * <pre>
+ * static final SessionKey&lt;String&gt; ROOM = new SessionKey&lt;String&gt;("room");
+ * ...
+ * client.setAttribute(ROOM, "lobby");
+ * String room = client.getAttribute(ROOM);
+ * </pre>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @param <T>
+ *            the type of the attribute.
+ * @see ocsf.server.ConnectionToClient#getAttribute(SessionKey)
+ */
+public final class SessionKey<T> {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The largest number of keys that can be created. Every connection may
+	 * hold one slot per key.
+	 */
+	public static final int MAX_KEYS = 1 << 16;
+
+	/**
+	 * The number of keys created so far.
+	 */
+	private static final AtomicInteger keyCount = new AtomicInteger();
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The name of the attribute, for display only.
+	 */
+	private final String name;
+
+	/**
+	 * The slot holding the attribute in every connection.
+	 */
+	final int index;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Creates a key with a slot of its own.
+	 *
+	 * @param name
+	 *            the name of the attribute, for display only.
+	 * @exception IllegalStateException
+	 *                if <code>MAX_KEYS</code> keys have already been created.
+	 */
+	public SessionKey(String name) {
+		int index = keyCount.getAndIncrement();
+		if (index >= MAX_KEYS) {
+			keyCount.decrementAndGet();
+			throw new IllegalStateException("too many session keys");
+		}
+
+		this.name = name;
+		this.index = index;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @return the number of keys created so far, which is the number of
+	 *         slots a new connection reserves.
+	 */
+	static int count() {
+		return keyCount.get();
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return the name of the attribute.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the name of the attribute.
+	 */
+	public String toString() {
+		return name;
+	}
+}
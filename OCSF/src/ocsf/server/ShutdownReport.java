@@ -0,0 +1,129 @@
+package ocsf.server;
+
+import java.util.Locale;
+
+/**
+ * The outcome of closing a server with a drain: how long it took, and how
+ * many of the messages waiting for the clients were written before their
+ * connections closed and how many were discarded when the deadline passed.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#close(long, Object)
+ */
+public final class ShutdownReport {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The time taken to close the server, in nanoseconds.
+	 */
+	private final long duration;
+
+	/**
+	 * The number of clients connected when the server closed.
+	 */
+	private final int clients;
+
+	/**
+	 * The number of messages written to the clients while draining.
+	 */
+	private final long flushedMessages;
+
+	/**
+	 * The number of messages discarded when the deadline passed.
+	 */
+	private final long droppedMessages;
+
+	/**
+	 * The number of connections closed at the deadline, before their
+	 * messages were written.
+	 */
+	private final int forcedClients;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Creates a report.
+	 *
+	 * @param duration
+	 *            the time taken to close the server, in nanoseconds.
+	 * @param clients
+	 *            the number of clients connected.
+	 * @param flushedMessages
+	 *            the number of messages written while draining.
+	 * @param droppedMessages
+	 *            the number of messages discarded at the deadline.
+	 * @param forcedClients
+	 *            the number of connections closed at the deadline.
+	 */
+	ShutdownReport(long duration, int clients, long flushedMessages, long droppedMessages, int forcedClients) {
+		this.duration = duration;
+		this.clients = clients;
+		this.flushedMessages = flushedMessages;
+		this.droppedMessages = droppedMessages;
+		this.forcedClients = forcedClients;
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return the time taken to close the server, from the moment it stopped
+	 *         listening to the moment the last connection closed, in
+	 *         nanoseconds.
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * @return the number of clients connected when the server closed.
+	 */
+	public int getClients() {
+		return clients;
+	}
+
+	/**
+	 * @return the number of messages written to the clients while their
+	 *         connections drained, shutdown notices and messages sent during
+	 *         the drain included. Frames sent at once, such as the recent
+	 *         messages of a channel, count as one.
+	 */
+	public long getFlushedMessages() {
+		return flushedMessages;
+	}
+
+	/**
+	 * @return the number of messages still waiting for a client when the
+	 *         deadline passed, which were discarded.
+	 */
+	public long getDroppedMessages() {
+		return droppedMessages;
+	}
+
+	/**
+	 * @return the number of connections closed at the deadline rather than
+	 *         once their messages were written.
+	 */
+	public int getForcedClients() {
+		return forcedClients;
+	}
+
+	/**
+	 * @return true if every connection closed before the deadline, with all
+	 *         its messages written.
+	 */
+	public boolean isComplete() {
+		return forcedClients == 0;
+	}
+
+	/**
+	 * @return a one-line summary of the report.
+	 */
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT,
+				"%d clients drained in %.1f ms: %d messages flushed, %d dropped, %d connections forced",
+				clients, duration / 1e6, flushedMessages, droppedMessages, forcedClients);
+	}
+}
@@ -0,0 +1,91 @@
+package ocsf.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket, which lets messages through at a given rate on average
+ * and in bursts of a given size. It is used on every message received, so
+ * it takes no lock and allocates nothing: the whole state of the bucket is
+ * a single <code>long</code>, updated with a compare-and-set.
+ * <p>
+ * That state is the time at which the bucket will be full again, which is
+ * equivalent to counting tokens: each message pushes that time back by
+ * the interval between two messages at the rate, and a message is let
+ * through as long as that time is less than a burst of intervals ahead.
+ * The rate and the burst are given on each call, so that they can change
+ * while the bucket is in use. A bucket can also be checked without taking
+ * a token, so that a message limited by several buckets takes a token from
+ * each only once all of them let it through.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setClientRateLimit(double, int)
+ * @see ocsf.server.AbstractServer#setGlobalRateLimit(double, int)
+ */
+final class TokenBucket {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * When the bucket will be full again, as given by
+	 * <code>System.nanoTime</code>. A time in the past means the bucket is
+	 * full.
+	 */
+	private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Takes a token for a message, if one is available now or within a
+	 * given time.
+	 *
+	 * @param now
+	 *            the current time, as given by <code>System.nanoTime</code>.
+	 * @param interval
+	 *            the interval between two messages at the rate, in
+	 *            nanoseconds.
+	 * @param burst
+	 *            the number of messages that may be let through at once.
+	 * @param maxWait
+	 *            how long, in nanoseconds, the message may wait for a
+	 *            token.
+	 * @return how long the message must wait before it is let through, 0
+	 *         if it may go at once, or -1 if it must wait longer than
+	 *         <code>maxWait</code>, in which case no token is taken.
+	 */
+	long take(long now, long interval, int burst, long maxWait) {
+		while (true) {
+			long full = fullAt.get();
+			long next = ((full - now < 0) ? now : full) + interval;
+			long wait = next - now - burst * interval;
+			if (wait > maxWait)
+				return -1;
+			if (fullAt.compareAndSet(full, next))
+				return Math.max(0, wait);
+		}
+	}
+
+	/**
+	 * Tells whether a token would be available for a message now or within
+	 * a given time, without taking it.
+	 *
+	 * @param now
+	 *            the current time, as given by <code>System.nanoTime</code>.
+	 * @param interval
+	 *            the interval between two messages at the rate, in
+	 *            nanoseconds.
+	 * @param burst
+	 *            the number of messages that may be let through at once.
+	 * @param maxWait
+	 *            how long, in nanoseconds, the message may wait for a
+	 *            token.
+	 * @return how long the message would wait before it is let through, 0
+	 *         if it could go at once, or -1 if it would wait longer than
+	 *         <code>maxWait</code>.
+	 */
+	long check(long now, long interval, int burst, long maxWait) {
+		long full = fullAt.get();
+		long wait = ((full - now < 0) ? now : full) + interval - now - burst * interval;
+		return (wait > maxWait) ? -1 : Math.max(0, wait);
+	}
+}
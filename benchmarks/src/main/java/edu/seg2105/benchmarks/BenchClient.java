@@ -0,0 +1,64 @@
+package edu.seg2105.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.*;
+
+/**
+ * A client that counts the messages it receives.
+ */
+class BenchClient extends AbstractClient {
+	/**
+	 * The counter shared by the clients of a benchmark, or null.
+	 */
+	private final AtomicLong sharedCount;
+
+	/**
+	 * The number of messages received by this client.
+	 */
+	private volatile long received = 0;
+
+	/**
+	 * Constructs a client. The connection is not opened.
+	 *
+	 * @param port
+	 *            the server's port.
+	 * @param codec
+	 *            the codec to negotiate, or null to use object streams.
+	 * @param sharedCount
+	 *            a counter incremented for every message received, or null.
+	 */
+	BenchClient(int port, MessageCodec codec, AtomicLong sharedCount) {
+		super(Loopback.HOST, port);
+		this.sharedCount = sharedCount;
+		setUseVirtualThreads(true);
+		if (codec != null)
+			setOfferedCodecs(codec);
+	}
+
+	/**
+	 * @return the number of messages received by this client.
+	 */
+	long received() {
+		return received;
+	}
+
+	@Override
+	protected void handleMessageFromServer(Object msg) {
+		received = received + 1;
+		if (sharedCount != null)
+			sharedCount.incrementAndGet();
+	}
+
+	/**
+	 * Closes the connection, ignoring errors.
+	 */
+	void closeQuietly() {
+		try {
+			closeConnection();
+		} catch (IOException ex) {
+		}
+	}
+}
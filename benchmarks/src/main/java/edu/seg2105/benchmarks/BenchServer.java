@@ -0,0 +1,70 @@
+package edu.seg2105.benchmarks;
+
+import java.io.IOException;
+
+import edu.seg2105.edu.server.backend.EchoServer;
+import ocsf.common.*;
+import ocsf.server.*;
+
+/**
+ * An <code>EchoServer</code> that counts the messages reaching
+ * <code>handleMessageFromClient</code> and keeps quiet when clients come
+ * and go.
+ */
+class BenchServer extends EchoServer {
+	/**
+	 * The number of messages that reached the handler.
+	 */
+	private volatile long handled = 0;
+
+	/**
+	 * Constructs and starts a server.
+	 *
+	 * @param port
+	 *            the port to listen on.
+	 * @param engine
+	 *            the engine serving the clients.
+	 * @exception IOException
+	 *                if the server cannot listen.
+	 */
+	BenchServer(int port, ServerEngine engine) throws IOException {
+		super(port, Loopback.SILENT);
+		setServerEngine(engine);
+		setUseVirtualThreads(true);
+		// The benchmarks also measure Java serialization.
+		setAcceptedCodecs(new BinaryCodec(), new SerializationCodec());
+		setAcceptObjectStreams(true);
+		listen();
+	}
+
+	/**
+	 * @return the number of messages that reached the handler.
+	 */
+	long handled() {
+		return handled;
+	}
+
+	@Override
+	public void handleMessageFromClient(Object msg, ConnectionToClient client) {
+		// Only one message of a client is handled at a time, and the
+		// benchmarks that read this count use a single client.
+		handled = handled + 1;
+		super.handleMessageFromClient(msg, client);
+	}
+
+	@Override
+	protected void serverStarted() {
+	}
+
+	@Override
+	protected void serverStopped() {
+	}
+
+	@Override
+	protected void clientConnected(ConnectionToClient client) {
+	}
+
+	@Override
+	protected void clientDisconnected(ConnectionToClient client) {
+	}
+}
@@ -0,0 +1,27 @@
+package edu.seg2105.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled, so that every result
+ * comes with its allocation rate. Accepts the usual JMH command line, for
+ * instance <code>java -jar benchmarks.jar Broadcast -p clients=100</code>.
+ */
+public final class Benchmarks {
+	private Benchmarks() {
+	}
+
+	/**
+	 * @param args
+	 *            the JMH command line.
+	 * @exception Exception
+	 *                if the command line is invalid or a benchmark fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		Options options = new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,80 @@
+package edu.seg2105.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures <code>AbstractServer.sendToAllClients</code> with 10, 100 and
+ * 1000 connected clients. An operation ends when every client has
+ * received the message, so the score is the rate at which broadcasts are
+ * delivered rather than the rate at which they are queued.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+	/**
+	 * The number of connected clients.
+	 */
+	@Param({ "10", "100", "1000" })
+	public int clients;
+
+	/**
+	 * The server engine and the codec.
+	 */
+	@Param({ "threads-binary", "threads-legacy", "selector-binary" })
+	public String transport;
+
+	/**
+	 * The message broadcast.
+	 */
+	private static final String MESSAGE = "SERVER MESSAGE> The quick brown fox jumps over the lazy dog";
+
+	private BenchServer server;
+
+	private BenchClient[] connected;
+
+	/**
+	 * The number of messages received by all the clients.
+	 */
+	private final AtomicLong received = new AtomicLong();
+
+	/**
+	 * The number of messages the clients will have received once the
+	 * broadcasts sent so far are delivered.
+	 */
+	private long expected = 0;
+
+	@Setup
+	public void setUp() throws Exception {
+		int port = Loopback.freePort();
+		server = new BenchServer(port, Loopback.engine(transport));
+		connected = new BenchClient[clients];
+		for (int i = 0; i < clients; i++) {
+			connected[i] = new BenchClient(port, Loopback.codec(transport), received);
+			connected[i].openConnection();
+		}
+		Loopback.await(() -> server.getNumberOfClients() == clients, "the clients to connect");
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		for (BenchClient client : connected)
+			client.closeQuietly();
+		server.close();
+	}
+
+	@Benchmark
+	public void sendToAllClients() {
+		expected += clients;
+		server.sendToAllClients(MESSAGE);
+		long target = expected;
+		Loopback.spin(() -> received.get() >= target);
+	}
+}
@@ -0,0 +1,102 @@
+package edu.seg2105.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.seg2105.edu.server.backend.Channel;
+import ocsf.server.ConnectionToClient;
+
+/**
+ * Measures <code>EchoServer.sendToChannel</code> for channels of 10 and
+ * 100 members, on servers with 100 and 1000 connected clients. An
+ * operation ends when every member has received the message. The score
+ * should depend on the size of the channel, not on the number of clients
+ * connected; compare with <code>BroadcastBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChannelBenchmark {
+	/**
+	 * The number of connected clients.
+	 */
+	@Param({ "100", "1000" })
+	public int clients;
+
+	/**
+	 * The number of clients in the channel.
+	 */
+	@Param({ "10", "100" })
+	public int members;
+
+	/**
+	 * The server engine and the codec.
+	 */
+	@Param({ "threads-binary", "selector-binary" })
+	public String transport;
+
+	/**
+	 * The message sent to the channel.
+	 */
+	private static final String MESSAGE = "[#bench] member> The quick brown fox jumps over the lazy dog";
+
+	private BenchServer server;
+
+	private BenchClient[] connected;
+
+	private Channel channel;
+
+	/**
+	 * The number of messages received by all the clients. Only members
+	 * receive messages once the setup is over.
+	 */
+	private final AtomicLong received = new AtomicLong();
+
+	/**
+	 * The number of messages the clients will have received once the
+	 * messages sent so far are delivered.
+	 */
+	private long expected = 0;
+
+	@Setup
+	public void setUp() throws Exception {
+		if (members > clients)
+			throw new IllegalArgumentException("more members than clients");
+
+		int port = Loopback.freePort();
+		server = new BenchServer(port, Loopback.engine(transport));
+		connected = new BenchClient[clients];
+		for (int i = 0; i < clients; i++) {
+			connected[i] = new BenchClient(port, Loopback.codec(transport), received);
+			connected[i].openConnection();
+		}
+		Loopback.await(() -> server.getNumberOfClients() == clients, "the clients to connect");
+
+		// Join on the server side: the members do not need to log in, and
+		// no announcement reaches the clients.
+		ConnectionToClient[] connections = server.getClientConnections();
+		for (int i = 0; i < members; i++)
+			channel = server.getChannels().join("bench", connections[i]);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		for (BenchClient client : connected)
+			client.closeQuietly();
+		server.close();
+	}
+
+	@Benchmark
+	public void sendToChannel() {
+		expected += members;
+		server.sendToChannel(channel, MESSAGE);
+		long target = expected;
+		Loopback.spin(() -> received.get() >= target);
+	}
+}
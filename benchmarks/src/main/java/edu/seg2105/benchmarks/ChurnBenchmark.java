@@ -0,0 +1,58 @@
+package edu.seg2105.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.common.Command;
+
+/**
+ * Measures the rate at which clients can connect, log in and disconnect.
+ * An operation ends when the client has received the announcement of its
+ * own login.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChurnBenchmark {
+	/**
+	 * The server engine and the codec.
+	 */
+	@Param({ "threads-binary", "threads-legacy", "selector-binary" })
+	public String transport;
+
+	private BenchServer server;
+
+	private int port;
+
+	/**
+	 * The number of clients that logged in so far, used for unique ids.
+	 */
+	private long logins = 0;
+
+	@Setup
+	public void setUp() throws Exception {
+		port = Loopback.freePort();
+		server = new BenchServer(port, Loopback.engine(transport));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		server.close();
+	}
+
+	@Benchmark
+	public void connectLoginDisconnect() throws Exception {
+		BenchClient client = new BenchClient(port, Loopback.codec(transport), null);
+		client.openConnection();
+		try {
+			client.sendToServer(new Command("login", "churn" + (logins++)));
+			Loopback.spin(() -> client.received() > 0 || !client.isConnected());
+		} finally {
+			client.closeQuietly();
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package edu.seg2105.benchmarks;
+
+import edu.seg2105.client.backend.ChatClient;
+import edu.seg2105.client.common.ChatIF;
+import edu.seg2105.edu.server.cluster.ClusterNode;
+import edu.seg2105.edu.server.cluster.PeerLink;
+import ocsf.server.*;
+
+/**
+ * Checks a cluster of chat servers on the loopback interface. Three nodes
+ * are started with one client each, and every client sends numbered
+ * messages to all clients. Each client must receive the messages of every
+ * client exactly once and in order, in three phases: with all the links
+ * up; while the links to one node are dropped in the middle of the
+ * messages, so that they must resume after the last message the node
+ * delivered; and with a second link between two nodes, which carries
+ * every message twice, so that the node receiving them must drop the
+ * duplicates.
+ * <p>
+ * Run it with, for instance,
+ * <code>java -cp benchmarks/target/benchmarks.jar edu.seg2105.benchmarks.ClusterCheck 1000</code>,
+ * giving the number of messages each client sends in each phase. The
+ * program exits with status 1 if a message is missing, repeated or out of
+ * order.
+ */
+public final class ClusterCheck {
+	/**
+	 * The number of nodes.
+	 */
+	private static final int NODES = 3;
+
+	private ClusterCheck() {
+	}
+
+	/**
+	 * @param args
+	 *            the number of messages each client sends in each phase, 1000
+	 *            by default.
+	 * @exception Exception
+	 *                if a server or a client fails, or if the messages do not
+	 *                all arrive in time.
+	 */
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+		BenchServer[] servers = new BenchServer[NODES];
+		ClusterNode[] nodes = new ClusterNode[NODES];
+		int[] linkPorts = new int[NODES];
+		for (int i = 0; i < NODES; i++) {
+			servers[i] = new BenchServer(Loopback.freePort(), ServerEngine.THREAD_PER_CONNECTION);
+			linkPorts[i] = Loopback.freePort();
+		}
+		for (int i = 0; i < NODES; i++) {
+			nodes[i] = servers[i].joinCluster("n" + i, linkPorts[i]);
+			for (int j = 0; j < NODES; j++)
+				if (j != i)
+					nodes[i].addPeer(Loopback.HOST, linkPorts[j]);
+		}
+		Loopback.await(() -> allReady(nodes), "the links");
+
+		Receiver[] receivers = new Receiver[NODES];
+		ChatClient[] clients = new ChatClient[NODES];
+		for (int i = 0; i < NODES; i++) {
+			receivers[i] = new Receiver();
+			clients[i] = new ChatClient("u" + i, Loopback.HOST, servers[i].getPort(), receivers[i], false);
+			clients[i].openConnection();
+		}
+		Loopback.await(() -> loggedIn(servers), "the clients to log in");
+
+		// Relay with every link up.
+		send(clients, 0, messages);
+		Loopback.await(() -> allReceived(receivers, messages), "the messages with all links up");
+
+		// Relay while the links to one node are dropped and resume.
+		send(clients, messages, messages + messages / 2);
+		for (ConnectionToClient link : nodes[1].getClientConnections())
+			link.close();
+		send(clients, messages + messages / 2, 2 * messages);
+		Loopback.await(() -> allReady(nodes), "the links to resume");
+		Loopback.await(() -> allReceived(receivers, 2 * messages), "the messages after the links dropped");
+
+		// Relay over two links from one node to another.
+		PeerLink second = nodes[0].addPeer(Loopback.HOST, linkPorts[1]);
+		Loopback.await(() -> second.isReady() && nodes[1].getNumberOfClients() == NODES, "the second link");
+		long duplicates = nodes[1].getDuplicateCount();
+		send(clients, 2 * messages, 3 * messages);
+		Loopback.await(() -> allReceived(receivers, 3 * messages), "the messages over two links");
+		Loopback.await(() -> nodes[1].getDuplicateCount() - duplicates >= messages, "the duplicates");
+
+		boolean ok = true;
+		for (int i = 0; i < NODES; i++) {
+			System.out.printf("u%d: %d messages, %d out of order%n", i, receivers[i].received, receivers[i].errors);
+			ok &= receivers[i].errors == 0;
+		}
+		for (ClusterNode node : nodes) {
+			System.out.printf("%s: %d relayed, %d received, %d duplicates dropped, %d missed%n", node.getNodeId(),
+					node.getRelayedCount(), node.getReceivedCount(), node.getDuplicateCount(), node.getMissedCount());
+			ok &= node.getMissedCount() == 0;
+		}
+
+		for (int i = 0; i < NODES; i++) {
+			clients[i].closeConnection();
+			servers[i].leaveCluster();
+			servers[i].close();
+		}
+		System.out.println(ok ? "cluster ok" : "cluster FAILED");
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * Has every client send a range of numbered messages to all clients.
+	 *
+	 * @param clients
+	 *            the clients.
+	 * @param from
+	 *            the number of the first message.
+	 * @param to
+	 *            the number past the last message.
+	 */
+	private static void send(ChatClient[] clients, int from, int to) {
+		for (int k = from; k < to; k++)
+			for (ChatClient client : clients)
+				client.handleMessageFromClientUI(Integer.toString(k));
+	}
+
+	/**
+	 * @param nodes
+	 *            the nodes.
+	 * @return true if every node has a link ready to each of its peers, and
+	 *         accepted a link from each of them.
+	 */
+	private static boolean allReady(ClusterNode[] nodes) {
+		for (ClusterNode node : nodes) {
+			if (node.getNumberOfClients() != NODES - 1)
+				return false;
+			for (PeerLink link : node.getPeers())
+				if (!link.isReady())
+					return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param servers
+	 *            the servers.
+	 * @return true if the client of every server has logged in.
+	 */
+	private static boolean loggedIn(BenchServer[] servers) {
+		for (BenchServer server : servers)
+			if (server.handled() == 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * @param receivers
+	 *            what the clients received.
+	 * @param messages
+	 *            the number of messages each client sent.
+	 * @return true if every client received the last message of every
+	 *         client.
+	 */
+	private static boolean allReceived(Receiver[] receivers, int messages) {
+		for (Receiver receiver : receivers)
+			if (!receiver.receivedAll(messages))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Checks the messages a client receives: those of each client must
+	 * follow each other, without gaps or repeats.
+	 */
+	private static final class Receiver implements ChatIF {
+		/**
+		 * The number of the message expected next from each client.
+		 */
+		private final int[] next = new int[NODES];
+
+		/**
+		 * The number of chat messages received.
+		 */
+		volatile long received = 0;
+
+		/**
+		 * The number of messages missing, repeated or out of order.
+		 */
+		volatile long errors = 0;
+
+		/**
+		 * @param messages
+		 *            the number of messages each client sent.
+		 * @return true if the last message of every client was received.
+		 */
+		synchronized boolean receivedAll(int messages) {
+			for (int i = 0; i < NODES; i++)
+				if (next[i] < messages)
+					return false;
+			return true;
+		}
+
+		@Override
+		public synchronized void display(String message) {
+			// Chat messages read "u<client>> <number>"; others are notices.
+			int mark = message.indexOf("> ");
+			if (!message.startsWith("u") || mark < 0)
+				return;
+			int sender = Integer.parseInt(message.substring(1, mark));
+			int number = Integer.parseInt(message.substring(mark + 2));
+			if (number != next[sender])
+				errors = errors + 1;
+			next[sender] = Math.max(next[sender], number + 1);
+			received = received + 1;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package edu.seg2105.benchmarks;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.function.BooleanSupplier;
+
+import edu.seg2105.client.common.ChatIF;
+import ocsf.common.*;
+import ocsf.server.ServerEngine;
+
+/**
+ * Helpers shared by the benchmarks, which run a server and its clients in
+ * the same JVM over the loopback interface.
+ */
+final class Loopback {
+	/**
+	 * The host the clients connect to.
+	 */
+	static final String HOST = "localhost";
+
+	/**
+	 * How long setup steps wait for the server or the clients, in ms.
+	 */
+	static final long SETUP_TIMEOUT = 30000;
+
+	/**
+	 * The number of busy iterations before a waiting thread yields.
+	 */
+	private static final int SPINS_BEFORE_YIELD = 100;
+
+	/**
+	 * A user interface that discards what it is given, so that console
+	 * output does not distort the measurements.
+	 */
+	static final ChatIF SILENT = message -> {
+	};
+
+	private Loopback() {
+	}
+
+	/**
+	 * @return a port that was free when this method was called.
+	 * @exception IOException
+	 *                if no port can be found.
+	 */
+	static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	/**
+	 * Parses a transport parameter such as <code>threads-binary</code>.
+	 *
+	 * @param transport
+	 *            the engine, <code>threads</code> or <code>selector</code>,
+	 *            and the codec, <code>binary</code>, <code>java</code> or
+	 *            <code>legacy</code> for object streams.
+	 * @return the engine.
+	 */
+	static ServerEngine engine(String transport) {
+		return transport.startsWith("selector") ? ServerEngine.SELECTOR : ServerEngine.THREAD_PER_CONNECTION;
+	}
+
+	/**
+	 * @param transport
+	 *            a transport parameter.
+	 * @return the codec it names, or null for object streams.
+	 * @see #engine(String)
+	 */
+	static MessageCodec codec(String transport) {
+		if (transport.endsWith("binary"))
+			return new BinaryCodec();
+		if (transport.endsWith("java"))
+			return new SerializationCodec();
+		return null;
+	}
+
+	/**
+	 * Waits during setup until a condition holds.
+	 *
+	 * @param condition
+	 *            the condition.
+	 * @param what
+	 *            what is waited for, for the error message.
+	 * @exception IllegalStateException
+	 *                if the condition still does not hold after
+	 *                <code>SETUP_TIMEOUT</code>.
+	 * @exception InterruptedException
+	 *                if the thread is interrupted.
+	 */
+	static void await(BooleanSupplier condition, String what) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + SETUP_TIMEOUT;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline)
+				throw new IllegalStateException("timed out waiting for " + what);
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Spins until a condition holds. Used inside measured operations, where
+	 * sleeping would dominate the result. After a short spin the thread
+	 * yields, so that it does not starve the server and client threads on
+	 * machines with few cores.
+	 *
+	 * @param condition
+	 *            the condition.
+	 */
+	static void spin(BooleanSupplier condition) {
+		for (int spins = 0; !condition.getAsBoolean(); spins++) {
+			if (spins < SPINS_BEFORE_YIELD)
+				Thread.onSpinWait();
+			else
+				Thread.yield();
+		}
+	}
+}
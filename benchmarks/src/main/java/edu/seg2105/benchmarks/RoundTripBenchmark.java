@@ -0,0 +1,60 @@
+package edu.seg2105.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.common.Command;
+
+/**
+ * Measures the latency of a single chat message, from
+ * <code>AbstractClient.sendToServer</code> until it reaches
+ * <code>EchoServer.handleMessageFromClient</code>. One message is in
+ * flight at a time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+	/**
+	 * The server engine and the codec.
+	 */
+	@Param({ "threads-binary", "threads-java", "threads-legacy", "selector-binary", "selector-java" })
+	public String transport;
+
+	/**
+	 * The message sent.
+	 */
+	private static final String MESSAGE = "The quick brown fox jumps over the lazy dog";
+
+	private BenchServer server;
+
+	private BenchClient client;
+
+	@Setup
+	public void setUp() throws Exception {
+		int port = Loopback.freePort();
+		server = new BenchServer(port, Loopback.engine(transport));
+		client = new BenchClient(port, Loopback.codec(transport), null);
+		client.openConnection();
+		client.sendToServer(new Command("login", "bench"));
+		Loopback.await(() -> server.handled() == 1, "the login");
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		client.closeQuietly();
+		server.close();
+	}
+
+	@Benchmark
+	public void sendToServer() throws IOException {
+		long target = server.handled() + 1;
+		client.sendToServer(MESSAGE);
+		Loopback.spin(() -> server.handled() >= target);
+	}
+}
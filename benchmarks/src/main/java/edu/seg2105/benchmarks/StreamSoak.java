@@ -0,0 +1,116 @@
+package edu.seg2105.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.client.AbstractClient;
+import ocsf.server.*;
+
+/**
+ * Checks that a long-lived object-stream connection does not keep the
+ * objects it carried. A client sends distinct strings to a server that
+ * echoes them back, over a single connection, and the live heap is
+ * measured after a full collection at the end of each quarter of the run.
+ * <p>
+ * Run it with, for instance,
+ * <code>java -cp benchmarks/target/benchmarks.jar edu.seg2105.benchmarks.StreamSoak 1000000 100</code>,
+ * giving the number of messages and the stream reset interval; an interval
+ * of 0 disables the resets and shows the heap growing. The program exits
+ * with status 1 if the heap grew by more than <code>MAX_GROWTH</code>.
+ */
+public final class StreamSoak {
+	/**
+	 * How much the live heap may grow between the first and the last
+	 * measure, in bytes.
+	 */
+	private static final long MAX_GROWTH = 16L << 20;
+
+	/**
+	 * The largest number of messages in flight, so that the queues do not
+	 * weigh on the measures.
+	 */
+	private static final int WINDOW = 2000;
+
+	/**
+	 * The number of measures of the heap.
+	 */
+	private static final int ROUNDS = 4;
+
+	private StreamSoak() {
+	}
+
+	/**
+	 * @param args
+	 *            the number of messages, 1000000 by default, and the stream
+	 *            reset interval, 100 by default.
+	 * @exception Exception
+	 *                if the server or the client fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		long messages = args.length > 0 ? Long.parseLong(args[0]) : 1000000;
+		int interval = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int port = Loopback.freePort();
+
+		AbstractServer server = new AbstractServer(port) {
+			@Override
+			protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+				try {
+					client.sendToClient(msg);
+				} catch (IOException e) {
+				}
+			}
+		};
+		server.setDispatchMode(DispatchMode.CONCURRENT);
+		server.setAcceptObjectStreams(true);
+		server.setStreamResetInterval(interval);
+		server.listen();
+
+		AtomicLong echoed = new AtomicLong();
+		AbstractClient client = new AbstractClient(Loopback.HOST, port) {
+			@Override
+			protected void handleMessageFromServer(Object msg) {
+				echoed.incrementAndGet();
+			}
+		};
+		client.setStreamResetInterval(interval);
+		client.openConnection();
+
+		long first = -1;
+		long last = 0;
+		long perRound = messages / ROUNDS;
+		for (int round = 1; round <= ROUNDS; round++) {
+			long end = round * perRound;
+			for (long i = (round - 1) * perRound; i < end; i++) {
+				client.sendToServer("message " + i);
+				while (i - echoed.get() > WINDOW)
+					Thread.onSpinWait();
+			}
+			Loopback.await(() -> echoed.get() >= end, "the echoes");
+
+			last = liveHeap();
+			if (first < 0)
+				first = last;
+			System.out.printf("interval %d, %d messages: %d MB live%n", interval, end, last >> 20);
+		}
+
+		client.closeConnection();
+		server.close();
+
+		long growth = last - first;
+		System.out.printf("heap grew by %d MB%n", growth >> 20);
+		System.exit(growth > MAX_GROWTH ? 1 : 0);
+	}
+
+	/**
+	 * @return the heap in use after a full collection, in bytes.
+	 * @exception InterruptedException
+	 *                if the thread is interrupted.
+	 */
+	private static long liveHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		Thread.sleep(200);
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -5,6 +5,7 @@
 package edu.seg2105.client.backend;
 
 import ocsf.client.*;
+import ocsf.common.*;
 
 import java.io.*;
 
@@ -29,6 +30,40 @@ public class ChatClient extends AbstractClient
   ChatIF clientUI; 
   private String loginID;
 
+  /**
+   * The commands carried out by the client itself, by name.
+   */
+  private final CommandRegistry<ChatIF> commands =
+    new CommandRegistry<ChatIF>();
+
+  /**
+   * Indicates if the commands of the client have been registered.  The
+   * constructor leaves it to the first command typed or looked up, so
+   * that a subclass is constructed before its methods are registered.
+   */
+  private volatile boolean commandsRegistered = false;
+
+  /**
+   * The sequence number of the last broadcast this client received, or
+   * -1.  Sent when logging in again, so that a server that restarted
+   * replays the broadcasts missed.
+   */
+  private volatile long lastSequence = -1;
+
+  /**
+   * Indicates if the server told this client it is logged in on the
+   * current connection.  A connection lost before that was refused, and
+   * is not opened again.
+   */
+  private volatile boolean loggedOn;
+
+  /**
+   * The token the server gave this client when it last logged in, or
+   * null.  Sent when connecting again, so that the server hands over
+   * the login id from the connection lost, which it may still hold.
+   */
+  private volatile String resumeToken;
+
   
   //Constructors ****************************************************
   
@@ -43,11 +78,54 @@ public class ChatClient extends AbstractClient
   
   public ChatClient(String loginID, String host, int port, ChatIF clientUI) 
     throws IOException 
+  {
+    this(loginID, host, port, clientUI, true);
+  }
+
+  /**
+   * Constructs an instance of the chat client, leaving it to the caller
+   * to open the connection if asked to, so that the client can be
+   * configured first.
+   *
+   * @param host The server to connect to.
+   * @param port The port number to connect on.
+   * @param clientUI The interface type variable.
+   * @param loginID The string that denominates the login id
+   * @param connect true to open the connection at once.
+   */
+  public ChatClient(String loginID, String host, int port, ChatIF clientUI,
+    boolean connect) throws IOException 
   {
     super(host, port); //Call the superclass constructor
     this.clientUI = clientUI;
     this.loginID = loginID;
-    openConnection();
+    // Prefer the compact binary frames; fall back to serialized frames
+    // with servers that do not accept them.
+    setOfferedCodecs(new BinaryCodec(), new SerializationCodec());
+    // Survive a restart of the server: log in again once it is back,
+    // keeping what is typed meanwhile.
+    setAutoReconnect(true);
+    if (connect)
+    {
+      openConnection();
+    }
+  }
+
+  /**
+   * @return the login id sent to the server when connecting.
+   */
+  public String getLoginID()
+  {
+    return loginID;
+  }
+
+  /**
+   * @return true if the server told this client it is logged in on the
+   *         current connection.
+   */
+  public boolean isLoggedOn()
+  {
+    return loggedOn;
   }
 
   
@@ -60,13 +138,111 @@ public class ChatClient extends AbstractClient
    */
   public void handleMessageFromServer(Object msg) 
   {
+    if (msg instanceof Command)
+    {
+      Command command = (Command) msg;
+      switch (command.getName())
+      {
+        case "message":
+          journaledMessage(command);
+          return;
+        case "loggedin":
+          loggedIn(command);
+          return;
+        case "shutdown":
+          serverShuttingDown(command);
+          return;
+      }
+    }
     clientUI.display(msg.toString());
-    
-    
   }
 
   /**
-   * This method handles all data coming from the UI            
+   * Handles a broadcast the server journaled, given with its sequence
+   * number.  The broadcasts received before the client is told it is
+   * logged in are not counted: the server may still be replaying
+   * earlier ones.
+   *
+   * @param message The message, whose arguments are the sequence number
+   *          and the text.
+   */
+  private void journaledMessage(Command message)
+  {
+    String[] arguments = message.getArguments().split(" ", 2);
+    if (arguments.length < 2)
+    {
+      clientUI.display(message.toString());
+      return;
+    }
+    try
+    {
+      long sequence = Long.parseLong(arguments[0]);
+      if (loggedOn && sequence > lastSequence)
+      {
+        lastSequence = sequence;
+      }
+    }
+    catch (NumberFormatException e) {}
+    clientUI.display(arguments[1]);
+  }
+
+  /**
+   * Handles the notice that the server logged this client in, once it
+   * sent the broadcasts missed.  It gives a token to resume the session
+   * with and, if the server keeps a journal, the sequence number of the
+   * last broadcast sent.
+   *
+   * @param notice The notice, whose arguments are the login id, the
+   *          token and the sequence number.
+   */
+  private void loggedIn(Command notice)
+  {
+    String[] arguments = notice.getArguments().split(" ");
+    if (arguments.length > 1)
+    {
+      resumeToken = arguments[1];
+    }
+    if (arguments.length > 2)
+    {
+      try
+      {
+        lastSequence = Long.parseLong(arguments[2]);
+        clientUI.display("SERVER MSG> Logged in as " + loginID + ", up to #" + arguments[2] + ".");
+      }
+      catch (NumberFormatException e) {}
+    }
+    loggedOn = true;
+  }
+
+  /**
+   * Handles the notice of a server shutting down on purpose: the
+   * client stops reconnecting, since the server is not coming back on
+   * its own, and keeps the sequence number of the last broadcast it was
+   * sent, if given, for when it logs in again.
+   *
+   * @param notice The notice, whose argument is the sequence number.
+   */
+  private void serverShuttingDown(Command notice)
+  {
+    setAutoReconnect(false);
+    String sequence = notice.getArguments();
+    if (sequence.isEmpty())
+    {
+      clientUI.display("SERVER MSG> Server shutting down.");
+      return;
+    }
+    try
+    {
+      lastSequence = Long.parseLong(sequence);
+    }
+    catch (NumberFormatException e) {}
+    clientUI.display("SERVER MSG> Server shutting down, up to #" + sequence + ".");
+  }
+
+  /**
+   * This method handles all data coming from the UI.  A command known
+   * to the client is carried out locally; any other command is sent to
+   * the server, already parsed.
    *
    * @param message The message from the UI.    
    */
@@ -75,7 +251,13 @@ public class ChatClient extends AbstractClient
     try
     {
     	if (message.startsWith("#")) {
-    		handleCommand(message);
+    		Command command = Command.parse(message);
+    		if (command == null) {
+    			clientUI.display("Error: Invalid command.");
+    		}
+    		else if (!getCommands().dispatch(clientUI, command)) {
+    			sendToServer(command);
+    		}
     	}
     	else {
     		sendToServer(message);
@@ -88,92 +270,156 @@ public class ChatClient extends AbstractClient
       quit();
     }
   }
-  
-  private void handleCommand(String command) {
-	  if (command.equals("#quit")) {
-		  quit();
-	  }
-	  if (command.equals("#logoff")) {
-		  if (isConnected()) {
-			  try {
-				  closeConnection();
-				  System.out.println("Disconnected from server");
-			  } catch (IOException e) {
-				  System.out.println("Error logging off: " + e.getMessage());
-			  }
-		  }
-		  else {
-			  System.out.println("Error: client is not connected");
+
+  /**
+   * @return The commands carried out by the client itself.  New
+   *         commands can be registered at any time.
+   */
+  public CommandRegistry<ChatIF> getCommands()
+  {
+    registerCommands();
+    return commands;
+  }
+
+  /**
+   * Registers the commands carried out by the client itself, the first
+   * time it is called.
+   */
+  private void registerCommands()
+  {
+    if (commandsRegistered)
+      return;
+
+    synchronized (commands)
+    {
+      if (!commandsRegistered)
+      {
+        registerBuiltinCommands();
+        commandsRegistered = true;
+      }
+    }
+  }
+
+  /**
+   * Registers the commands typed by the user that the client carries out
+   * without the server.
+   */
+  private void registerBuiltinCommands()
+  {
+    commands.register("quit", (ui, command) -> quit());
+    commands.register("logoff", this::logoffCommand);
+    commands.register("sethost", this::setHostCommand);
+    commands.register("setport", this::setPortCommand);
+    commands.register("login", this::loginCommand);
+    commands.register("gethost",
+      (ui, command) -> ui.display("Current host: " + getHost()));
+    commands.register("getport",
+      (ui, command) -> ui.display("Current port: " + getPort()));
+  }
+
+  /**
+   * Handles #logoff: closes the connection, or stops reconnecting,
+   * without quitting.
+   */
+  private void logoffCommand(ChatIF ui, Command command) {
+	  if (isConnected() || isReconnecting()) {
+		  try {
+			  closeConnection();
+			  ui.display("Disconnected from server");
+		  } catch (IOException e) {
+			  ui.display("Error logging off: " + e.getMessage());
 		  }
 	  }
-	  if (command.equals("#sethost")) {
-		  String[] commandFormatted = command.trim().split(" ");
-          if (commandFormatted.length > 1) {
-              if (!isConnected()) {
-                  setHost(commandFormatted[1]);
-                  System.out.println("Host set to: " + commandFormatted[1]);
-              }
-              else {
-                  System.out.println("Error: Must log off before setting host.");
-              }
-          } else {
-              System.out.println("Error: No host specified.");
-          }
+	  else {
+		  ui.display("Error: client is not connected");
+	  }
+  }
+
+  /**
+   * Handles #sethost &lt;host&gt;, while logged off.
+   */
+  private void setHostCommand(ChatIF ui, Command command) {
+	  String host = command.getArguments();
+	  if (host.isEmpty()) {
+		  ui.display("Error: No host specified.");
+	  }
+	  else if (isConnected()) {
+		  ui.display("Error: Must log off before setting host.");
 	  }
-	  if (command.equals("#setport")) {
-		  String[] commandFormatted = command.trim().split(" ");
-          if (commandFormatted.length > 1) {
-              try {
-                  if (!isConnected()) {
-                      setPort(Integer.parseInt(commandFormatted[1]));
-                      System.out.println("Port set to: " + Integer.parseInt(commandFormatted[1]));
-                  } else {
-                      System.out.println("Error: Must log off before setting port.");
-                  }
-              } catch (NumberFormatException e) {
-                  System.out.println("Error: Invalid port number.");
-              }
-          } else {
-              System.out.println("Error: No port specified.");
-          }
-		  
+	  else {
+		  setHost(host);
+		  lastSequence = -1;
+		  resumeToken = null;
+		  ui.display("Host set to: " + host);
 	  }
-	  if (command.equals("#login")) {
-		  if (isConnected()) {
-			  System.out.println("Error: client already connected");
-		  }
-		  else {
-			  try {
-				  openConnection();
-				  System.out.println("Connected to server at " + getHost() + " with port " + getPort());
-			  } catch (IOException e) {
-				  System.out.println("Error connecting to server: " + e.getMessage());
-			  }
+  }
+
+  /**
+   * Handles #setport &lt;port&gt;, while logged off.
+   */
+  private void setPortCommand(ChatIF ui, Command command) {
+	  if (command.getArguments().isEmpty()) {
+		  ui.display("Error: No port specified.");
+		  return;
+	  }
+	  try {
+		  int port = Integer.parseInt(command.getArguments());
+		  if (!isConnected()) {
+			  setPort(port);
+			  lastSequence = -1;
+			  resumeToken = null;
+			  ui.display("Port set to: " + port);
+		  } else {
+			  ui.display("Error: Must log off before setting port.");
 		  }
+	  } catch (NumberFormatException e) {
+		  ui.display("Error: Invalid port number.");
 	  }
-	  if (command.equals("#gethost")) {
-		  System.out.println("Current host: " + getHost());
+  }
+
+  /**
+   * Handles #login: connects to the server, which logs the client in.
+   */
+  private void loginCommand(ChatIF ui, Command command) {
+	  if (isConnected()) {
+		  ui.display("Error: client already connected");
 	  }
-	  if (command.equals("#getport")) {
-		  System.out.println("Current port: " + getPort());
+	  else {
+		  try {
+			  // A server that shut down stopped the reconnections.
+			  setAutoReconnect(true);
+			  openConnection();
+			  ui.display("Connected to server at " + getHost() + " with port " + getPort());
+		  } catch (IOException e) {
+			  ui.display("Error connecting to server: " + e.getMessage());
+		  }
 	  }
   }
   
   /**
-   * This method is called after a successful connection to the server.
-   * It automatically sends the #login <loginId> message to the server.
+   * This method is called after a successful connection to the server,
+   * including each time the client reconnects.  It automatically sends
+   * the #login &lt;loginId&gt; message to the server, or #resume
+   * &lt;loginId&gt; &lt;token&gt; if it logged in before, followed by the
+   * sequence number of the last broadcast received, if known.
    */
   @Override
   protected void connectionEstablished() {
+    long sequence = lastSequence;
+    String token = resumeToken;
+    String arguments = (token == null) ? loginID : loginID + " " + token;
+    loggedOn = false;
     try {
-      sendToServer("#login " + loginID);
+      sendToServer(new Command(token == null ? "login" : "resume",
+        sequence < 0 ? arguments : arguments + " " + sequence));
     } catch (IOException e) {
       clientUI.display("Error: Unable to send login message to server.");
     }
   }
   
   /**
-   * This method terminates the client.
+   * This method terminates the client.  What becomes of the program is
+   * up to the user interface.
    */
   public void quit()
   {
@@ -182,7 +428,7 @@ public class ChatClient extends AbstractClient
       closeConnection();
     }
     catch(IOException e) {}
-    System.exit(0);
+    clientUI.terminate();
   }
   
   /**
@@ -195,6 +441,10 @@ public class ChatClient extends AbstractClient
    */
   @Override
   protected void connectionException(Exception exception) {
+	  if (isAutoReconnect() && loggedOn) {
+		  clientUI.display("Connection to the server lost, reconnecting");
+		  return;
+	  }
 	  clientUI.display("The server has shut down");
 	  quit();
   }
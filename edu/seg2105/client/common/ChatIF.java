@@ -18,4 +18,11 @@ public interface ChatIF
    * a UI.
    */
   public abstract void display(String message);
+
+  /**
+   * Method called when the client quits, once its connection is
+   * closed.  A console ends the program; the default does nothing,
+   * so that many clients can live in one program.
+   */
+  public default void terminate() {}
 }
@@ -0,0 +1,191 @@
+package edu.seg2105.client.loadgen;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A headless load generator for the chat server.  It runs many simulated
+ * users in one JVM, each a <code>ChatClient</code> on virtual threads,
+ * and reports the end-to-end latency of the broadcasts they receive.
+ * <p>
+ * Usage: <code>java edu.seg2105.client.loadgen.LoadGenerator
+ * [--option=value]...</code> with the options:
+ * <ul>
+ * <li><code>host</code>, <code>port</code>: the server, localhost:5555
+ * by default;</li>
+ * <li><code>users</code>: the number of simulated users, 100;</li>
+ * <li><code>prefix</code>: the prefix of their login ids, "user";</li>
+ * <li><code>rate</code>: the messages sent per second by each user, 1;</li>
+ * <li><code>think</code>: the mean of a random think time added between
+ * messages, in ms, 0;</li>
+ * <li><code>size</code>: the length of each message, 64;</li>
+ * <li><code>rampup</code>: the seconds over which users connect, 5;</li>
+ * <li><code>warmup</code>: the seconds before measuring, 5;</li>
+ * <li><code>duration</code>: the seconds measured, 30;</li>
+ * <li><code>codec</code>: binary, java or legacy, binary; the server must
+ * accept Java serialization for the last two;</li>
+ * <li><code>report</code>: the file the summary is written to, besides
+ * the console, loadgen-report.txt.</li>
+ * </ul>
+ *
+ * @see SimulatedUser
+ */
+public class LoadGenerator
+{
+  //Class methods ***************************************************
+
+  /**
+   * Runs the load generator.
+   *
+   * @param args The options.
+   */
+  public static void main(String[] args) throws Exception
+  {
+    Settings settings;
+    try
+    {
+      settings = Settings.parse(args);
+    }
+    catch (IllegalArgumentException e)
+    {
+      System.out.println("Error: " + e.getMessage());
+      System.out.println("Usage: LoadGenerator [--host=h] [--port=p]"
+        + " [--users=n] [--prefix=id] [--rate=r] [--think=ms] [--size=n]"
+        + " [--rampup=s] [--warmup=s] [--duration=s]"
+        + " [--codec=binary|java|legacy] [--report=file]");
+      return;
+    }
+
+    LoadReport report = new LoadReport();
+    List<SimulatedUser> users = run(settings, report);
+
+    try (PrintWriter out = new PrintWriter(new FileWriter(settings.reportFile)))
+    {
+      report.write(out, settings, settings.duration);
+    }
+    report.write(new PrintWriter(System.out), settings, settings.duration);
+
+    for (SimulatedUser user : users)
+    {
+      user.stop();
+    }
+  }
+
+  /**
+   * Connects the users, lets them send during the warm-up and the
+   * measurement, and returns them still running.
+   *
+   * @param settings The settings of the run.
+   * @param report Where the results are gathered.
+   * @return the users.
+   */
+  static List<SimulatedUser> run(Settings settings, LoadReport report)
+    throws IOException, InterruptedException
+  {
+    List<SimulatedUser> users = new ArrayList<SimulatedUser>();
+    long rampStep = settings.rampUp * 1000000000L / settings.users;
+    long start = System.nanoTime();
+    for (int i = 0; i < settings.users; i++)
+    {
+      SimulatedUser user = new SimulatedUser(settings.loginPrefix + i,
+        settings, report);
+      users.add(user);
+      if (user.connect())
+      {
+        Thread.ofVirtual().name("user-" + i).start(user);
+      }
+
+      long wait = start + (i + 1) * rampStep - System.nanoTime();
+      if (wait > 0)
+      {
+        Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+      }
+    }
+
+    Thread.sleep(settings.warmup * 1000L);
+    report.startMeasurement();
+    Thread.sleep(settings.duration * 1000L);
+    return users;
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * The settings of a run.
+   */
+  static final class Settings
+  {
+    String host = "localhost";
+    int port = 5555;
+    int users = 100;
+    String loginPrefix = "user";
+    double rate = 1;
+    long thinkTime = 0;
+    int messageSize = 64;
+    int rampUp = 5;
+    int warmup = 5;
+    int duration = 30;
+    String codec = "binary";
+    String reportFile = "loadgen-report.txt";
+
+    /**
+     * Parses options of the form <code>--name=value</code>.
+     *
+     * @param args The options.
+     * @return the settings.
+     * @exception IllegalArgumentException if an option is invalid.
+     */
+    static Settings parse(String[] args)
+    {
+      Settings settings = new Settings();
+      for (String arg : args)
+      {
+        int equals = arg.indexOf('=');
+        if (!arg.startsWith("--") || equals < 0)
+        {
+          throw new IllegalArgumentException("invalid option " + arg);
+        }
+
+        String name = arg.substring(2, equals);
+        String value = arg.substring(equals + 1);
+        try
+        {
+          switch (name)
+          {
+            case "host": settings.host = value; break;
+            case "port": settings.port = Integer.parseInt(value); break;
+            case "users": settings.users = Integer.parseInt(value); break;
+            case "prefix": settings.loginPrefix = value; break;
+            case "rate": settings.rate = Double.parseDouble(value); break;
+            case "think": settings.thinkTime = Long.parseLong(value); break;
+            case "size": settings.messageSize = Integer.parseInt(value); break;
+            case "rampup": settings.rampUp = Integer.parseInt(value); break;
+            case "warmup": settings.warmup = Integer.parseInt(value); break;
+            case "duration": settings.duration = Integer.parseInt(value); break;
+            case "codec": settings.codec = value; break;
+            case "report": settings.reportFile = value; break;
+            default:
+              throw new IllegalArgumentException("unknown option " + name);
+          }
+        }
+        catch (NumberFormatException e)
+        {
+          throw new IllegalArgumentException("invalid value for " + name);
+        }
+      }
+
+      if (settings.users < 1 || settings.rate < 0 || settings.thinkTime < 0
+        || settings.messageSize < 0 || settings.rampUp < 0
+        || settings.warmup < 0 || settings.duration < 1)
+      {
+        throw new IllegalArgumentException("values out of range");
+      }
+      if (!settings.codec.matches("binary|java|legacy"))
+      {
+        throw new IllegalArgumentException("unknown codec " + settings.codec);
+      }
+      return settings;
+    }
+  }
+}
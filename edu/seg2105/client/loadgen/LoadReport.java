@@ -0,0 +1,156 @@
+package edu.seg2105.client.loadgen;
+
+import java.io.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import ocsf.common.LatencyHistogram;
+
+/**
+ * Gathers the results of a load generation run and writes its summary.
+ * Every method may be called by many threads at once.
+ *
+ * @see LoadGenerator
+ */
+class LoadReport
+{
+  //Instance variables **********************************************
+
+  /**
+   * The latency of every delivery of a broadcast, to any user.
+   */
+  private final LatencyHistogram broadcastLatency = new LatencyHistogram();
+
+  /**
+   * The latency of the delivery of each message to its own sender.
+   */
+  private final LatencyHistogram echoLatency = new LatencyHistogram();
+
+  private final LongAdder usersConnected = new LongAdder();
+  private final LongAdder connectFailures = new LongAdder();
+  private final LongAdder usersLost = new LongAdder();
+  private final LongAdder messagesSent = new LongAdder();
+  private final LongAdder sendFailures = new LongAdder();
+  private final LongAdder serverErrors = new LongAdder();
+
+  /**
+   * The first error reported by the server, or null.
+   */
+  private volatile String firstServerError;
+
+  //Instance methods ************************************************
+
+  void userConnected()
+  {
+    usersConnected.increment();
+  }
+
+  void connectFailed()
+  {
+    connectFailures.increment();
+  }
+
+  void userLost()
+  {
+    usersLost.increment();
+  }
+
+  void messageSent()
+  {
+    messagesSent.increment();
+  }
+
+  void sendFailed()
+  {
+    sendFailures.increment();
+  }
+
+  void serverError(String message)
+  {
+    serverErrors.increment();
+    if (firstServerError == null)
+    {
+      firstServerError = message;
+    }
+  }
+
+  /**
+   * Records the delivery of a message.
+   *
+   * @param latency The time from sending to delivery, in nanoseconds.
+   * @param own true if the message was delivered to its sender.
+   */
+  void messageDelivered(long latency, boolean own)
+  {
+    broadcastLatency.record(latency);
+    if (own)
+    {
+      echoLatency.record(latency);
+    }
+  }
+
+  /**
+   * Forgets the messages and latencies recorded so far, at the end of
+   * the warm-up.
+   */
+  void startMeasurement()
+  {
+    messagesSent.reset();
+    sendFailures.reset();
+    broadcastLatency.reset();
+    echoLatency.reset();
+  }
+
+  /**
+   * Writes the summary of the run.
+   *
+   * @param out Where to write.
+   * @param settings The settings of the run.
+   * @param seconds The duration of the measurement, in seconds.
+   */
+  void write(PrintWriter out, LoadGenerator.Settings settings,
+    double seconds)
+  {
+    out.println("SimpleChat load generation report");
+    out.println("=================================");
+    out.printf("server            %s:%d (%s codec)%n", settings.host,
+      settings.port, settings.codec);
+    out.printf("users             %d (%s0 .. %s%d)%n", settings.users,
+      settings.loginPrefix, settings.loginPrefix, settings.users - 1);
+    out.printf("rate              %.2f messages/s per user, think time %d ms%n",
+      settings.rate, settings.thinkTime);
+    out.printf("message size      %d characters%n", settings.messageSize);
+    out.printf("measured          %.1f s after %d s of warm-up%n", seconds,
+      settings.warmup);
+    out.println();
+    out.printf("connected         %d%n", usersConnected.sum());
+    out.printf("connect failures  %d%n", connectFailures.sum());
+    out.printf("connections lost  %d%n", usersLost.sum());
+    out.printf("messages sent     %d (%d failed)%n", messagesSent.sum(),
+      sendFailures.sum());
+    out.printf("deliveries        %d (%.1f/s)%n", broadcastLatency.getCount(),
+      broadcastLatency.getCount() / seconds);
+    out.printf("server errors     %d%s%n", serverErrors.sum(),
+      firstServerError == null ? "" : " (first: " + firstServerError + ")");
+    out.println();
+    writeLatency(out, "broadcast latency", broadcastLatency);
+    writeLatency(out, "echo latency", echoLatency);
+    out.flush();
+  }
+
+  /**
+   * Writes the percentiles of a histogram, in milliseconds.
+   */
+  private static void writeLatency(PrintWriter out, String name,
+    LatencyHistogram histogram)
+  {
+    out.printf("%-17s mean %.3f ms", name, histogram.getMean() / 1e6);
+    for (double percentile : new double[] {50, 90, 99, 99.9})
+    {
+      out.printf(", p%s %.3f", percentile == 99.9 ? "99.9"
+        : String.valueOf((int) percentile),
+        histogram.getValueAtPercentile(percentile) / 1e6);
+    }
+    out.printf(", max %.3f ms (%d samples)%n", histogram.getMax() / 1e6,
+      histogram.getCount());
+  }
+}
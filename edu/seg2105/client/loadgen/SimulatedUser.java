@@ -0,0 +1,236 @@
+package edu.seg2105.client.loadgen;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import edu.seg2105.client.backend.ChatClient;
+import edu.seg2105.client.common.ChatIF;
+import ocsf.common.*;
+
+/**
+ * One simulated chat user: a <code>ChatClient</code> that logs in, then
+ * sends messages at the configured rate, and whose user interface records
+ * the latency of every message it receives.
+ * <p>
+ * Each message carries the time it was sent, so that its latency can be
+ * computed by every client that receives its broadcast.  The generator
+ * runs all users in one JVM, where <code>System.nanoTime</code> is
+ * comparable between threads.
+ *
+ * @see LoadGenerator
+ */
+class SimulatedUser implements ChatIF, Runnable
+{
+  //Class variables *************************************************
+
+  /**
+   * The marker that starts the text of every generated message.
+   */
+  static final String MARKER = "lg ";
+
+  //Instance variables **********************************************
+
+  /**
+   * The settings of the run.
+   */
+  private final LoadGenerator.Settings settings;
+
+  /**
+   * Where the results of the run are gathered.
+   */
+  private final LoadReport report;
+
+  /**
+   * The chat client of this user.
+   */
+  private final ChatClient client;
+
+  /**
+   * The prefix of the broadcast of this user's own messages.
+   */
+  private final String ownPrefix;
+
+  /**
+   * The padding from which messages are filled up to the configured
+   * size.
+   */
+  private final String padding;
+
+  /**
+   * Indicates if the user stopped sending, or lost its connection.
+   */
+  private volatile boolean stopped = false;
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs a user.  The connection is not opened.
+   *
+   * @param loginId The login id of the user.
+   * @param settings The settings of the run.
+   * @param report Where the results are gathered.
+   */
+  SimulatedUser(String loginId, LoadGenerator.Settings settings,
+    LoadReport report) throws IOException
+  {
+    this.settings = settings;
+    this.report = report;
+    this.client = new ChatClient(loginId, settings.host, settings.port,
+      this, false);
+    this.ownPrefix = loginId + "> " + MARKER;
+    this.padding = "x".repeat(Math.max(0, settings.messageSize));
+
+    client.setUseVirtualThreads(true);
+    // A user whose connection is lost is counted as such, not revived.
+    client.setAutoReconnect(false);
+    if (settings.codec.equals("legacy"))
+    {
+      client.setOfferedCodecs((MessageCodec[]) null);
+    }
+    else if (settings.codec.equals("java"))
+    {
+      client.setOfferedCodecs(new SerializationCodec());
+    }
+    else
+    {
+      client.setOfferedCodecs(new BinaryCodec());
+    }
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Connects, which makes the chat client log in.
+   *
+   * @return true if the user is connected.
+   */
+  boolean connect()
+  {
+    try
+    {
+      client.openConnection();
+      report.userConnected();
+      return true;
+    }
+    catch (IOException e)
+    {
+      report.connectFailed();
+      stopped = true;
+      return false;
+    }
+  }
+
+  /**
+   * Sends messages until the user is stopped or disconnected.
+   */
+  public void run()
+  {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long interval = settings.rate > 0
+      ? (long) (1000000000L / settings.rate) : 0;
+    long sequence = 0;
+
+    try
+    {
+      // Spread the first messages of the users over one interval.
+      sleep((long) (random.nextDouble() * interval));
+      while (!stopped && client.isConnected())
+      {
+        String header = MARKER + (sequence++) + " " + System.nanoTime() + " ";
+        String text = header + padding.substring(0,
+          Math.max(0, padding.length() - header.length()));
+        try
+        {
+          client.sendToServer(text);
+          report.messageSent();
+        }
+        catch (IOException e)
+        {
+          report.sendFailed();
+          break;
+        }
+
+        long think = settings.thinkTime > 0
+          ? (long) (-Math.log(1 - random.nextDouble())
+            * settings.thinkTime * 1000000L) : 0;
+        sleep(interval + think);
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Stops sending and disconnects.
+   */
+  void stop()
+  {
+    stopped = true;
+    try
+    {
+      client.closeConnection();
+    }
+    catch (IOException e) {}
+  }
+
+  /**
+   * This method overrides the method in the ChatIF interface.  Rather
+   * than showing the message, it records its latency.
+   *
+   * @param message The message received.
+   */
+  public void display(String message)
+  {
+    long now = System.nanoTime();
+    // The recent messages sent before the login is confirmed are not
+    // counted.
+    int start = message.indexOf("> " + MARKER);
+    if (start < 0 || !client.isLoggedOn())
+    {
+      if (message.startsWith("SERVER MSG> Error"))
+      {
+        report.serverError(message);
+      }
+      return;
+    }
+
+    // The text is "lg <sequence> <sent> <padding>".
+    int sequenceStart = start + 2 + MARKER.length();
+    int sentStart = message.indexOf(' ', sequenceStart) + 1;
+    int sentEnd = message.indexOf(' ', sentStart);
+    if (sentStart <= 0 || sentEnd < 0)
+    {
+      return;
+    }
+
+    long latency = now - Long.parseLong(message, sentStart, sentEnd, 10);
+    report.messageDelivered(latency, message.startsWith(ownPrefix));
+  }
+
+  /**
+   * This method overrides the method in the ChatIF interface.  The user
+   * stops when its client quits, and the rest of the run goes on.
+   */
+  public void terminate()
+  {
+    if (!stopped)
+    {
+      stopped = true;
+      report.userLost();
+    }
+  }
+
+  /**
+   * Sleeps for a number of nanoseconds.
+   */
+  private static void sleep(long nanos) throws InterruptedException
+  {
+    if (nanos > 0)
+    {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+    }
+  }
+}
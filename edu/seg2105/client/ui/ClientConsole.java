@@ -107,6 +107,16 @@ public class ClientConsole implements ChatIF
     System.out.println("> " + message);
   }
 
+  /**
+   * This method overrides the method in the ChatIF interface.  The
+   * console is of no use once the client has quit, so the program
+   * ends.
+   */
+  public void terminate() 
+  {
+    System.exit(0);
+  }
+
   
   //Class methods ***************************************************
   
@@ -0,0 +1,155 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.Arrays;
+
+import ocsf.server.ConnectionToClient;
+
+/**
+ * A chat room: a named group of clients that receive the messages sent
+ * to it.  Messages are sent to the members far more often than members
+ * come and go, so the members are kept in an array that is copied on
+ * every change and read without locking.
+ *
+ * @see ChannelIndex
+ */
+public class Channel
+{
+  //Class variables *************************************************
+
+  /**
+   * The members of a channel nobody has joined yet.
+   */
+  private static final ConnectionToClient[] NO_MEMBERS = new ConnectionToClient[0];
+
+  //Instance variables **********************************************
+
+  /**
+   * The name of the channel.
+   */
+  private final String name;
+
+  /**
+   * The members of the channel.  Never modified once published.
+   */
+  private volatile ConnectionToClient[] members = NO_MEMBERS;
+
+  /**
+   * The recent messages of the channel, or null if none are kept.
+   */
+  private final MessageHistory history;
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates a channel with no members.
+   *
+   * @param name The name of the channel.
+   * @param history The recent messages of the channel, or null to keep
+   *          none.
+   */
+  Channel(String name, MessageHistory history)
+  {
+    this.name = name;
+    this.history = history;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * @return The name of the channel.
+   */
+  public String getName()
+  {
+    return name;
+  }
+
+  /**
+   * Returns the members of the channel when this method is called.
+   * The array is shared and must not be modified.
+   *
+   * @return The members.
+   */
+  public ConnectionToClient[] getMembers()
+  {
+    return members;
+  }
+
+  /**
+   * @return The recent messages of the channel, or null if none are
+   *         kept.  Messages are only added while holding the lock on
+   *         the channel.
+   */
+  public MessageHistory getHistory()
+  {
+    return history;
+  }
+
+  /**
+   * @return The number of members.
+   */
+  public int size()
+  {
+    return members.length;
+  }
+
+  /**
+   * Adds a member.  Called by the index while it holds the lock on
+   * this channel's entry.
+   *
+   * @param client The new member.
+   * @return false if the client is already a member.
+   */
+  boolean add(ConnectionToClient client)
+  {
+    ConnectionToClient[] current = members;
+    if (indexOf(current, client) >= 0)
+      return false;
+
+    ConnectionToClient[] updated = Arrays.copyOf(current, current.length + 1);
+    updated[current.length] = client;
+    members = updated;
+    return true;
+  }
+
+  /**
+   * Removes a member.  Called by the index while it holds the lock on
+   * this channel's entry.
+   *
+   * @param client The member.
+   * @return false if the client is not a member.
+   */
+  boolean remove(ConnectionToClient client)
+  {
+    ConnectionToClient[] current = members;
+    int index = indexOf(current, client);
+    if (index < 0)
+      return false;
+
+    ConnectionToClient[] updated = new ConnectionToClient[current.length - 1];
+    System.arraycopy(current, 0, updated, 0, index);
+    System.arraycopy(current, index + 1, updated, index, updated.length - index);
+    members = updated;
+    return true;
+  }
+
+  /**
+   * @return The name of the channel, preceded by #.
+   */
+  public String toString()
+  {
+    return "#" + name;
+  }
+
+  /**
+   * @return The position of a client among some members, or -1.
+   */
+  private static int indexOf(ConnectionToClient[] members, ConnectionToClient client)
+  {
+    for (int i = 0; i < members.length; i++)
+    {
+      if (members[i] == client)
+        return i;
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,169 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ocsf.server.ConnectionToClient;
+
+/**
+ * The channels of a server, by name.  A channel is created when its
+ * first member joins and removed when its last member leaves.  Joining
+ * and leaving update the channel while holding the lock on its entry in
+ * the index, so a client can never join a channel that is being
+ * removed; sending to a channel takes no lock at all.
+ */
+public class ChannelIndex
+{
+  //Class variables *************************************************
+
+  /**
+   * The longest name a channel can have.
+   */
+  final public static int MAX_NAME_LENGTH = 32;
+
+  /**
+   * The default number of recent messages kept for each channel.
+   */
+  final public static int DEFAULT_HISTORY_MESSAGES = 50;
+
+  /**
+   * The default number of bytes of recent messages kept for each
+   * channel.
+   */
+  final public static int DEFAULT_HISTORY_BYTES = 64 * 1024;
+
+  //Instance variables **********************************************
+
+  /**
+   * The channels, by name.
+   */
+  private final ConcurrentHashMap<String, Channel> channels =
+    new ConcurrentHashMap<String, Channel>();
+
+  /**
+   * The limits of the history of channels created from now on.  No
+   * history is kept when the number of messages is 0.
+   */
+  private volatile int historyMessages = DEFAULT_HISTORY_MESSAGES;
+  private volatile int historyBytes = DEFAULT_HISTORY_BYTES;
+
+  //Instance methods ************************************************
+
+  /**
+   * Tells if a name can be given to a channel: it must be 1 to
+   * MAX_NAME_LENGTH letters, digits, dashes or underscores.
+   *
+   * @param name The name.
+   * @return true if the name is valid.
+   */
+  public static boolean isValidName(String name)
+  {
+    if (name.isEmpty() || name.length() > MAX_NAME_LENGTH)
+      return false;
+    for (int i = 0; i < name.length(); i++)
+    {
+      char c = name.charAt(i);
+      if (!Character.isLetterOrDigit(c) && c != '-' && c != '_')
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Sets how many recent messages are kept for each channel created from
+   * now on.  The oldest messages are evicted when either limit is
+   * reached.
+   *
+   * @param messages The largest number of messages, 0 to keep none.
+   * @param bytes The largest number of bytes, only 0 if no message is
+   *          kept.
+   */
+  public void setHistoryLimits(int messages, int bytes)
+  {
+    if (messages < 0 || bytes < 0 || (messages > 0 && bytes == 0))
+      throw new IllegalArgumentException("invalid history limits");
+
+    historyBytes = bytes;
+    historyMessages = messages;
+  }
+
+  /**
+   * @return The largest number of messages kept for a new channel.
+   */
+  public int getHistoryMessages()
+  {
+    return historyMessages;
+  }
+
+  /**
+   * @return The largest number of bytes kept for a new channel.
+   */
+  public int getHistoryBytes()
+  {
+    return historyBytes;
+  }
+
+  /**
+   * Adds a client to a channel, creating the channel if needed.
+   *
+   * @param name The name of the channel.
+   * @param client The client.
+   * @return The channel.
+   */
+  public Channel join(String name, ConnectionToClient client)
+  {
+    if (!isValidName(name))
+      throw new IllegalArgumentException("invalid channel name: " + name);
+
+    return channels.compute(name, (key, channel) ->
+    {
+      if (channel == null)
+      {
+        int messages = historyMessages;
+        channel = new Channel(key, messages == 0 ? null : new MessageHistory(messages, historyBytes));
+      }
+      channel.add(client);
+      return channel;
+    });
+  }
+
+  /**
+   * Removes a client from a channel, and the channel from the index if
+   * the client was its last member.
+   *
+   * @param channel The channel.
+   * @param client The client.
+   * @return false if the client was not a member.
+   */
+  public boolean leave(Channel channel, ConnectionToClient client)
+  {
+    boolean[] removed = new boolean[1];
+    channels.computeIfPresent(channel.getName(), (key, current) ->
+    {
+      if (current != channel)
+        return current;
+      removed[0] = channel.remove(client);
+      return channel.size() == 0 ? null : channel;
+    });
+    return removed[0];
+  }
+
+  /**
+   * @param name The name of a channel.
+   * @return The channel, or null if nobody is in it.
+   */
+  public Channel get(String name)
+  {
+    return channels.get(name);
+  }
+
+  /**
+   * @return The channels that have members, sorted by name.
+   */
+  public List<Channel> getChannels()
+  {
+    List<Channel> list = new ArrayList<Channel>(channels.values());
+    list.sort(Comparator.comparing(Channel::getName));
+    return list;
+  }
+}
@@ -5,8 +5,17 @@ package edu.seg2105.edu.server.backend;
 
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 
 import edu.seg2105.client.common.ChatIF;
+import edu.seg2105.edu.server.cluster.*;
+import edu.seg2105.edu.server.journal.Journal;
+import edu.seg2105.edu.server.log.*;
+import ocsf.common.*;
 import ocsf.server.*;
 
 /**
@@ -27,6 +36,88 @@ public class EchoServer extends AbstractServer
    * the display method in the client.
    */
   ChatIF serverUI; 
+
+  /**
+   * The log of the server's activity.  Logging never waits for the
+   * console or the log file, so it can be done while handling messages.
+   */
+  private final AsyncLog log = AsyncLog.create();
+
+  /**
+   * The file the log is also written to, or null.
+   */
+  private RollingFileSink logFile;
+
+  /**
+   * The commands clients can send, by name.
+   */
+  private final CommandRegistry<ConnectionToClient> clientCommands =
+    new CommandRegistry<ConnectionToClient>();
+
+  /**
+   * The commands of the server console, by name.
+   */
+  private final CommandRegistry<ChatIF> consoleCommands =
+    new CommandRegistry<ChatIF>();
+
+  /**
+   * Indicates if the commands of the server have been registered.  They
+   * are registered when first needed rather than by the constructor,
+   * which must not hand out references to a server not yet constructed.
+   */
+  private volatile boolean commandsRegistered = false;
+
+  /**
+   * The chat rooms clients have joined.
+   */
+  private final ChannelIndex channels = new ChannelIndex();
+
+  /**
+   * The journal of the messages broadcast to all clients, or null.
+   */
+  private volatile Journal journal;
+
+  /**
+   * The recent messages broadcast to all clients, sent to clients as
+   * they log in, or null if none are kept.
+   */
+  private volatile MessageHistory lobbyHistory = new MessageHistory(
+    ChannelIndex.DEFAULT_HISTORY_MESSAGES, ChannelIndex.DEFAULT_HISTORY_BYTES);
+
+  /**
+   * Held while a message is added to the history and the journal, so
+   * that the history has a single writer and the journal gives sequence
+   * numbers in the order of the history.  The message is sent once the
+   * lock is released, so that a slow client holding up the sending only
+   * holds up its sender.
+   */
+  private final Object broadcastLock = new Object();
+
+  /**
+   * The sequence number of the last broadcast journaled when each
+   * client logged off, by login id.
+   */
+  private final ConcurrentHashMap<String, Long> lastSeen =
+    new ConcurrentHashMap<String, Long>();
+
+  /**
+   * The node of the cluster this server belongs to, or null.
+   */
+  private volatile ClusterNode cluster;
+
+  /**
+   * The HTTP endpoint publishing the server's metrics, or null if
+   * they are not exported.
+   */
+  private PrometheusEndpoint metricsEndpoint;
+
+  /**
+   * When #stats was last run, and the message counts it displayed,
+   * used to compute the rates displayed by the next one.
+   */
+  private long lastStatsTime = System.nanoTime();
+  private long lastStatsReceived;
+  private long lastStatsSent;
 	  
 	  
   //Class variables *************************************************
@@ -35,6 +126,40 @@ public class EchoServer extends AbstractServer
    * The default port to listen on.
    */
   final public static int DEFAULT_PORT = 5555;
+
+  /**
+   * The channel a client is in.  Read on every chat message, so it is
+   * kept in a session slot.
+   */
+  private static final SessionKey<Channel> CHANNEL = new SessionKey<Channel>("channel");
+
+  /**
+   * The sequence number of the last broadcast journaled when a client
+   * connected.  The client receives the later ones as they are sent.
+   */
+  private static final SessionKey<Long> CONNECTED_AT = new SessionKey<Long>("connectedAt");
+
+  /**
+   * The token a client was given when it logged in, which lets it take
+   * over its login id from this connection once the connection is lost.
+   */
+  private static final SessionKey<String> RESUME_TOKEN = new SessionKey<String>("resumeToken");
+
+  /**
+   * The source of the resume tokens, which must not be guessed.
+   */
+  private static final SecureRandom TOKENS = new SecureRandom();
+
+  /**
+   * The largest number of messages replayed to a client at once.
+   */
+  final public static int MAX_REPLAY = 1000;
+
+  /**
+   * How long the server waits, when it quits, for the messages queued
+   * for its clients to be written, in milliseconds.
+   */
+  final public static long SHUTDOWN_TIMEOUT = 5000;
   
   //Constructors ****************************************************
   
@@ -44,17 +169,440 @@ public class EchoServer extends AbstractServer
    * @param port The port number to connect on.
    * @paraam serverUI The serverUI needed for function
    */
+  // The settings below are final methods of AbstractServer, which only
+  // store their value; nothing else sees the server before it is built.
+  @SuppressWarnings("this-escape")
   public EchoServer(int port, ChatIF serverUI)  throws IOException
   {
     super(port);
     this.serverUI = serverUI;
+    log.addSink(new ConsoleSink(serverUI));
+
+    // Each client only touches its own connection state, so the
+    // messages of different clients can be handled in parallel.
+    setDispatchMode(DispatchMode.CONCURRENT);
+
+    // Clients that vanished without closing their connection, after a
+    // network failure for instance, are dropped after a minute.  Those
+    // using object streams cannot answer heartbeats, so they are dropped
+    // after a silent minute too, as are those that never finish their
+    // handshake.
+    setHeartbeatInterval(20000);
+    setIdleTimeout(60000);
   }
 
   
   //Instance methods ************************************************
+
+  /**
+   * @return The log of the server's activity.
+   */
+  public AsyncLog getLog()
+  {
+    return log;
+  }
+
+  /**
+   * Also writes the log to a file, rolled when it grows too large.
+   * Replaces the file the log was written to, if any.
+   *
+   * @param file The file, or null to stop writing the log to a file.
+   */
+  public synchronized void setLogFile(Path file) throws IOException
+  {
+    RollingFileSink sink = (file == null) ? null : new RollingFileSink(file);
+    if (logFile != null)
+    {
+      log.removeSink(logFile);
+    }
+    logFile = sink;
+    if (sink != null)
+    {
+      log.addSink(sink);
+    }
+  }
+
+  /**
+   * Publishes the server's metrics in the Prometheus text format at
+   * http://127.0.0.1:port/metrics.
+   *
+   * @param port The port of the HTTP endpoint, 0 for any free port.
+   * @return The port the endpoint listens on.
+   */
+  public synchronized int exportMetrics(int port) throws IOException
+  {
+    if (metricsEndpoint == null)
+    {
+      metricsEndpoint = new PrometheusEndpoint(this);
+    }
+    metricsEndpoint.start(port);
+    return metricsEndpoint.getPort();
+  }
   
+  /**
+   * @return The commands clients can send.  New commands can be
+   *         registered at any time.
+   */
+  public CommandRegistry<ConnectionToClient> getClientCommands()
+  {
+    registerCommands();
+    return clientCommands;
+  }
+
+  /**
+   * @return The commands that can be typed on the server console.  New
+   *         commands can be registered at any time.
+   */
+  public CommandRegistry<ChatIF> getConsoleCommands()
+  {
+    registerCommands();
+    return consoleCommands;
+  }
+
+  /**
+   * Journals the messages broadcast to all clients in a directory, so
+   * that clients logging in again are sent those they missed.  Replaces
+   * the journal kept so far, if any.
+   *
+   * @param directory The directory of the journal, or null to stop
+   *          keeping one.
+   */
+  public synchronized void setJournal(Path directory) throws IOException
+  {
+    Journal opened = (directory == null) ? null : new Journal(directory);
+    Journal previous;
+    synchronized (broadcastLock)
+    {
+      previous = journal;
+      journal = opened;
+      // Sequence numbers of the previous journal mean nothing to the new one.
+      lastSeen.clear();
+      for (ConnectionToClient client : getClientConnections())
+      {
+        client.setAttribute(CONNECTED_AT, opened == null ? null : opened.getLastSequence());
+      }
+    }
+    if (previous != null)
+    {
+      previous.close();
+    }
+  }
+
+  /**
+   * @return The journal of the broadcasts, or null if none is kept.
+   */
+  public Journal getJournal()
+  {
+    return journal;
+  }
+
+  /**
+   * Sets how many recent messages are kept for the clients that log in,
+   * and for each channel created from now on.  The oldest messages are
+   * evicted when either limit is reached.
+   *
+   * @param messages The largest number of messages, 0 to keep none.
+   * @param bytes The largest number of bytes of messages.
+   */
+  public void setHistoryLimits(int messages, int bytes)
+  {
+    channels.setHistoryLimits(messages, bytes);
+    synchronized (broadcastLock)
+    {
+      lobbyHistory = (messages == 0) ? null : new MessageHistory(messages, bytes);
+    }
+  }
+
+  /**
+   * Makes this server a node of a cluster, whose other nodes relay the
+   * messages of their clients to the clients of this one and back.
+   * Peers are then added to the node returned.  Replaces the node this
+   * server was, if any.
+   *
+   * @param nodeId The id of this server, unique in the cluster.
+   * @param port The port to listen on for the links of the other nodes.
+   * @return The node.
+   */
+  public synchronized ClusterNode joinCluster(String nodeId, int port) throws IOException
+  {
+    leaveCluster();
+    ClusterNode node = new ClusterNode(nodeId, port, this::messageRelayed, log);
+    node.listen();
+    cluster = node;
+    return node;
+  }
+
+  /**
+   * Leaves the cluster this server belongs to, if any.
+   */
+  public synchronized void leaveCluster() throws IOException
+  {
+    ClusterNode node = cluster;
+    cluster = null;
+    if (node != null)
+    {
+      node.shutdown();
+    }
+  }
+
+  /**
+   * @return The node of the cluster this server belongs to, or null.
+   */
+  public ClusterNode getCluster()
+  {
+    return cluster;
+  }
+
+  /**
+   * Delivers a message relayed by another node of the cluster to the
+   * clients of this one.  Messages to a channel only reach its members
+   * here, if it has any.
+   *
+   * @param origin The node the message was sent from.
+   * @param target ClusterNode.ALL_CLIENTS or the name of a channel.
+   * @param message The message.
+   */
+  private void messageRelayed(String origin, String target, String message)
+  {
+    if (target.equals(ClusterNode.ALL_CLIENTS))
+    {
+      broadcast(message, null);
+      return;
+    }
+    Channel channel = channels.get(target);
+    if (channel != null)
+    {
+      sendToChannel(channel, message, null);
+    }
+  }
+
+  /**
+   * Sends a message to every client.  If it is a text, it is first
+   * added to the recent messages and to the journal, if kept, and
+   * relayed to the other nodes of the cluster.
+   *
+   * @param msg The message.
+   */
+  @Override
+  public void sendToAllClients(Object msg)
+  {
+    broadcast(msg, cluster);
+  }
+
+  /**
+   * Sends a message to every client of this server.
+   *
+   * @param msg The message.
+   * @param node The node relaying the message to the rest of the
+   *          cluster, or null if it is not relayed.
+   */
+  private void broadcast(Object msg, ClusterNode node)
+  {
+    if ((lobbyHistory == null && journal == null && node == null) || !(msg instanceof String))
+    {
+      super.sendToAllClients(msg);
+      return;
+    }
+
+    Object sent = msg;
+    synchronized (broadcastLock)
+    {
+      MessageHistory history = lobbyHistory;
+      if (history != null)
+      {
+        history.append(msg);
+      }
+      Journal current = journal;
+      if (current != null)
+      {
+        try
+        {
+          // Clients keep the sequence number of the last broadcast they
+          // received, to resume after it.
+          long sequence = current.append((String) msg);
+          sent = new Command("message", sequence + " " + msg);
+        }
+        catch (IOException e)
+        {
+          log.error("Journal failed, broadcasts are no longer journaled: {}", e.getMessage());
+          journal = null;
+        }
+      }
+    }
+
+    // A client connecting meanwhile may be sent the message both live
+    // and in its replay, but cannot miss it: it is journaled before the
+    // clients are read.
+    super.sendToAllClients(sent);
+    if (node != null)
+    {
+      node.publish(ClusterNode.ALL_CLIENTS, (String) msg);
+    }
+  }
+
+  /**
+   * Sends a client the broadcasts it missed, up to those it received
+   * since it connected.  At most MAX_REPLAY messages are sent, the most
+   * recent ones.
+   *
+   * @param client The client.
+   * @param after The sequence number of the last broadcast it has.
+   * @return The number of messages sent.
+   */
+  private int replay(ConnectionToClient client, long after) throws IOException
+  {
+    Journal current = journal;
+    Long connectedAt = client.getAttribute(CONNECTED_AT);
+    if (current == null || connectedAt == null)
+      return 0;
+
+    long upTo = connectedAt;
+    long from = Math.max(after, upTo - MAX_REPLAY);
+    if (upTo <= from)
+      return 0;
+
+    client.sendToClient("SERVER MSG> Messages since #" + from + ":");
+    int sent = current.replay(client, from, upTo);
+    client.sendToClient("SERVER MSG> End of replay, up to #" + upTo + ".");
+    log.info("Replayed {} messages to {}.", sent, client.getLoginId());
+    return sent;
+  }
+
+  /**
+   * @return The chat rooms of the server.
+   */
+  public ChannelIndex getChannels()
+  {
+    return channels;
+  }
+
+  /**
+   * Moves a client to a channel, out of the channel it was in, and
+   * tells the members of both.
+   *
+   * @param client The client.
+   * @param name The name of the channel.
+   * @return The channel joined.
+   */
+  public Channel joinChannel(ConnectionToClient client, String name)
+  {
+    Channel previous = client.getAttribute(CHANNEL);
+    if (previous != null && previous.getName().equals(name))
+      return previous;
+
+    leaveChannel(client);
+    Channel channel = channels.join(name, client);
+    client.setAttribute(CHANNEL, channel);
+
+    // A client that disconnected meanwhile may have missed its removal.
+    if (getClientConnection(client.getId()) != client)
+    {
+      leaveChannel(client);
+      return channel;
+    }
+
+    // A message sent meanwhile may be both in the history and sent to
+    // the new member, but it cannot be missed: it is added to the
+    // history before the members are read.
+    sendHistory(client, channel.getHistory());
+
+    log.info("{} joined {}.", client.getLoginId(), channel);
+    sendToChannel(channel, client.getLoginId() + " has joined " + channel + ".");
+    return channel;
+  }
+
+  /**
+   * Removes a client from the channel it is in, and tells the members
+   * left.
+   *
+   * @param client The client.
+   * @return The channel left, or null if the client was in none.
+   */
+  public Channel leaveChannel(ConnectionToClient client)
+  {
+    Channel channel = client.getAttribute(CHANNEL);
+    if (channel == null)
+      return null;
+
+    client.setAttribute(CHANNEL, null);
+    if (channels.leave(channel, client))
+    {
+      log.info("{} left {}.", client.getLoginId(), channel);
+      sendToChannel(channel, client.getLoginId() + " has left " + channel + ".");
+    }
+    return channel;
+  }
+
+  /**
+   * Sends a message to the members of a channel, on every node of the
+   * cluster.  The cost depends on the number of members, not on the
+   * number of clients connected.
+   *
+   * @param channel The channel.
+   * @param msg The message.
+   */
+  public void sendToChannel(Channel channel, Object msg)
+  {
+    sendToChannel(channel, msg, (msg instanceof String) ? cluster : null);
+  }
+
+  /**
+   * Sends a message to the members of a channel on this server.
+   *
+   * @param channel The channel.
+   * @param msg The message.
+   * @param node The node relaying the message to the rest of the
+   *          cluster, or null if it is not relayed.
+   */
+  private void sendToChannel(Channel channel, Object msg, ClusterNode node)
+  {
+    MessageHistory history = channel.getHistory();
+    if (history == null && node == null)
+    {
+      sendToClients(channel.getMembers(), msg);
+      return;
+    }
+
+    if (history != null)
+    {
+      synchronized (channel)
+      {
+        history.append(msg);
+      }
+    }
+    sendToClients(channel.getMembers(), msg);
+    if (node != null)
+    {
+      node.publish(channel.getName(), (String) msg);
+    }
+  }
+
+  /**
+   * Sends a client the recent messages of a history, as one write if
+   * the client uses the binary codec.
+   *
+   * @param client The client.
+   * @param history The history, or null.
+   */
+  private void sendHistory(ConnectionToClient client, MessageHistory history)
+  {
+    if (history == null)
+      return;
+    try
+    {
+      history.sendTo(client);
+    }
+    catch (IOException e)
+    {
+      log.warn("Could not send the recent messages to {}: {}", client.getLoginId(), e.getMessage());
+    }
+  }
+
   /**
    * This method handles any messages received from the client.
+   * Commands arrive already decoded, so chat messages are broadcast
+   * without being parsed.  A client in a channel only reaches the
+   * members of that channel; the others reach every client.
    *
    * @param msg The message received from the client.
    * @param client The connection from which the message originated.
@@ -62,46 +610,363 @@ public class EchoServer extends AbstractServer
   public void handleMessageFromClient
     (Object msg, ConnectionToClient client)
   {
-    String message = msg.toString();
-
-    if (message.startsWith("#login")) {
-        String loginId = (String) client.getInfo("loginId");
-
-        if (loginId == null) {
-            String loginID = message.substring(7).trim();
-            client.setInfo("loginId", loginID);
-
-            serverUI.display("Message received: " + message + " from null.");
-            serverUI.display(loginID + " has logged on.");
-            sendToAllClients(loginID + " has logged on.");
-        } else {
-            try {
-                client.sendToClient("SERVER MSG> Error: Already logged in as " + loginId + ".");
-                serverUI.display("Client attempted to re-login. Closing connection.");
-                client.close();
-            } catch (IOException e) {
-                serverUI.display("Error closing connection for re-login attempt.");
-            }
+    Command command = toCommand(msg);
+    if (command != null)
+    {
+      handleCommandFromClient(command, client);
+      return;
+    }
+
+    String loginId = client.getLoginId();
+    if (loginId != null)
+    {
+      log.info("Message received: {} from {}", msg, loginId);
+      Channel channel = client.getAttribute(CHANNEL);
+      if (channel == null)
+      {
+        this.sendToAllClients(loginId + "> " + msg);
+      }
+      else
+      {
+        sendToChannel(channel, "[" + channel + "] " + loginId + "> " + msg);
+      }
+    }
+    else
+    {
+      refuseUnauthorized(client);
+    }
+  }
+
+  /**
+   * Hands a command received from a client to its handler.  Only
+   * #login is accepted before the client has logged in.
+   *
+   * @param command The command.
+   * @param client The connection from which the command originated.
+   */
+  private void handleCommandFromClient(Command command, ConnectionToClient client)
+  {
+    String loginId = client.getLoginId();
+    log.info("Message received: {} from {}.", command, loginId);
+    if (loginId == null && !command.getName().equals("login")
+      && !command.getName().equals("resume"))
+    {
+      refuseUnauthorized(client);
+      return;
+    }
+
+    try
+    {
+      if (!getClientCommands().dispatch(client, command))
+      {
+        client.sendToClient("SERVER MSG> Error: Unknown command "
+          + Command.PREFIX + command.getName() + ".");
+      }
+    }
+    catch (IOException e)
+    {
+      log.warn("Could not answer {} from {}: {}", command, loginId, e.getMessage());
+    }
+  }
+
+  /**
+   * Handles #login &lt;loginId&gt; [&lt;sequence&gt;], which must be the
+   * first message of a client.  A client logging in again gives the
+   * sequence number of the last broadcast it received, if it knows it,
+   * and is replayed those it missed.
+   */
+  private void loginCommand(ConnectionToClient client, Command command)
+  {
+    String loginId = client.getLoginId();
+
+    if (loginId == null) {
+        String[] arguments = command.getArguments().split("\\s+");
+        String loginID = arguments[0];
+        Long after = (arguments.length == 2) ? parseSequence(arguments[1]) : null;
+        if (arguments.length > 2 || (arguments.length == 2 && after == null)) {
+            refuse(client, "SERVER MSG> Error: Usage is #login <loginId> [<sequence>].",
+              "Client attempted to log in with invalid arguments. Closing connection.");
+            return;
         }
+        logIn(client, loginID, after);
     } else {
-        String loginId = (String) client.getInfo("loginId");
-
-        if (loginId != null) {
-            serverUI.display("Message received: " + message + " from " + loginId);
-            this.sendToAllClients(loginId + "> " + message);
-        } else {
-            try {
-                client.sendToClient("SERVER MSG> Error: Please log in before sending messages.");
-                serverUI.display("Unauthorized message attempt from a client without login ID. Closing connection.");
-                client.close();
-            } catch (IOException e) {
-                serverUI.display("Unexpected error closing client connection.");
-            }
-        }
+        refuse(client, "SERVER MSG> Error: Already logged in as " + loginId + ".",
+          "Client attempted to re-login. Closing connection.");
     }
-}
+  }
+
+  /**
+   * Handles #resume &lt;loginId&gt; &lt;token&gt; [&lt;sequence&gt;], which a
+   * client sends instead of #login when it connects again after losing
+   * its connection.  The server may not know yet that the connection is
+   * lost; the token the client was given when it logged in lets it take
+   * its login id over from that connection, which is closed.
+   */
+  private void resumeCommand(ConnectionToClient client, Command command)
+  {
+    String[] arguments = command.getArguments().split("\\s+");
+    Long after = (arguments.length == 3) ? parseSequence(arguments[2]) : null;
+    if (client.getLoginId() != null || arguments.length < 2 || arguments.length > 3
+      || (arguments.length == 3 && after == null))
+    {
+      refuse(client, "SERVER MSG> Error: Usage is #resume <loginId> <token> [<sequence>].",
+        "Client attempted to resume a session with invalid arguments. Closing connection.");
+      return;
+    }
+
+    ConnectionToClient previous = getClientConnection(arguments[0]);
+    if (previous != null && arguments[1].equals(previous.getAttribute(RESUME_TOKEN)))
+    {
+      log.info("{} reconnected, closing its previous connection {}.", arguments[0], previous);
+      try
+      {
+        previous.close();
+      }
+      catch (IOException e) {}
+    }
+    logIn(client, arguments[0], after);
+  }
+
+  /**
+   * Logs a client in, and sends it the broadcasts it missed or the
+   * recent ones.  The server uses the sequence number it kept when the
+   * client logged off if the client does not give one: it counts the
+   * messages still queued then as received.  The client is
+   * then told it is logged in, with a token to resume its session with
+   * and, if the server keeps a journal, the sequence number of the last
+   * broadcast it has been sent.
+   *
+   * @param client The connection.
+   * @param loginID The login id.
+   * @param after The sequence number of the last broadcast the client
+   *          received, or null if it does not know it.
+   */
+  private void logIn(ConnectionToClient client, String loginID, Long after)
+  {
+    if (loginID.isEmpty()) {
+        refuse(client, "SERVER MSG> Error: No login id specified.",
+          "Client attempted to log in without a login ID. Closing connection.");
+        return;
+    }
+    if (!client.setLoginId(loginID)) {
+        refuse(client, "SERVER MSG> Error: Login id " + loginID + " is already in use.",
+          "Client attempted to log in as " + loginID + ", who is already logged in. Closing connection.");
+        return;
+    }
+
+    log.info("{} has logged on.", loginID);
+    Long seen = lastSeen.remove(loginID);
+    if (after != null)
+    {
+      seen = after;
+    }
+    String token = Long.toHexString(TOKENS.nextLong());
+    client.setAttribute(RESUME_TOKEN, token);
+    try
+    {
+      if (seen == null)
+      {
+        sendHistory(client, lobbyHistory);
+      }
+      else
+      {
+        replay(client, seen);
+      }
+      // Tells the client where to resume from, should the server restart.
+      Long connectedAt = client.getAttribute(CONNECTED_AT);
+      client.sendToClient(new Command("loggedin",
+        loginID + " " + token + (connectedAt == null ? "" : " " + connectedAt)));
+    }
+    catch (IOException e)
+    {
+      log.warn("Could not replay the journal to {}: {}", loginID, e.getMessage());
+    }
+    sendToAllClients(loginID + " has logged on.");
+  }
+
+  /**
+   * Handles #join &lt;channel&gt;: moves the client to a channel.
+   */
+  private void joinCommand(ConnectionToClient client, Command command)
+    throws IOException
+  {
+    String name = command.getArguments();
+    if (name.startsWith("#"))
+    {
+      name = name.substring(1);
+    }
+    if (!ChannelIndex.isValidName(name))
+    {
+      client.sendToClient("SERVER MSG> Error: A channel name is 1 to "
+        + ChannelIndex.MAX_NAME_LENGTH + " letters, digits, - or _.");
+      return;
+    }
+    joinChannel(client, name);
+  }
+
+  /**
+   * Handles #leave: takes the client out of its channel, back to the
+   * messages of all clients.
+   */
+  private void leaveCommand(ConnectionToClient client, Command command)
+    throws IOException
+  {
+    Channel channel = leaveChannel(client);
+    client.sendToClient(channel == null
+      ? "SERVER MSG> Error: You are not in a channel."
+      : "SERVER MSG> You left " + channel + ".");
+  }
+
+  /**
+   * Handles #channels: lists the channels and their number of members.
+   */
+  private void channelsCommand(ConnectionToClient client, Command command)
+    throws IOException
+  {
+    List<Channel> list = channels.getChannels();
+    if (list.isEmpty())
+    {
+      client.sendToClient("SERVER MSG> No channels.");
+      return;
+    }
+
+    StringBuilder reply = new StringBuilder("SERVER MSG> Channels:");
+    for (Channel channel : list)
+    {
+      reply.append(' ').append(channel).append(" (").append(channel.size()).append(')');
+    }
+    client.sendToClient(reply.toString());
+  }
+
+  /**
+   * Handles #msg &lt;loginId&gt; &lt;message&gt;: sends a message to one
+   * client only.  The recipient is found from its login id in the
+   * server's index, whatever the number of clients connected.
+   */
+  private void msgCommand(ConnectionToClient client, Command command)
+    throws IOException
+  {
+    String[] arguments = command.getArguments().split("\\s+", 2);
+    if (arguments.length < 2)
+    {
+      client.sendToClient("SERVER MSG> Error: Usage is #msg <loginId> <message>.");
+      return;
+    }
+
+    String loginId = client.getLoginId();
+    ConnectionToClient recipient = getClientConnection(arguments[0]);
+    if (recipient == null)
+    {
+      client.sendToClient("SERVER MSG> Error: " + arguments[0] + " is not logged in.");
+      return;
+    }
+
+    try
+    {
+      recipient.sendToClient("[from " + loginId + "] " + arguments[1]);
+    }
+    catch (IOException e)
+    {
+      // The recipient disconnected after it was found.
+      client.sendToClient("SERVER MSG> Error: " + arguments[0] + " is not logged in.");
+      return;
+    }
+    log.debug("Private message from {} to {}.", loginId, arguments[0]);
+    if (recipient != client)
+    {
+      client.sendToClient("[to " + arguments[0] + "] " + arguments[1]);
+    }
+  }
+
+  /**
+   * Handles #replay &lt;sequence&gt;: sends the client the broadcasts
+   * after a sequence number, as given at the end of a previous replay.
+   */
+  private void replayCommand(ConnectionToClient client, Command command)
+    throws IOException
+  {
+    if (journal == null)
+    {
+      client.sendToClient("SERVER MSG> Error: The server keeps no journal.");
+      return;
+    }
+    try
+    {
+      replay(client, Long.parseLong(command.getArguments()));
+    }
+    catch (NumberFormatException e)
+    {
+      client.sendToClient("SERVER MSG> Error: Usage is #replay <sequence>.");
+    }
+  }
+
+  /**
+   * @return The sequence number a text stands for, or null if it is
+   *         not one.
+   */
+  private static Long parseSequence(String text)
+  {
+    try
+    {
+      return Long.parseLong(text);
+    }
+    catch (NumberFormatException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Closes the connection of a client that sent a message before
+   * logging in.
+   *
+   * @param client The connection.
+   */
+  private void refuseUnauthorized(ConnectionToClient client)
+  {
+    refuse(client, "SERVER MSG> Error: Please log in before sending messages.",
+      "Unauthorized message attempt from a client without login ID. Closing connection.");
+  }
+
+  /**
+   * Tells a client why it is disconnected, then closes its connection.
+   *
+   * @param client The connection.
+   * @param reply The message sent to the client.
+   * @param reason The message logged.
+   */
+  private void refuse(ConnectionToClient client, String reply, String reason)
+  {
+    try {
+        client.sendToClient(reply);
+        log.warn(reason);
+        client.close();
+    } catch (IOException e) {
+        log.warn("Unexpected error closing client connection.");
+    }
+  }
+
+  /**
+   * Returns the command a message stands for.  Clients send commands
+   * decoded by the codec; a text message is only parsed if it starts
+   * with the command prefix, for clients that send commands as text.
+   *
+   * @param msg The message received.
+   * @return The command, or null if the message is a chat message.
+   */
+  private static Command toCommand(Object msg)
+  {
+    if (msg instanceof Command)
+    {
+      return (Command) msg;
+    }
+    if (msg instanceof String && ((String) msg).startsWith("#"))
+    {
+      return Command.parse((String) msg);
+    }
+    return null;
+  }
 
-    
   /**
    * This method overrides the one in the superclass.  Called
    * when the server starts listening for connections.
@@ -129,7 +994,12 @@ public class EchoServer extends AbstractServer
 	 */
   	@Override
 	protected void clientConnected(ConnectionToClient client) {
-		System.out.println(String.format("A new client has connected to the server. ", client.toString()));
+		log.info("A new client has connected to the server: {}", client);
+		synchronized (broadcastLock) {
+			Journal current = journal;
+			if (current != null)
+				client.setAttribute(CONNECTED_AT, current.getLastSequence());
+		}
 	}
  
 	/**
@@ -142,12 +1012,84 @@ public class EchoServer extends AbstractServer
   	@Override
 	synchronized protected void clientDisconnected(
 		ConnectionToClient client) {
-  		System.out.println(String.format("Client has disconnected with info: %s", client.toString()));
+  		log.info("Client has disconnected with info: {}", client);
+  		clientLeft(client);
+	}
+
+	/**
+	 * Hook method called each time an exception is thrown in a
+	 * ConnectionToClient thread, which then closes the connection.
+	 *
+	 * @param client the client that raised the exception.
+	 * @param exception the exception thrown.
+	 */
+  	@Override
+	synchronized protected void clientException(
+		ConnectionToClient client, Throwable exception) {
+  		clientLeft(client);
 	}
 
+  /**
+   * Tells a client that sends too fast that its message was dropped, or
+   * that it is being disconnected.
+   *
+   * @param msg The message refused.
+   * @param client The client.
+   * @param policy The policy applied to the message.
+   */
+  @Override
+  protected void clientRateLimited(Object msg, ConnectionToClient client, RateLimitPolicy policy)
+  {
+    try
+    {
+      if (policy == RateLimitPolicy.DISCONNECT)
+      {
+        log.warn("Disconnecting {}, which sends too many messages.", client);
+        client.sendToClient("SERVER MSG> Error: Too many messages, disconnecting.");
+      }
+      else
+      {
+        client.sendToClient("SERVER MSG> Error: Too many messages, message dropped.");
+      }
+    }
+    catch (IOException e) {}
+  }
+
+  /**
+   * Takes a client that disconnected out of its channel, and remembers
+   * the broadcasts it was sent for when it logs in again.
+   *
+   * @param client The client.
+   */
+  private void clientLeft(ConnectionToClient client)
+  {
+    leaveChannel(client);
+    Journal current = journal;
+    String loginId = client.getLoginId();
+    // A client that resumed its session on another connection has not
+    // left.
+    if (current != null && loginId != null && getClientConnection(loginId) == null)
+    {
+      lastSeen.put(loginId, current.getLastSequence());
+    }
+  }
+
+  /**
+   * This method handles a line typed on the server console: a command,
+   * or a message broadcast to all clients.
+   *
+   * @param message The line typed.
+   */
   	public void handleMessageFromServerUI(String message) {
   	    if (message.startsWith("#")) {
-			handleCommand(message);
+  	        Command command = Command.parse(message);
+  	        try {
+  	            if (command == null || !getConsoleCommands().dispatch(serverUI, command)) {
+  	                serverUI.display("Error: command not in system");
+  	            }
+  	        } catch (IOException e) {
+  	            serverUI.display("Error: " + e.getMessage());
+  	        }
 		}
 		else {
 			serverUI.display(message);
@@ -155,51 +1097,459 @@ public class EchoServer extends AbstractServer
 		}
   	}
 
-  	private void handleCommand(String command) {
-  	    if (command.equals("#quit")) {
-  	    	serverUI.display("Server quit gracefully");
-  	    	System.exit(0);
-  	    } else if (command.equals("#stop")) {
-  	        stopListening();
-  	        serverUI.display("Server stopped listening for connections.");
-  	    } else if (command.equals("#close")) {
+  /**
+   * Registers the commands clients can send and those of the server
+   * console, unless already done.
+   */
+  private void registerCommands()
+  {
+    if (commandsRegistered)
+      return;
+
+    synchronized (clientCommands)
+    {
+      if (!commandsRegistered)
+      {
+        registerBuiltinCommands();
+        commandsRegistered = true;
+      }
+    }
+  }
+
+  /**
+   * Registers the commands clients can send and those of the server
+   * console.
+   */
+  private void registerBuiltinCommands()
+  {
+    clientCommands.register("login", this::loginCommand);
+    clientCommands.register("resume", this::resumeCommand);
+    clientCommands.register("join", this::joinCommand);
+    clientCommands.register("leave", this::leaveCommand);
+    clientCommands.register("channels", this::channelsCommand);
+    clientCommands.register("msg", this::msgCommand);
+    clientCommands.register("replay", this::replayCommand);
+
+    consoleCommands.register("quit", this::quitCommand);
+    consoleCommands.register("stop", this::stopCommand);
+    consoleCommands.register("close", this::closeCommand);
+    consoleCommands.register("setport", this::setPortCommand);
+    consoleCommands.register("start", this::startCommand);
+    consoleCommands.register("getport", this::getPortCommand);
+    consoleCommands.register("loglevel", this::logLevelCommand);
+    consoleCommands.register("logfile", this::logFileCommand);
+    consoleCommands.register("stats", this::statsCommand);
+    consoleCommands.register("journal", this::journalCommand);
+    consoleCommands.register("history", this::historyCommand);
+    consoleCommands.register("cluster", this::clusterCommand);
+    consoleCommands.register("ratelimit", this::rateLimitCommand);
+    consoleCommands.register("serialization", this::serializationCommand);
+  }
+
+  /**
+   * Handles #quit: writes the messages queued for the clients, tells
+   * them the server is shutting down, and exits the program.  The
+   * program only exits once every connection is closed and the log is
+   * written out.
+   */
+  	private void quitCommand(ChatIF ui, Command command) {
+  	    try {
+  	        // Returns once every connection is closed and its
+  	        // clientDisconnected hook has run.
+  	        ShutdownReport report = close(SHUTDOWN_TIMEOUT, shutdownNotice());
+  	        if (report != null) {
+  	            log.info("Drained {}", report);
+  	        }
+  	    } catch (IOException e) {
+  	        log.error("Error closing server: {}", e.getMessage());
+  	    }
+  	    try {
+  	        leaveCluster();
+  	    } catch (IOException e) {
+  	        ui.display("Error leaving the cluster: " + e.getMessage());
+  	    }
+  	    try {
+  	        setJournal(null);
+  	    } catch (IOException e) {
+  	        ui.display("Error closing the journal: " + e.getMessage());
+  	    }
+  	    // Writes the records still buffered and closes the log file.
+  	    log.close();
+  	    ui.display("Server quit gracefully");
+  	    System.exit(0);
+  	}
+
+  /**
+   * @return The command telling the clients the server is shutting
+   *         down, with the last broadcast they were sent if the server
+   *         keeps a journal, so that they can resume after it.  A
+   *         command rather than a text, so that clients can tell it
+   *         from a chat message and stop reconnecting.
+   */
+  private Command shutdownNotice()
+  {
+    synchronized (broadcastLock)
+    {
+      Journal current = journal;
+      return new Command("shutdown",
+        current == null ? null : Long.toString(current.getLastSequence()));
+    }
+  }
+
+  /**
+   * Handles #stop: stops accepting new clients.
+   */
+  	private void stopCommand(ChatIF ui, Command command) {
+  	    stopListening();
+  	    ui.display("Server stopped listening for connections.");
+  	}
+
+  /**
+   * Handles #close: disconnects all clients and stops listening.
+   */
+  	private void closeCommand(ChatIF ui, Command command) {
+  	    try {
+  	        close();
+  	        ui.display("Server closed and all clients disconnected.");
+  	    } catch (IOException e) {
+  	        ui.display("Error closing server: " + e.getMessage());
+  	    }
+  	}
+
+  /**
+   * Handles #setport &lt;port&gt;: sets the port to listen on, while not listening.
+   */
+  	private void setPortCommand(ChatIF ui, Command command) {
+  	    if (!isListening()) {
+  	        if (command.getArguments().isEmpty()) {
+  	            ui.display("Error: No port specified");
+  	            return;
+  	        }
+  	        try {
+  	            int port = Integer.parseInt(command.getArguments());
+  	            setPort(port);
+  	            ui.display("Port is now: " + port);
+  	        } catch (NumberFormatException e) {
+  	            ui.display("Error: Invalid port number");
+  	        }
+  	    } else {
+  	        ui.display("Error: cannot set a new port when server is open");
+  	    }
+  	}
+
+  /**
+   * Handles #start: starts listening again.
+   */
+  	private void startCommand(ChatIF ui, Command command) {
+  	    if (!isListening()) {
   	        try {
-  	            close();
-  	            serverUI.display("Server closed and all clients disconnected.");
+  	            listen();
+  	            ui.display("Server started listening for new clients");
   	        } catch (IOException e) {
-  	        	serverUI.display("Error closing server: " + e.getMessage());
+  	            ui.display("Error (Server cannot start): " + e.getMessage());
   	        }
-  	    } else if (command.startsWith("#setport")) {
-  	        if (!isListening()) {
-  	            try {
-  	                int port = Integer.parseInt(command.split(" ")[1]);
-  	                setPort(port);
-  	                serverUI.display("Port is now: " + port);
-  	            } catch (NumberFormatException e) {
-  	            	serverUI.display("Error: Invalid port number");
-  	            } catch (ArrayIndexOutOfBoundsException e) {
-  	            	serverUI.display("Error: No port specified");
-  	            }
+  	    } else {
+  	        ui.display("Error: Server is already listening");
+  	    }
+  	}
+
+  /**
+   * Handles #getport: displays the port.
+   */
+  	private void getPortCommand(ChatIF ui, Command command) {
+  	    ui.display("Current port: " + String.valueOf(getPort()));
+  	}
+
+  /**
+   * Handles #loglevel &lt;level&gt;: sets the lowest level of the records logged.
+   */
+  	private void logLevelCommand(ChatIF ui, Command command) {
+  	    try {
+  	        log.setLevel(LogLevel.valueOf(command.getArguments().toUpperCase(Locale.ROOT)));
+  	        ui.display("Log level is now: " + log.getLevel());
+  	    } catch (IllegalArgumentException e) {
+  	        ui.display("Error: Log level must be one of DEBUG, INFO, WARN, ERROR or OFF");
+  	    }
+  	}
+
+  /**
+   * Handles #logfile &lt;path&gt;|off: starts or stops writing the log to a file.
+   */
+  	private void logFileCommand(ChatIF ui, Command command) {
+  	    String file = command.getArguments();
+  	    try {
+  	        if (file.isEmpty() || file.equals("off")) {
+  	            setLogFile(null);
+  	            ui.display("The log is no longer written to a file");
+  	        } else {
+  	            setLogFile(Path.of(file));
+  	            ui.display("The log is now also written to " + file);
+  	        }
+  	    } catch (IOException | RuntimeException e) {
+  	        ui.display("Error: Cannot write the log to " + file + ": " + e.getMessage());
+  	    }
+  	}
+
+  /**
+   * Handles #journal &lt;directory&gt;|off: starts or stops journaling the broadcasts.
+   */
+  	private void journalCommand(ChatIF ui, Command command) {
+  	    String directory = command.getArguments();
+  	    try {
+  	        if (directory.isEmpty()) {
+  	            Journal current = journal;
+  	            ui.display(current == null ? "No journal is kept"
+  	              : "Journal in " + current.getDirectory() + ", messages #"
+  	                + current.getFirstSequence() + " to #" + current.getLastSequence());
+  	        } else if (directory.equals("off")) {
+  	            setJournal(null);
+  	            ui.display("Broadcasts are no longer journaled");
   	        } else {
-  	            System.out.println("Error: cannot set a new port when server is open");
+  	            setJournal(Path.of(directory));
+  	            ui.display("Broadcasts are now journaled in " + directory);
+  	        }
+  	    } catch (IOException | RuntimeException e) {
+  	        ui.display("Error: Cannot journal in " + directory + ": " + e.getMessage());
+  	    }
+  	}
+
+  /**
+   * Handles #history [&lt;messages&gt; &lt;bytes&gt;]: shows or sets how many recent messages are kept.
+   */
+  	private void historyCommand(ChatIF ui, Command command) {
+  	    String[] arguments = command.getArguments().split("\\s+");
+  	    if (arguments.length == 2) {
+  	        try {
+  	            setHistoryLimits(Integer.parseInt(arguments[0]), Integer.parseInt(arguments[1]));
+  	        } catch (IllegalArgumentException e) {
+  	            ui.display("Error: Usage is #history [<messages> <bytes>]");
+  	            return;
   	        }
-  	    } else if (command.equals("#start")) {
-  	        if (!isListening()) {
-  	            try {
-  	                listen();
-  	                serverUI.display("Server started listening for new clients");
-  	            } catch (IOException e) {
-  	            	serverUI.display("Error (Server cannot start): " + e.getMessage());
+  	    } else if (!command.getArguments().isEmpty()) {
+  	        ui.display("Error: Usage is #history [<messages> <bytes>]");
+  	        return;
+  	    }
+  	    ui.display("Recent messages kept: " + channels.getHistoryMessages()
+  	      + ", up to " + channels.getHistoryBytes() + " bytes");
+  	}
+
+  /**
+   * Handles #ratelimit [client|global &lt;rate&gt; &lt;burst&gt;|off], or #ratelimit policy drop|delay|disconnect: limits the rate of the messages of clients.
+   */
+  	private void rateLimitCommand(ChatIF ui, Command command) {
+  	    String usage = "Error: Usage is #ratelimit [client|global <rate> <burst>|off] or #ratelimit policy drop|delay|disconnect";
+  	    String[] arguments = command.getArguments().split("\\s+");
+  	    try {
+  	        if (command.getArguments().isEmpty()) {
+  	            // Display the limits below.
+  	        } else if (arguments.length == 2 && arguments[0].equals("policy")) {
+  	            setRateLimitPolicy(RateLimitPolicy.valueOf(arguments[1].toUpperCase(Locale.ROOT)));
+  	        } else if (arguments.length == 2 && arguments[1].equals("off")) {
+  	            setRateLimit(arguments[0], 0, 0);
+  	        } else if (arguments.length == 3) {
+  	            setRateLimit(arguments[0], Double.parseDouble(arguments[1]), Integer.parseInt(arguments[2]));
+  	        } else {
+  	            ui.display(usage);
+  	            return;
+  	        }
+  	    } catch (IllegalArgumentException e) {
+  	        ui.display(usage);
+  	        return;
+  	    }
+  	    ui.display("Rate limit per client: " + describeRateLimit(getClientRateLimit(), getClientRateBurst())
+  	      + ", for all clients: " + describeRateLimit(getGlobalRateLimit(), getGlobalRateBurst())
+  	      + ", policy " + getRateLimitPolicy().name().toLowerCase(Locale.ROOT));
+  	}
+
+  /**
+   * Sets the rate limit per client or for all clients.
+   *
+   * @param scope "client" or "global".
+   * @param rate The number of messages per second, or 0 for no limit.
+   * @param burst The number of messages that may be sent at once.
+   * @exception IllegalArgumentException If the scope or the limit is invalid.
+   */
+  private void setRateLimit(String scope, double rate, int burst)
+  {
+    if (scope.equals("client"))
+      setClientRateLimit(rate, burst);
+    else if (scope.equals("global"))
+      setGlobalRateLimit(rate, burst);
+    else
+      throw new IllegalArgumentException("unknown scope: " + scope);
+  }
+
+  /**
+   * @return A rate limit as displayed on the console.
+   */
+  private static String describeRateLimit(double rate, int burst)
+  {
+    if (rate == 0)
+      return "none";
+    return String.format(Locale.ROOT, "%.1f/s, bursts of %d", rate, burst);
+  }
+
+  /**
+   * Handles #serialization [on|off]: lets the clients that connect afterwards use Java serialization, through serialized frames or object streams, or not.
+   */
+  	private void serializationCommand(ChatIF ui, Command command) {
+  	    String argument = command.getArguments();
+  	    if (argument.equals("on")) {
+  	        setAcceptedCodecs(new BinaryCodec(), new SerializationCodec());
+  	        setAcceptObjectStreams(true);
+  	    } else if (argument.equals("off")) {
+  	        setAcceptedCodecs(new BinaryCodec());
+  	        setAcceptObjectStreams(false);
+  	    } else if (!argument.isEmpty()) {
+  	        ui.display("Error: Usage is #serialization [on|off]");
+  	        return;
+  	    }
+  	    ui.display(isAcceptingObjectStreams() ? "Clients may use Java serialization"
+  	      : "Clients must use the binary codec");
+  	}
+
+  /**
+   * Handles #cluster &lt;nodeId&gt; &lt;port&gt; [&lt;host&gt;:&lt;port&gt; ...]|off: joins or leaves a cluster of servers.
+   */
+  	private void clusterCommand(ChatIF ui, Command command) {
+  	    String[] arguments = command.getArguments().split("\\s+");
+  	    try {
+  	        if (command.getArguments().isEmpty()) {
+  	            displayCluster(ui);
+  	        } else if (arguments.length == 1 && arguments[0].equals("off")) {
+  	            leaveCluster();
+  	            ui.display("The server left the cluster");
+  	        } else if (arguments.length >= 2) {
+  	            ClusterNode node = joinCluster(arguments[0], Integer.parseInt(arguments[1]));
+  	            for (int i = 2; i < arguments.length; i++) {
+  	                int colon = arguments[i].lastIndexOf(':');
+  	                node.addPeer(arguments[i].substring(0, colon), Integer.parseInt(arguments[i].substring(colon + 1)));
   	            }
+  	            ui.display("The server is node " + node.getNodeId() + " of a cluster, listening for peers on port " + node.getPort());
   	        } else {
-  	            System.out.println("Error: Server is already listening");
+  	            ui.display("Error: Usage is #cluster [<nodeId> <port> [<host>:<port> ...]|off]");
   	        }
-  	    } else if (command.equals("#getport")) {
-  	    	serverUI.display("Current port: " + String.valueOf(getPort()));
+  	    } catch (IOException e) {
+  	        ui.display("Error: Cannot join the cluster: " + e.getMessage());
+  	    } catch (RuntimeException e) {
+  	        ui.display("Error: Usage is #cluster [<nodeId> <port> [<host>:<port> ...]|off]");
+  	    }
+  	}
+
+  /**
+   * Displays the node of the cluster this server is, and its links.
+   */
+  private void displayCluster(ChatIF ui)
+  {
+    ClusterNode node = cluster;
+    if (node == null)
+    {
+      ui.display("The server is not in a cluster");
+      return;
+    }
+
+    StringBuilder peers = new StringBuilder();
+    for (PeerLink link : node.getPeers())
+    {
+      peers.append(' ').append(link).append(link.isReady() ? " (linked)" : " (down)");
+    }
+    ui.display("Node " + node.getNodeId() + " on port " + node.getPort() + ", peers:"
+      + (peers.length() == 0 ? " none" : peers.toString()));
+    ui.display(String.format(Locale.ROOT,
+      "Relayed: %d sent, %d received, %d duplicates dropped, %d missed",
+      node.getRelayedCount(), node.getReceivedCount(),
+      node.getDuplicateCount(), node.getMissedCount()));
+  }
+
+  /**
+   * Handles #stats [clients]: displays the activity of the server or of each client.
+   */
+  	private void statsCommand(ChatIF ui, Command command) {
+  	    if (command.getArguments().equals("clients")) {
+  	        displayClientStats(ui);
+  	    } else if (command.getArguments().isEmpty()) {
+  	        displayStats(ui);
   	    } else {
-  	        serverUI.display("Error: command not in system");
+  	        ui.display("Error: Usage is #stats [clients]");
   	    }
   	}
 
+  /**
+   * Displays the activity of the server. Rates are computed over the
+   * time elapsed since the previous #stats.
+   */
+  private synchronized void displayStats(ChatIF ui)
+  {
+    ServerMetrics metrics = getMetrics();
+    long now = System.nanoTime();
+    long received = metrics.getMessagesReceived();
+    long sent = metrics.getMessagesSent();
+    double seconds = Math.max(now - lastStatsTime, 1) / 1e9;
+    long broadcasts = metrics.getBroadcasts();
+
+    ui.display(String.format(Locale.ROOT,
+      "Clients: %d connected, %d accepted, %d disconnected, %d failed, %d reaped",
+      metrics.getConnectedClients(), metrics.getAcceptedConnections(),
+      metrics.getDisconnections(), metrics.getConnectionFailures(),
+      metrics.getReapedConnections()));
+    ui.display(String.format(Locale.ROOT,
+      "Messages: %d received (%.1f/s), %d sent (%.1f/s), %d dropped, %d queued",
+      received, (received - lastStatsReceived) / seconds,
+      sent, (sent - lastStatsSent) / seconds,
+      metrics.getMessagesDropped(), metrics.getOutboundQueueDepth()));
+    ui.display(String.format(Locale.ROOT,
+      "Bytes: %d received, %d sent",
+      metrics.getBytesReceived(), metrics.getBytesSent()));
+    ui.display(String.format(Locale.ROOT,
+      "Rate limits: %d messages refused, %d delayed, %d clients disconnected",
+      metrics.getMessagesRateLimited(), metrics.getMessagesDelayed(),
+      metrics.getRateLimitDisconnections()));
+    ui.display("Handler latency: " + summarize(metrics.getHandlerLatency()));
+    ui.display(String.format(Locale.ROOT,
+      "Broadcasts: %d, %.1f recipients on average, fan-out %s",
+      broadcasts, broadcasts == 0 ? 0.0 : (double) metrics.getBroadcastRecipients() / broadcasts,
+      summarize(metrics.getBroadcastLatency())));
+
+    lastStatsTime = now;
+    lastStatsReceived = received;
+    lastStatsSent = sent;
+  }
+
+  /**
+   * Displays the activity of each connected client.
+   */
+  private void displayClientStats(ChatIF ui)
+  {
+    ConnectionToClient[] clients = getClientConnections();
+    ui.display(clients.length + " clients connected");
+    for (ConnectionToClient client : clients)
+    {
+      String loginId = client.getLoginId();
+      ui.display(String.format(Locale.ROOT,
+        "%s %s: %d received, %d sent, %d dropped, %d queued, %d bytes in, %d bytes out",
+        loginId == null ? "(not logged in)" : loginId, client,
+        client.getReceivedMessageCount(), client.getSentMessageCount(),
+        client.getDroppedMessageCount(), client.getOutboundQueueDepth(),
+        client.getReceivedByteCount(), client.getSentByteCount()));
+    }
+  }
+
+  /**
+   * Summarizes a histogram of durations in nanoseconds.
+   *
+   * @param histogram The histogram.
+   * @return The mean, percentiles and maximum, in milliseconds.
+   */
+  private static String summarize(LatencyHistogram histogram)
+  {
+    return String.format(Locale.ROOT,
+      "mean %.3f ms, p50 %.3f, p99 %.3f, p99.9 %.3f, max %.3f ms",
+      histogram.getMean() / 1e6,
+      histogram.getValueAtPercentile(50) / 1e6,
+      histogram.getValueAtPercentile(99) / 1e6,
+      histogram.getValueAtPercentile(99.9) / 1e6,
+      histogram.getMax() / 1e6);
+  }
+
 }
 //End of EchoServer class
@@ -0,0 +1,311 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+import ocsf.common.*;
+import ocsf.server.ConnectionToClient;
+
+/**
+ * The most recent messages sent to a channel, kept encoded so that a
+ * client joining is sent them as they are, with a single write.  The
+ * messages are kept as the frames of the binary codec, back to back, in
+ * a ring of bytes; the oldest are evicted when there are more than a
+ * given number or when they take more than a given number of bytes.
+ * <p>
+ * Only one thread may append at a time; the channel holds its lock for
+ * that.  Appending never waits for readers, and reading never waits at
+ * all: a reader copies the ring, then checks which part of the copy the
+ * writer may have overwritten meanwhile and drops it.  The writer
+ * publishes the new start of the history before it overwrites anything,
+ * so the part that is left is always intact.
+ */
+public class MessageHistory
+{
+  //Class variables *************************************************
+
+  /**
+   * The codec of the frames kept.
+   */
+  private static final MessageCodec CODEC = new BinaryCodec();
+
+  /**
+   * The size of the ring when it is created.  It grows up to the memory
+   * budget as messages are added, so channels with little traffic take
+   * little memory.
+   */
+  private static final int INITIAL_SIZE = 4096;
+
+  //Instance variables **********************************************
+
+  /**
+   * The largest number of messages kept.
+   */
+  private final int capacity;
+
+  /**
+   * The largest number of bytes kept.
+   */
+  private final int maxBytes;
+
+  /**
+   * The frames.  The frame at logical position p is at p modulo the
+   * length of the ring.  Replaced by a larger copy when it grows.
+   */
+  private volatile byte[] ring;
+
+  /**
+   * The logical positions of the first byte kept and of the byte past
+   * the last one.
+   */
+  private volatile long head;
+  private volatile long tail;
+
+  /**
+   * The logical positions of the frames kept, oldest first from index
+   * first, used by the writer to evict them.  Only used by the writer.
+   */
+  private final long[] starts;
+  private int first;
+  private int count;
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates an empty history.
+   *
+   * @param capacity The largest number of messages kept.
+   * @param maxBytes The largest number of bytes kept, frame headers
+   *          included.  A message larger than that is not kept.
+   */
+  public MessageHistory(int capacity, int maxBytes)
+  {
+    if (capacity <= 0 || maxBytes <= 0)
+      throw new IllegalArgumentException("invalid history limits");
+
+    this.capacity = capacity;
+    this.maxBytes = maxBytes;
+    this.starts = new long[capacity];
+    this.ring = new byte[Math.min(INITIAL_SIZE, maxBytes)];
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * @return The largest number of messages kept.
+   */
+  public int getCapacity()
+  {
+    return capacity;
+  }
+
+  /**
+   * @return The largest number of bytes kept.
+   */
+  public int getMaxBytes()
+  {
+    return maxBytes;
+  }
+
+  /**
+   * @return The number of bytes kept.
+   */
+  public long size()
+  {
+    return tail - head;
+  }
+
+  /**
+   * Adds a message, evicting the oldest ones if needed.  Must not be
+   * called by two threads at once.  Messages that the binary codec
+   * cannot encode are not kept.
+   *
+   * @param msg The message.
+   */
+  public void append(Object msg)
+  {
+    byte[] frame;
+    try
+    {
+      frame = Frames.encode(CODEC, msg);
+    }
+    catch (IOException e)
+    {
+      return;
+    }
+    if (frame.length > maxBytes)
+      return;
+
+    long start = tail;
+    long end = start + frame.length;
+    long newHead = head;
+    while (count == capacity || end - newHead > maxBytes)
+    {
+      first = (first + 1) % capacity;
+      count--;
+      newHead = (count == 0) ? start : starts[first];
+    }
+
+    // Readers must learn that the evicted bytes are gone before any of
+    // them is overwritten, and before the ring is replaced.
+    head = newHead;
+    byte[] bytes = ring;
+    if (end - newHead > bytes.length)
+    {
+      bytes = grow(bytes, newHead, start, (int) (end - newHead));
+    }
+    VarHandle.storeStoreFence();
+    copy(frame, 0, bytes, start, frame.length);
+
+    starts[(first + count) % capacity] = start;
+    count++;
+    tail = end;
+  }
+
+  /**
+   * Returns a copy of the frames kept.  Never waits for the writer.
+   *
+   * @return The frames, back to back, or null if there are none.
+   */
+  public byte[] read()
+  {
+    while (true)
+    {
+      long size = size();
+      if (size <= 0)
+        return null;
+
+      byte[] frames = new byte[(int) size];
+      int length = read(frames);
+      if (length == 0)
+        return null;
+      if (length > 0)
+        return (length == frames.length) ? frames : Arrays.copyOf(frames, length);
+      // Messages were added meanwhile and the copy is too small.
+    }
+  }
+
+  /**
+   * Copies the frames kept to the start of a buffer, so that a caller
+   * reading the history often can reuse one buffer and allocate
+   * nothing.  Never waits for the writer.
+   *
+   * @param into The buffer.
+   * @return The number of bytes copied, 0 if there are no frames, or
+   *         minus the number of bytes needed if the buffer is too small,
+   *         in which case nothing is copied.
+   */
+  public int read(byte[] into)
+  {
+    long end = tail;
+    byte[] bytes = ring;
+    long start = head;
+    if (end <= start)
+      return 0;
+
+    int length = (int) (end - start);
+    if (length > into.length)
+      return -length;
+    int offset = (int) (start % bytes.length);
+    int firstPart = Math.min(length, bytes.length - offset);
+    System.arraycopy(bytes, offset, into, 0, firstPart);
+    System.arraycopy(bytes, 0, into, firstPart, length - firstPart);
+
+    // Drop what the writer evicted, and may have overwritten, while the
+    // bytes were copied.
+    VarHandle.loadLoadFence();
+    long evicted = head;
+    if (evicted > start)
+    {
+      if (evicted >= end)
+        return 0;
+      int dropped = (int) (evicted - start);
+      System.arraycopy(into, dropped, into, 0, length - dropped);
+      length -= dropped;
+    }
+    return length;
+  }
+
+  /**
+   * Sends a client the messages kept: as a single write of the frames
+   * kept if it uses the binary codec, otherwise one by one.
+   *
+   * @param client The client.
+   * @return The number of messages sent.
+   * @exception IOException If the client is disconnected.
+   */
+  public int sendTo(ConnectionToClient client) throws IOException
+  {
+    // The connection keeps the frames until they are written, so they
+    // need an array of their own.
+    byte[] frames = read();
+    if (frames == null)
+      return 0;
+
+    int messages = 0;
+    for (int offset = 0; offset < frames.length; messages++)
+    {
+      offset += Frames.HEADER_LENGTH + readInt(frames, offset);
+    }
+    if (client.sendFrames(BinaryCodec.NAME, frames, messages))
+      return messages;
+
+    for (int offset = 0; offset < frames.length; )
+    {
+      int payload = readInt(frames, offset);
+      client.sendToClient(CODEC.decode(frames, offset + Frames.HEADER_LENGTH, payload));
+      offset += Frames.HEADER_LENGTH + payload;
+    }
+    return messages;
+  }
+
+  /**
+   * Replaces the ring by a larger one holding the same bytes.
+   *
+   * @param bytes The current ring.
+   * @param from The logical position of the first byte to keep.
+   * @param to The logical position past the last byte to keep.
+   * @param needed The number of bytes the ring must hold.
+   * @return The new ring.
+   */
+  private byte[] grow(byte[] bytes, long from, long to, int needed)
+  {
+    int size = bytes.length;
+    while (size < needed)
+    {
+      size = (int) Math.min(maxBytes, 2L * size);
+    }
+
+    byte[] larger = new byte[size];
+    for (long position = from; position < to; )
+    {
+      int offset = (int) (position % bytes.length);
+      int length = (int) Math.min(to - position, bytes.length - offset);
+      copy(bytes, offset, larger, position, length);
+      position += length;
+    }
+    ring = larger;
+    return larger;
+  }
+
+  /**
+   * Copies bytes to a logical position of a ring, wrapping around.
+   */
+  private static void copy(byte[] source, int offset, byte[] ring, long position, int length)
+  {
+    int at = (int) (position % ring.length);
+    int firstPart = Math.min(length, ring.length - at);
+    System.arraycopy(source, offset, ring, at, firstPart);
+    System.arraycopy(source, offset + firstPart, ring, 0, length - firstPart);
+  }
+
+  /**
+   * @return The big endian int at an offset of an array.
+   */
+  private static int readInt(byte[] bytes, int offset)
+  {
+    return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+      | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+  }
+}
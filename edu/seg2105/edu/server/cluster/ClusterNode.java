@@ -0,0 +1,445 @@
+package edu.seg2105.edu.server.cluster;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.seg2105.edu.server.log.AsyncLog;
+import ocsf.server.*;
+
+/**
+ * One server of a cluster of chat servers.  Each node relays the
+ * messages broadcast by its own clients to the other nodes, which
+ * deliver them to theirs, so that a message reaches the clients of
+ * every node.
+ * <p>
+ * A node listens on a port of its own for the links of its peers, and
+ * opens a link to each of them; every node must list all the others.
+ * A node numbers the messages it relays, and the numbers let its peers
+ * deliver them in order and drop those they already delivered.  When a
+ * link is lost it reconnects, the peer tells it the last message it
+ * delivered, and the link resumes after that one, out of the last
+ * <code>DEFAULT_RETAINED</code> messages the node keeps.  A peer
+ * joining the cluster only receives the messages sent after it joined.
+ * <p>
+ * The links carry text frames of the binary codec:
+ * <pre>
+ * #peer &lt;nodeId&gt; &lt;epoch&gt;     sent by a link as it connects
+ * #peered &lt;sequence&gt;            the answer: the last message delivered, or -1
+ * #relay &lt;sequence&gt; &lt;target&gt; &lt;message&gt;
+ * </pre>
+ */
+public class ClusterNode extends AbstractServer
+{
+  //Class variables *************************************************
+
+  /**
+   * The target of the messages sent to all clients.  Other messages
+   * are sent to the channel named by their target.
+   */
+  final public static String ALL_CLIENTS = "*";
+
+  /**
+   * The number of messages a node keeps to resume the links that were
+   * lost.
+   */
+  final public static int DEFAULT_RETAINED = 10000;
+
+  /**
+   * The commands of the protocol between nodes.
+   */
+  static final String PEER = "#peer";
+  static final String PEERED = "#peered";
+  static final String RELAY = "#relay";
+
+  /**
+   * The node a link comes from.
+   */
+  private static final SessionKey<Origin> ORIGIN = new SessionKey<Origin>("origin");
+
+  //Instance variables **********************************************
+
+  /**
+   * The id of this node, unique in the cluster.
+   */
+  private final String nodeId;
+
+  /**
+   * When this node was created.  Tells peers that the node restarted,
+   * so that its sequence numbers start over.
+   */
+  private final long epoch = System.currentTimeMillis();
+
+  /**
+   * Delivers the messages relayed by other nodes.
+   */
+  private final RelayListener listener;
+
+  /**
+   * Where the links that are lost and restored are logged.
+   */
+  final AsyncLog log;
+
+  /**
+   * The links to the peers of this node.
+   */
+  private final List<PeerLink> links = new CopyOnWriteArrayList<PeerLink>();
+
+  /**
+   * The nodes links came from, by id.
+   */
+  private final ConcurrentHashMap<String, Origin> origins =
+    new ConcurrentHashMap<String, Origin>();
+
+  /**
+   * Held while a message is numbered and handed to the links, and while
+   * a link resumes, so that links send the messages in order.
+   */
+  private final Object publishLock = new Object();
+
+  /**
+   * The sequence number of the last message relayed.
+   */
+  private long sequence;
+
+  /**
+   * The last messages relayed, as sent; the one numbered n is at n
+   * modulo the length of the array.
+   */
+  private final String[] retained = new String[DEFAULT_RETAINED];
+
+  /**
+   * The messages relayed to peers, those received from them, and among
+   * those the ones dropped as duplicates and the ones found missing.
+   */
+  private final LongAdder relayed = new LongAdder();
+  private final LongAdder received = new LongAdder();
+  private final LongAdder duplicates = new LongAdder();
+  private final LongAdder missed = new LongAdder();
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates a node.  It does not accept links until it listens, and
+   * opens none until peers are added.
+   *
+   * @param nodeId The id of the node, unique in the cluster.
+   * @param port The port to listen on for the links of peers.
+   * @param listener Delivers the messages relayed by peers.
+   * @param log Where the links that are lost and restored are logged.
+   */
+  public ClusterNode(String nodeId, int port, RelayListener listener, AsyncLog log)
+  {
+    // The messages of each origin are handled one at a time, in order.
+    super(port, DispatchMode.PER_KEY);
+    if (nodeId.isEmpty() || nodeId.chars().anyMatch(Character::isWhitespace))
+      throw new IllegalArgumentException("invalid node id: " + nodeId);
+
+    this.nodeId = nodeId;
+    this.listener = listener;
+    this.log = log;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * @return The id of this node.
+   */
+  public String getNodeId()
+  {
+    return nodeId;
+  }
+
+  /**
+   * @return The links to the peers of this node.
+   */
+  public List<PeerLink> getPeers()
+  {
+    return Collections.unmodifiableList(links);
+  }
+
+  /**
+   * Opens a link to a peer, which is kept open until the node shuts
+   * down.  The link connects in the background, and again whenever it
+   * is lost.
+   *
+   * @param host The host of the peer.
+   * @param port The port the peer listens on for links.
+   * @return The link.
+   */
+  public PeerLink addPeer(String host, int port)
+  {
+    PeerLink link = new PeerLink(this, host, port);
+    links.add(link);
+    link.start();
+    return link;
+  }
+
+  /**
+   * Relays a message sent by a client of this node to the clients of
+   * the other nodes.  The message is queued on each link; this never
+   * waits for a peer.
+   *
+   * @param target ALL_CLIENTS, or the name of a channel.
+   * @param message The message.
+   */
+  public void publish(String target, String message)
+  {
+    if (links.isEmpty())
+      return;
+
+    synchronized (publishLock)
+    {
+      long seq = ++sequence;
+      String relay = RELAY + " " + seq + " " + target + " " + message;
+      retained[(int) (seq % retained.length)] = relay;
+      for (PeerLink link : links)
+      {
+        link.offer(relay);
+      }
+    }
+    relayed.increment();
+  }
+
+  /**
+   * Closes the links to the peers and those of the peers, and stops
+   * listening.
+   */
+  public void shutdown() throws IOException
+  {
+    for (PeerLink link : links)
+    {
+      link.shutdown();
+    }
+    links.clear();
+    close();
+  }
+
+  /**
+   * @return The number of messages relayed to peers.
+   */
+  public long getRelayedCount()
+  {
+    return relayed.sum();
+  }
+
+  /**
+   * @return The number of messages received from peers and delivered.
+   */
+  public long getReceivedCount()
+  {
+    return received.sum();
+  }
+
+  /**
+   * @return The number of messages received from peers twice, and
+   *         dropped.
+   */
+  public long getDuplicateCount()
+  {
+    return duplicates.sum();
+  }
+
+  /**
+   * @return The number of messages of peers that were never received,
+   *         because a link was down longer than their peer keeps
+   *         messages.
+   */
+  public long getMissedCount()
+  {
+    return missed.sum();
+  }
+
+  /**
+   * @return The first message a link sends, which names this node.
+   */
+  String hello()
+  {
+    return PEER + " " + nodeId + " " + epoch;
+  }
+
+  /**
+   * Queues on a link that just connected the messages its peer has
+   * not received yet, then lets it send those that follow.
+   *
+   * @param link The link.
+   * @param after The last message the peer delivered, or -1 if it
+   *          never received any from this node.
+   */
+  void resume(PeerLink link, long after)
+  {
+    synchronized (publishLock)
+    {
+      link.queue.clear();
+      long from = (after < 0) ? sequence : Math.max(after, sequence - retained.length);
+      for (long seq = from + 1; seq <= sequence; seq++)
+      {
+        link.queue.add(retained[(int) (seq % retained.length)]);
+      }
+      link.ready = true;
+    }
+  }
+
+  /**
+   * Handles the messages of a link under the lock of the node it comes
+   * from, so that the links of an origin, old and new, never deliver at
+   * the same time.
+   */
+  @Override
+  protected Object dispatchKey(Object msg, ConnectionToClient client)
+  {
+    Origin origin = client.getAttribute(ORIGIN);
+    if (origin != null)
+      return origin;
+
+    String[] hello = parseHello(msg);
+    return (hello == null) ? client : origins.computeIfAbsent(hello[0], Origin::new);
+  }
+
+  /**
+   * Handles a message of a link: its handshake, then the messages it
+   * relays.
+   *
+   * @param msg The message.
+   * @param client The link.
+   */
+  @Override
+  protected void handleMessageFromClient(Object msg, ConnectionToClient client)
+  {
+    Origin origin = client.getAttribute(ORIGIN);
+    try
+    {
+      if (origin == null)
+      {
+        handshake(msg, client);
+      }
+      else if (msg instanceof String && ((String) msg).startsWith(RELAY + " "))
+      {
+        deliver(origin, (String) msg);
+      }
+      else
+      {
+        throw new IOException("unexpected message");
+      }
+    }
+    catch (IOException | RuntimeException e)
+    {
+      log.warn("Closing the link {} of peer {}: {}", client,
+        origin == null ? "?" : origin.id, e.getMessage());
+      try
+      {
+        client.close();
+      }
+      catch (IOException ignored) {}
+    }
+  }
+
+  /**
+   * Answers the first message of a link with the last message
+   * delivered from its node.
+   *
+   * @param msg The message.
+   * @param client The link.
+   */
+  private void handshake(Object msg, ConnectionToClient client) throws IOException
+  {
+    String[] hello = parseHello(msg);
+    if (hello == null)
+      throw new IOException("no handshake");
+
+    Origin origin = origins.computeIfAbsent(hello[0], Origin::new);
+    long epoch = Long.parseLong(hello[1]);
+    if (origin.epoch != epoch)
+    {
+      // A node that restarted numbers its messages from 1 again.  Those
+      // of a node never heard of are only delivered from the next one.
+      origin.last = (origin.epoch == 0) ? -1 : 0;
+      origin.epoch = epoch;
+    }
+    client.setAttribute(ORIGIN, origin);
+    client.sendToClient(PEERED + " " + origin.last);
+    log.info("Peer {} linked from {}.", origin.id, client);
+  }
+
+  /**
+   * Delivers a message relayed by a node, unless it was delivered
+   * already.
+   *
+   * @param origin The node.
+   * @param relay The message as relayed.
+   */
+  private void deliver(Origin origin, String relay)
+  {
+    int seqEnd = relay.indexOf(' ', RELAY.length() + 1);
+    int targetEnd = relay.indexOf(' ', seqEnd + 1);
+    long seq = Long.parseLong(relay.substring(RELAY.length() + 1, seqEnd));
+    if (origin.last >= 0)
+    {
+      if (seq <= origin.last)
+      {
+        duplicates.increment();
+        return;
+      }
+      if (seq > origin.last + 1)
+      {
+        missed.add(seq - origin.last - 1);
+        log.warn("Missed {} messages of peer {}.", seq - origin.last - 1, origin.id);
+      }
+    }
+    origin.last = seq;
+    received.increment();
+    listener.messageRelayed(origin.id, relay.substring(seqEnd + 1, targetEnd),
+      relay.substring(targetEnd + 1));
+  }
+
+  /**
+   * @return The node id and epoch of a handshake, or null if the
+   *         message is not one.
+   */
+  private static String[] parseHello(Object msg)
+  {
+    if (!(msg instanceof String) || !((String) msg).startsWith(PEER + " "))
+      return null;
+    String[] hello = ((String) msg).substring(PEER.length() + 1).split(" ");
+    return (hello.length == 2) ? hello : null;
+  }
+
+  /**
+   * Logs the links that are lost.
+   */
+  @Override
+  synchronized protected void clientDisconnected(ConnectionToClient client)
+  {
+    Origin origin = client.getAttribute(ORIGIN);
+    if (origin != null)
+    {
+      log.info("Peer {} unlinked.", origin.id);
+    }
+  }
+
+  @Override
+  synchronized protected void clientException(ConnectionToClient client, Throwable exception)
+  {
+    clientDisconnected(client);
+  }
+
+  /**
+   * A node links come from, and the last of its messages delivered.
+   * Only used under the dispatch lock of the node.
+   */
+  private static final class Origin
+  {
+    final String id;
+    long epoch;
+    long last = -1;
+
+    Origin(String id)
+    {
+      this.id = id;
+    }
+  }
+}
+//End of ClusterNode class
@@ -0,0 +1,244 @@
+package edu.seg2105.edu.server.cluster;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.BinaryCodec;
+
+/**
+ * The link from a node of a cluster to one of its peers, over which the
+ * node relays the messages of its clients.  The link is a client of the
+ * peer's <code>ClusterNode</code>.  Messages are queued by the node and
+ * written by a thread of the link, which also connects the link and
+ * connects it again, with a growing delay, whenever it is lost.
+ *
+ * @see ClusterNode
+ */
+public class PeerLink extends AbstractClient
+{
+  //Class variables *************************************************
+
+  /**
+   * The largest number of messages waiting to be sent.  A peer that
+   * falls further behind is disconnected, and resumes from the messages
+   * its node keeps once it connects again.
+   */
+  final public static int MAX_QUEUED = ClusterNode.DEFAULT_RETAINED;
+
+  /**
+   * How long a link waits for the answer to its handshake, in
+   * milliseconds.
+   */
+  private static final long HANDSHAKE_TIMEOUT = 5000;
+
+  /**
+   * The delays before connecting again, in milliseconds.  The delay
+   * doubles after each failed attempt.
+   */
+  private static final long MIN_RETRY_DELAY = 100;
+  private static final long MAX_RETRY_DELAY = 5000;
+
+  //Instance variables **********************************************
+
+  /**
+   * The node the link belongs to.
+   */
+  private final ClusterNode node;
+
+  /**
+   * The messages waiting to be sent.  Filled by the node.
+   */
+  final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(MAX_QUEUED);
+
+  /**
+   * The answers of the peer to the handshake.
+   */
+  private final BlockingQueue<Long> answers = new LinkedBlockingQueue<Long>();
+
+  /**
+   * Whether the peer has answered the handshake, so that the messages
+   * relayed are queued.  Only set while holding the publish lock of the
+   * node.
+   */
+  volatile boolean ready;
+
+  /**
+   * Whether the link was shut down.
+   */
+  private volatile boolean closed;
+
+  /**
+   * The thread connecting the link and writing the messages.
+   */
+  private Thread writer;
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates a link.  It connects once started.
+   *
+   * @param node The node the link belongs to.
+   * @param host The host of the peer.
+   * @param port The port the peer listens on for links.
+   */
+  PeerLink(ClusterNode node, String host, int port)
+  {
+    super(host, port);
+    this.node = node;
+    setOfferedCodecs(new BinaryCodec());
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * @return true if the link is connected and the peer has answered
+   *         the handshake.
+   */
+  public boolean isReady()
+  {
+    return ready;
+  }
+
+  /**
+   * @return The address of the peer.
+   */
+  public String toString()
+  {
+    return getHost() + ":" + getPort();
+  }
+
+  /**
+   * Starts connecting the link.
+   */
+  void start()
+  {
+    writer = Thread.ofVirtual().name("peer-link " + this).start(this::maintain);
+  }
+
+  /**
+   * Queues a message for the peer.  Called while holding the publish
+   * lock of the node.  A peer that does not keep up is disconnected
+   * rather than slowing the node down.
+   *
+   * @param relay The message as relayed.
+   */
+  void offer(String relay)
+  {
+    if (ready && !queue.offer(relay))
+    {
+      ready = false;
+      node.log.warn("Peer {} is {} messages behind, reconnecting.", this, MAX_QUEUED);
+      disconnect();
+    }
+  }
+
+  /**
+   * Closes the link for good.
+   */
+  void shutdown()
+  {
+    closed = true;
+    ready = false;
+    writer.interrupt();
+    disconnect();
+  }
+
+  /**
+   * Connects the link and writes the messages queued, and connects it
+   * again when it is lost, until it is shut down.
+   */
+  private void maintain()
+  {
+    long delay = MIN_RETRY_DELAY;
+    while (!closed)
+    {
+      boolean linked = false;
+      try
+      {
+        answers.clear();
+        openConnection();
+        sendToServer(node.hello());
+        Long after = answers.poll(HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (after == null)
+          throw new IOException("no answer to the handshake");
+
+        node.resume(this, after);
+        linked = true;
+        delay = MIN_RETRY_DELAY;
+        node.log.info("Linked to peer {}.", this);
+        send();
+      }
+      catch (IOException e)
+      {
+        if (linked && !closed)
+        {
+          node.log.warn("Link to peer {} lost: {}", this, e.getMessage());
+        }
+      }
+      catch (InterruptedException e)
+      {
+        break;
+      }
+      ready = false;
+      disconnect();
+
+      try
+      {
+        Thread.sleep(delay);
+      }
+      catch (InterruptedException e)
+      {
+        break;
+      }
+      delay = Math.min(2 * delay, MAX_RETRY_DELAY);
+    }
+  }
+
+  /**
+   * Writes the messages queued as long as the link is connected.
+   */
+  private void send() throws IOException, InterruptedException
+  {
+    while (!closed && isConnected())
+    {
+      String relay = queue.poll(1, TimeUnit.SECONDS);
+      if (relay != null)
+      {
+        sendToServer(relay);
+      }
+    }
+    if (!closed)
+      throw new IOException("connection closed");
+  }
+
+  /**
+   * Closes the connection, if open.
+   */
+  private void disconnect()
+  {
+    try
+    {
+      closeConnection();
+    }
+    catch (IOException e) {}
+  }
+
+  /**
+   * Takes the answer of the peer to the handshake.
+   *
+   * @param msg The message from the peer.
+   */
+  @Override
+  protected void handleMessageFromServer(Object msg)
+  {
+    if (msg instanceof String && ((String) msg).startsWith(ClusterNode.PEERED + " "))
+    {
+      answers.offer(Long.parseLong(((String) msg).substring(ClusterNode.PEERED.length() + 1)));
+    }
+  }
+}
+//End of PeerLink class
@@ -0,0 +1,23 @@
+package edu.seg2105.edu.server.cluster;
+
+/**
+ * Receives the messages the other nodes of a cluster relay to this
+ * one.  Messages from one node are delivered in the order that node
+ * sent them, one at a time, and never twice; messages from different
+ * nodes may be delivered at the same time.
+ *
+ * @see ClusterNode
+ */
+public interface RelayListener
+{
+  /**
+   * Delivers a message relayed by another node to the clients of this
+   * one.
+   *
+   * @param origin The id of the node the message was sent from.
+   * @param target <code>ClusterNode.ALL_CLIENTS</code>, or the name of
+   *          the channel the message was sent to.
+   * @param message The message.
+   */
+  void messageRelayed(String origin, String target, String message);
+}
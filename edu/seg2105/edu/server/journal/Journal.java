@@ -0,0 +1,628 @@
+package edu.seg2105.edu.server.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+import ocsf.common.*;
+import ocsf.server.ConnectionToClient;
+
+/**
+ * An append-only journal of the messages broadcast by a server, kept in
+ * a directory as a series of segment files.  Each message is numbered
+ * with a sequence number, and a client that was offline can be sent the
+ * messages it missed.
+ * <p>
+ * Records are stored as the frames the binary codec sends to clients, so
+ * a client using that codec is replayed the bytes of the segments as
+ * they are, in large batches, without decoding or encoding anything.
+ * Clients using another codec are sent the decoded messages.
+ * <p>
+ * Appending only copies the frame to a buffer in memory.  A background
+ * thread writes what has accumulated with a single write, and forces it
+ * to the disk, so that many messages share the cost of one commit.  A
+ * message is thus durable a few milliseconds after it is appended.
+ * <p>
+ * Old segments are deleted when there are more than a given number, so
+ * the disk space used is bounded.
+ */
+public class Journal
+{
+  //Class variables *************************************************
+
+  /**
+   * The default size past which a new segment is started, in bytes.
+   */
+  final public static long DEFAULT_SEGMENT_SIZE = 16L * 1024 * 1024;
+
+  /**
+   * The default number of segments kept.
+   */
+  final public static int DEFAULT_MAX_SEGMENTS = 8;
+
+  /**
+   * The codec of the frames stored.
+   */
+  private static final MessageCodec CODEC = new BinaryCodec();
+
+  /**
+   * The number of bytes read from a segment at a time during a replay.
+   */
+  private static final int REPLAY_CHUNK = 64 * 1024;
+
+  //Instance variables **********************************************
+
+  /**
+   * The directory of the segment files.
+   */
+  private final Path directory;
+
+  /**
+   * The size past which a new segment is started, in bytes.
+   */
+  private final long segmentSize;
+
+  /**
+   * The number of segments kept.
+   */
+  private final int maxSegments;
+
+  /**
+   * Indicates if every commit is forced to the disk.
+   */
+  private final boolean force;
+
+  /**
+   * The frames appended and not yet written, and their length.  Guarded
+   * by this journal's lock, like the fields up to closed.
+   */
+  private byte[] pending = new byte[8192];
+  private int pendingLength;
+
+  /**
+   * The buffer written by the previous commit, reused by the next.
+   */
+  private byte[] spare = new byte[8192];
+
+  /**
+   * The sequence number of the last record appended.
+   */
+  private long lastSequence;
+
+  /**
+   * The sequence number of the last record written to a segment.
+   */
+  private long committedSequence;
+
+  /**
+   * The error that stopped the journal, or null.
+   */
+  private IOException failure;
+
+  /**
+   * Indicates if the journal is closed.
+   */
+  private boolean closed = false;
+
+  /**
+   * The segments, oldest first.  Guarded by their own lock.
+   */
+  private final ArrayList<Segment> segments = new ArrayList<Segment>();
+
+  /**
+   * The thread writing the records.
+   */
+  private final Thread committer;
+
+  //Constructors ****************************************************
+
+  /**
+   * Opens a journal with the default limits, forcing every commit to the
+   * disk.
+   *
+   * @param directory The directory of the journal, created if needed.
+   */
+  public Journal(Path directory) throws IOException
+  {
+    this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS, true);
+  }
+
+  /**
+   * Opens a journal, recovering the records already in its directory.
+   *
+   * @param directory The directory of the journal, created if needed.
+   * @param segmentSize The size past which a new segment is started.
+   * @param maxSegments The number of segments kept, at least 1.
+   * @param force true to force every commit to the disk; false to leave
+   *          it to the operating system, which is faster but loses the
+   *          last messages if the machine crashes.
+   */
+  public Journal(Path directory, long segmentSize, int maxSegments, boolean force)
+    throws IOException
+  {
+    if (segmentSize <= 0 || segmentSize > Integer.MAX_VALUE || maxSegments < 1)
+      throw new IllegalArgumentException("invalid journal limits");
+
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSegments = maxSegments;
+    this.force = force;
+    Files.createDirectories(directory);
+    recover();
+
+    committer = new Thread(this::commitRecords, "Journal");
+    committer.setDaemon(true);
+    committer.start();
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * @return The directory of the journal.
+   */
+  public Path getDirectory()
+  {
+    return directory;
+  }
+
+  /**
+   * @return The sequence number of the last message appended, or 0 if
+   *         the journal is empty.
+   */
+  public synchronized long getLastSequence()
+  {
+    return lastSequence;
+  }
+
+  /**
+   * @return The sequence number of the oldest message kept, or one past
+   *         the last if none is kept.
+   */
+  public long getFirstSequence()
+  {
+    synchronized (segments)
+    {
+      for (Segment segment : segments)
+      {
+        if (segment.count > 0)
+          return segment.firstSequence;
+      }
+    }
+    return getLastSequence() + 1;
+  }
+
+  /**
+   * Appends a message.  Returns at once; the message is written by the
+   * next commit.
+   *
+   * @param message The message.
+   * @return The sequence number of the message.
+   * @exception IOException If the message cannot be encoded, or if the
+   *              journal is closed or could not be written.
+   */
+  public long append(String message) throws IOException
+  {
+    byte[] frame = Frames.encode(CODEC, message);
+    synchronized (this)
+    {
+      if (failure != null)
+        throw failure;
+      if (closed)
+        throw new IOException("journal closed");
+
+      if (pendingLength + frame.length > pending.length)
+      {
+        pending = Arrays.copyOf(pending,
+          Math.max(pending.length * 2, pendingLength + frame.length));
+      }
+      System.arraycopy(frame, 0, pending, pendingLength, frame.length);
+      pendingLength += frame.length;
+      if (pendingLength == frame.length)
+      {
+        notifyAll();
+      }
+      return ++lastSequence;
+    }
+  }
+
+  /**
+   * Waits until the messages appended so far are written.
+   *
+   * @exception IOException If the journal could not be written.
+   */
+  public void sync() throws IOException
+  {
+    awaitCommitted(getLastSequence());
+  }
+
+  /**
+   * Sends a client the messages of a range of sequence numbers.  Waits
+   * for the range to be written first.  Messages no longer kept are
+   * skipped.
+   *
+   * @param client The client.
+   * @param after The sequence number of the last message the client has.
+   * @param upTo The sequence number of the last message sent.
+   * @return The number of messages sent.
+   * @exception IOException If the journal cannot be read, or if the
+   *              client is disconnected.
+   */
+  public int replay(ConnectionToClient client, long after, long upTo)
+    throws IOException
+  {
+    if (upTo <= after)
+      return 0;
+    awaitCommitted(upTo);
+
+    int sent = 0;
+    boolean raw = true;
+    long sequence = Math.max(after + 1, getFirstSequence());
+    while (sequence <= upTo)
+    {
+      // Locate the rest of the range in one segment.
+      Segment segment = null;
+      long start;
+      long end;
+      synchronized (segments)
+      {
+        for (Segment candidate : segments)
+        {
+          if (candidate.firstSequence <= sequence && sequence <= candidate.lastSequence())
+          {
+            segment = candidate;
+            break;
+          }
+        }
+        if (segment == null)
+          break;
+        start = segment.positionOf(sequence);
+        end = segment.positionOf(Math.min(upTo, segment.lastSequence()) + 1);
+      }
+
+      while (start < end)
+      {
+        byte[] chunk = read(segment, start, end);
+        int count = 0;
+        int length = 0;
+        while (length < chunk.length)
+        {
+          length += Frames.HEADER_LENGTH + readInt(chunk, length);
+          count++;
+        }
+
+        if (raw && !client.sendFrames(BinaryCodec.NAME, chunk, count))
+        {
+          raw = false;
+        }
+        if (!raw)
+        {
+          for (int offset = 0; offset < chunk.length; )
+          {
+            int payload = readInt(chunk, offset);
+            client.sendToClient(CODEC.decode(chunk, offset + Frames.HEADER_LENGTH, payload));
+            offset += Frames.HEADER_LENGTH + payload;
+          }
+        }
+        start += chunk.length;
+        sequence += count;
+        sent += count;
+      }
+    }
+    return sent;
+  }
+
+  /**
+   * Writes the messages appended so far and closes the journal.
+   */
+  public void close() throws IOException
+  {
+    synchronized (this)
+    {
+      closed = true;
+      notifyAll();
+    }
+    try
+    {
+      committer.join();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+
+    synchronized (segments)
+    {
+      for (Segment segment : segments)
+      {
+        segment.channel.close();
+      }
+      segments.clear();
+    }
+    synchronized (this)
+    {
+      if (failure != null)
+        throw failure;
+    }
+  }
+
+  /**
+   * Opens the segments found in the directory.
+   */
+  private void recover() throws IOException
+  {
+    List<Path> files;
+    try (Stream<Path> list = Files.list(directory))
+    {
+      files = list.filter(path -> Segment.isSegment(path.getFileName().toString()))
+        .sorted().toList();
+    }
+
+    try
+    {
+      for (Path file : files)
+      {
+        Segment segment = Segment.recover(file);
+        Segment previous = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (previous != null && previous.lastSequence() + 1 != segment.firstSequence)
+        {
+          // A segment is missing: only the records after the gap can
+          // be numbered consistently.
+          for (Segment older : segments)
+          {
+            older.delete();
+          }
+          segments.clear();
+        }
+        segments.add(segment);
+      }
+    }
+    catch (IOException e)
+    {
+      for (Segment segment : segments)
+      {
+        segment.channel.close();
+      }
+      throw e;
+    }
+
+    if (!segments.isEmpty())
+    {
+      lastSequence = segments.get(segments.size() - 1).lastSequence();
+    }
+    committedSequence = lastSequence;
+  }
+
+  /**
+   * Runs the committer: writes the frames appended, in batches, until
+   * the journal is closed and everything is written.
+   */
+  private void commitRecords()
+  {
+    while (true)
+    {
+      byte[] batch;
+      int length;
+      long first;
+      long last;
+      synchronized (this)
+      {
+        while (pendingLength == 0 && !closed)
+        {
+          try
+          {
+            wait();
+          }
+          catch (InterruptedException e)
+          {
+            // Only closing stops the committer.
+          }
+        }
+        if (pendingLength == 0)
+          return;
+
+        batch = pending;
+        length = pendingLength;
+        first = committedSequence + 1;
+        last = lastSequence;
+        pending = spare;
+        pendingLength = 0;
+      }
+
+      try
+      {
+        write(batch, length, first);
+      }
+      catch (IOException | RuntimeException e)
+      {
+        synchronized (this)
+        {
+          failure = (e instanceof IOException) ? (IOException) e
+            : new IOException("journal write failed", e);
+          closed = true;
+          pendingLength = 0;
+          notifyAll();
+        }
+        return;
+      }
+
+      synchronized (this)
+      {
+        committedSequence = last;
+        spare = batch;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Writes a batch of frames to the segments, starting new segments as
+   * needed.
+   *
+   * @param batch The frames.
+   * @param length The number of bytes of frames.
+   * @param sequence The sequence number of the first frame.
+   */
+  private void write(byte[] batch, int length, long sequence) throws IOException
+  {
+    Segment segment;
+    synchronized (segments)
+    {
+      segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    }
+    if (segment == null)
+    {
+      segment = startSegment(sequence);
+    }
+
+    // Write the frames that go to the same segment with a single call.
+    int runStart = 0;
+    int offset = 0;
+    while (offset < length)
+    {
+      int frameLength = Frames.HEADER_LENGTH + readInt(batch, offset);
+      long runSize = offset - runStart;
+      if (segment.size + runSize + frameLength > segmentSize && segment.size + runSize > 0)
+      {
+        writeRun(segment, batch, runStart, offset);
+        if (force)
+        {
+          segment.channel.force(false);
+        }
+        segment = startSegment(sequence);
+        runStart = offset;
+      }
+      offset += frameLength;
+      sequence++;
+    }
+    writeRun(segment, batch, runStart, offset);
+    if (force)
+    {
+      segment.channel.force(false);
+    }
+  }
+
+  /**
+   * Writes consecutive frames at the end of a segment, then makes them
+   * visible to replays.
+   */
+  private void writeRun(Segment segment, byte[] batch, int from, int to) throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.wrap(batch, from, to - from);
+    long position = segment.size;
+    while (buffer.hasRemaining())
+    {
+      position += segment.channel.write(buffer, position);
+    }
+
+    synchronized (segments)
+    {
+      for (int offset = from; offset < to; )
+      {
+        segment.appended(segment.size);
+        int frameLength = Frames.HEADER_LENGTH + readInt(batch, offset);
+        segment.size += frameLength;
+        offset += frameLength;
+      }
+    }
+  }
+
+  /**
+   * Starts a new segment, and deletes the oldest ones beyond the limit.
+   *
+   * @param firstSequence The sequence number of the first record of the
+   *          new segment.
+   * @return The new segment.
+   */
+  private Segment startSegment(long firstSequence) throws IOException
+  {
+    Segment segment = Segment.create(directory, firstSequence);
+    List<Segment> expired = new ArrayList<Segment>();
+    synchronized (segments)
+    {
+      segments.add(segment);
+      while (segments.size() > maxSegments)
+      {
+        expired.add(segments.remove(0));
+      }
+    }
+    for (Segment old : expired)
+    {
+      old.delete();
+    }
+    return segment;
+  }
+
+  /**
+   * Waits until the records up to a sequence number are written.
+   *
+   * @param sequence The sequence number.
+   */
+  private synchronized void awaitCommitted(long sequence) throws IOException
+  {
+    boolean interrupted = false;
+    while (committedSequence < sequence && failure == null && !(closed && pendingLength == 0))
+    {
+      try
+      {
+        wait();
+      }
+      catch (InterruptedException e)
+      {
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+    {
+      Thread.currentThread().interrupt();
+    }
+    if (failure != null)
+      throw failure;
+  }
+
+  /**
+   * Reads the frames of a segment from a position, as many whole frames
+   * as fit in a chunk, or a single frame larger than a chunk.
+   *
+   * @param segment The segment.
+   * @param start The position of the first frame.
+   * @param end The position past the last frame to read.
+   * @return The frames.
+   */
+  private static byte[] read(Segment segment, long start, long end) throws IOException
+  {
+    byte[] chunk = new byte[(int) Math.min(REPLAY_CHUNK, end - start)];
+    if (chunk.length < Frames.HEADER_LENGTH)
+      throw new IOException("corrupted journal segment " + segment);
+    segment.readFully(ByteBuffer.wrap(chunk), start);
+
+    int length = 0;
+    while (length + Frames.HEADER_LENGTH <= chunk.length)
+    {
+      int frameLength = Frames.HEADER_LENGTH + Frames.checkLength(readInt(chunk, length));
+      if (length + frameLength > chunk.length)
+        break;
+      length += frameLength;
+    }
+
+    if (length == 0)
+    {
+      // A frame larger than the chunk.
+      int frameLength = Frames.HEADER_LENGTH + readInt(chunk, 0);
+      chunk = new byte[frameLength];
+      segment.readFully(ByteBuffer.wrap(chunk), start);
+      return chunk;
+    }
+    return length == chunk.length ? chunk : Arrays.copyOf(chunk, length);
+  }
+
+  /**
+   * @return The big endian int at an offset of an array.
+   */
+  private static int readInt(byte[] bytes, int offset)
+  {
+    return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+      | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+  }
+}
@@ -0,0 +1,250 @@
+package edu.seg2105.edu.server.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+
+import ocsf.common.Frames;
+
+/**
+ * One file of a journal.  A segment holds consecutive records, each a
+ * complete frame as sent to clients, back to back and without any other
+ * header: the sequence number of a record follows from its place in the
+ * segment, and the segment is named after the sequence number of its
+ * first record.
+ * <p>
+ * The position of every INDEX_INTERVAL-th record is kept in memory, so
+ * finding a record only reads the headers of the few records before it.
+ */
+final class Segment
+{
+  //Class variables *************************************************
+
+  /**
+   * The suffix of segment files.
+   */
+  static final String SUFFIX = ".journal";
+
+  /**
+   * The number of records between two positions kept in the index.
+   */
+  private static final int INDEX_INTERVAL = 64;
+
+  //Instance variables **********************************************
+
+  /**
+   * The file of the segment.
+   */
+  final Path path;
+
+  /**
+   * The sequence number of the first record.
+   */
+  final long firstSequence;
+
+  /**
+   * The channel the segment is written and read through.
+   */
+  final FileChannel channel;
+
+  /**
+   * The number of bytes and of records written.  Guarded by the
+   * journal's segment lock.
+   */
+  long size;
+  long count;
+
+  /**
+   * The positions of records firstSequence, firstSequence +
+   * INDEX_INTERVAL, and so on.  Guarded by the journal's segment lock.
+   */
+  private long[] index = new long[16];
+  private int indexLength;
+
+  //Constructors ****************************************************
+
+  private Segment(Path path, long firstSequence, FileChannel channel)
+  {
+    this.path = path;
+    this.firstSequence = firstSequence;
+    this.channel = channel;
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Creates an empty segment.
+   *
+   * @param directory The directory of the journal.
+   * @param firstSequence The sequence number of its first record.
+   * @return The segment.
+   */
+  static Segment create(Path directory, long firstSequence) throws IOException
+  {
+    Path path = directory.resolve(fileName(firstSequence));
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+      StandardOpenOption.READ, StandardOpenOption.WRITE);
+    return new Segment(path, firstSequence, channel);
+  }
+
+  /**
+   * Opens an existing segment and rebuilds its index.  A record cut
+   * short by a crash is removed.
+   *
+   * @param path The file of the segment.
+   * @return The segment.
+   */
+  static Segment recover(Path path) throws IOException
+  {
+    String name = path.getFileName().toString();
+    long firstSequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    Segment segment = new Segment(path, firstSequence, channel);
+    try
+    {
+      long length = channel.size();
+      if (length > Integer.MAX_VALUE)
+        throw new IOException("journal segment too large: " + path);
+      long position = 0;
+      if (length > 0)
+      {
+        // Only the headers are read, so mapping the file saves a read
+        // call per record.
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        while (length - position >= Frames.HEADER_LENGTH)
+        {
+          int payload = mapped.getInt((int) position);
+          if (payload < 0 || payload > Frames.MAX_PAYLOAD_LENGTH
+            || Frames.HEADER_LENGTH + payload > length - position)
+            break;
+          segment.appended(position);
+          position += Frames.HEADER_LENGTH + payload;
+        }
+      }
+      if (position < length)
+      {
+        channel.truncate(position);
+      }
+      segment.size = position;
+    }
+    catch (IOException | RuntimeException e)
+    {
+      channel.close();
+      throw e;
+    }
+    return segment;
+  }
+
+  /**
+   * @param name The name of a file.
+   * @return true if it is the name of a segment.
+   */
+  static boolean isSegment(String name)
+  {
+    if (!name.endsWith(SUFFIX) || name.length() == SUFFIX.length())
+      return false;
+    for (int i = 0; i < name.length() - SUFFIX.length(); i++)
+    {
+      if (!Character.isDigit(name.charAt(i)))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return The name of the segment starting at a sequence number.
+   */
+  private static String fileName(long firstSequence)
+  {
+    return String.format("%020d%s", firstSequence, SUFFIX);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * @return The sequence number of the last record, or firstSequence - 1
+   *         if the segment is empty.
+   */
+  long lastSequence()
+  {
+    return firstSequence + count - 1;
+  }
+
+  /**
+   * Accounts for a record written at a position.  Called with the
+   * segment lock held.
+   *
+   * @param position The position of the record.
+   */
+  void appended(long position)
+  {
+    if (count % INDEX_INTERVAL == 0)
+    {
+      if (indexLength == index.length)
+      {
+        index = Arrays.copyOf(index, indexLength * 2);
+      }
+      index[indexLength++] = position;
+    }
+    count++;
+  }
+
+  /**
+   * Finds where a record starts.  Called with the segment lock held.
+   *
+   * @param sequence The sequence number of a record of this segment, or
+   *          one past the last.
+   * @return The position of the record, or the size of the segment.
+   */
+  long positionOf(long sequence) throws IOException
+  {
+    long offset = sequence - firstSequence;
+    if (offset >= count)
+      return size;
+
+    int entry = (int) (offset / INDEX_INTERVAL);
+    long position = index[entry];
+    ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_LENGTH);
+    for (long skip = offset - (long) entry * INDEX_INTERVAL; skip > 0; skip--)
+    {
+      header.clear();
+      readFully(header, position);
+      position += Frames.HEADER_LENGTH + header.getInt(0);
+    }
+    return position;
+  }
+
+  /**
+   * Reads bytes from a position until the buffer is full.
+   *
+   * @param buffer The buffer.
+   * @param position The position of the first byte.
+   */
+  void readFully(ByteBuffer buffer, long position) throws IOException
+  {
+    while (buffer.hasRemaining())
+    {
+      int read = channel.read(buffer, position);
+      if (read < 0)
+        throw new IOException("unexpected end of journal segment " + path);
+      position += read;
+    }
+  }
+
+  /**
+   * Closes the segment and deletes its file.
+   */
+  void delete() throws IOException
+  {
+    channel.close();
+    Files.deleteIfExists(path);
+  }
+
+  public String toString()
+  {
+    return path.toString();
+  }
+}
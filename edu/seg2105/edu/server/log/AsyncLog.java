@@ -0,0 +1,559 @@
+package edu.seg2105.edu.server.log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A logger that never makes the threads logging wait for output.  A
+ * record is stored in a bounded ring buffer, and a background writer
+ * takes the records out in batches and hands them to the sinks, which
+ * are flushed once per batch.  Logging a record only costs a few
+ * atomic operations; formatting a message from a pattern and its
+ * arguments is left to the writer.
+ * <p>
+ * When the buffer is full the record is dropped rather than waited for,
+ * so a slow console or disk can never hold up the threads handling
+ * messages.  The writer reports how many records were dropped as soon
+ * as it catches up.
+ * <p>
+ * The ring buffer follows Dmitry Vyukov's bounded queue: every slot has
+ * a sequence number telling producers when it is free and the writer
+ * when it is filled, so producers only contend on the counter handing
+ * out the slots.
+ */
+public class AsyncLog
+{
+  //Class variables *************************************************
+
+  /**
+   * The default number of records the buffer holds.
+   */
+  final public static int DEFAULT_CAPACITY = 16384;
+
+  /**
+   * How long the writer sleeps at most when there is nothing to write.
+   */
+  private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+
+  //Instance variables **********************************************
+
+  /**
+   * The sequence number of each slot.  A slot whose sequence number
+   * equals a position is free for the record logged at that position; one
+   * past the position means the record is written and ready.
+   */
+  private final AtomicLongArray sequences;
+
+  /**
+   * The records in the buffer: time, level, message or pattern, and the
+   * arguments of the pattern, or null.
+   */
+  private final long[] times;
+  private final LogLevel[] levels;
+  private final String[] messages;
+  private final Object[][] arguments;
+
+  /**
+   * The capacity of the buffer minus one.  The capacity is a power of
+   * two.
+   */
+  private final int mask;
+
+  /**
+   * The position of the next record logged.
+   */
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * The position of the next record written.  Only used by the writer.
+   */
+  private long head = 0;
+
+  /**
+   * The number of records dropped because the buffer was full.
+   */
+  private final LongAdder dropped = new LongAdder();
+
+  /**
+   * The number of dropped records already reported.  Only used by the
+   * writer.
+   */
+  private long droppedReported = 0;
+
+  /**
+   * The lowest level of the records kept.
+   */
+  private volatile LogLevel level = LogLevel.INFO;
+
+  /**
+   * The destinations of the records.  Guarded by its own lock, which the
+   * writer holds while it writes a batch.
+   */
+  private final ArrayList<LogSink> sinks = new ArrayList<LogSink>();
+
+  /**
+   * The thread writing the records to the sinks.
+   */
+  private final Thread writer;
+
+  /**
+   * Indicates if the writer is about to sleep, and must be woken up when
+   * a record is logged.
+   */
+  private volatile boolean writerWaiting = false;
+
+  /**
+   * Indicates if the logger is closed.
+   */
+  private volatile boolean closed = false;
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates a logger.  Its writer is started by the factory methods, once
+   * the logger is fully constructed.
+   *
+   * @param capacity The number of records the buffer holds, rounded up
+   *          to a power of two.
+   */
+  private AsyncLog(int capacity)
+  {
+    if (capacity <= 0 || capacity > (1 << 30))
+      throw new IllegalArgumentException("invalid capacity: " + capacity);
+
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity)
+    {
+      size <<= 1;
+    }
+    mask = size - 1;
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++)
+    {
+      sequences.set(i, i);
+    }
+    times = new long[size];
+    levels = new LogLevel[size];
+    messages = new String[size];
+    arguments = new Object[size][];
+
+    writer = new Thread(this::writeRecords, "AsyncLog");
+    writer.setDaemon(true);
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Creates a logger with a buffer of the default capacity and starts its
+   * writer.
+   *
+   * @return The logger.
+   */
+  public static AsyncLog create()
+  {
+    return create(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a logger and starts its writer.
+   *
+   * @param capacity The number of records the buffer holds, rounded up
+   *          to a power of two.
+   * @return The logger.
+   */
+  public static AsyncLog create(int capacity)
+  {
+    AsyncLog log = new AsyncLog(capacity);
+    log.writer.start();
+    return log;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * @return The lowest level of the records kept.
+   */
+  public LogLevel getLevel()
+  {
+    return level;
+  }
+
+  /**
+   * Sets the lowest level of the records kept.  Records of lower levels
+   * are ignored at once.
+   *
+   * @param level The level, <code>OFF</code> to keep nothing.
+   */
+  public void setLevel(LogLevel level)
+  {
+    if (level == null)
+      throw new IllegalArgumentException("level is null");
+
+    this.level = level;
+  }
+
+  /**
+   * Tells if records of a level are kept, so that a caller can avoid
+   * building a message that would be ignored.
+   *
+   * @param level The level.
+   * @return true if records of this level are kept.
+   */
+  public boolean isEnabled(LogLevel level)
+  {
+    return level != LogLevel.OFF && level.compareTo(this.level) >= 0;
+  }
+
+  /**
+   * Adds a destination for the records.
+   *
+   * @param sink The sink.
+   */
+  public void addSink(LogSink sink)
+  {
+    synchronized (sinks)
+    {
+      sinks.add(sink);
+    }
+  }
+
+  /**
+   * Removes a destination of the records and closes it.  Records already
+   * written to it are flushed.
+   *
+   * @param sink The sink.
+   */
+  public void removeSink(LogSink sink) throws IOException
+  {
+    synchronized (sinks)
+    {
+      if (!sinks.remove(sink))
+        return;
+    }
+    try
+    {
+      sink.flush();
+    }
+    finally
+    {
+      sink.close();
+    }
+  }
+
+  /**
+   * @return The number of records dropped because the buffer was full.
+   */
+  public long getDroppedCount()
+  {
+    return dropped.sum();
+  }
+
+  /**
+   * Logs a message.
+   *
+   * @param level The level of the record.
+   * @param message The message.
+   */
+  public void log(LogLevel level, String message)
+  {
+    if (isEnabled(level))
+    {
+      append(level, message, null);
+    }
+  }
+
+  /**
+   * Logs a message built from a pattern.  Each <code>{}</code> in the
+   * pattern is replaced by the next argument, by the writer.  The
+   * arguments must therefore not be modified once logged.
+   *
+   * @param level The level of the record.
+   * @param pattern The pattern of the message.
+   * @param args The arguments of the pattern.
+   */
+  public void log(LogLevel level, String pattern, Object... args)
+  {
+    if (isEnabled(level))
+    {
+      append(level, pattern, args);
+    }
+  }
+
+  /**
+   * Logs a message of level <code>DEBUG</code>.
+   *
+   * @see #log(LogLevel, String, Object...)
+   */
+  public void debug(String pattern, Object... args)
+  {
+    log(LogLevel.DEBUG, pattern, args);
+  }
+
+  /**
+   * Logs a message of level <code>INFO</code>.
+   *
+   * @see #log(LogLevel, String, Object...)
+   */
+  public void info(String pattern, Object... args)
+  {
+    log(LogLevel.INFO, pattern, args);
+  }
+
+  /**
+   * Logs a message of level <code>WARN</code>.
+   *
+   * @see #log(LogLevel, String, Object...)
+   */
+  public void warn(String pattern, Object... args)
+  {
+    log(LogLevel.WARN, pattern, args);
+  }
+
+  /**
+   * Logs a message of level <code>ERROR</code>.
+   *
+   * @see #log(LogLevel, String, Object...)
+   */
+  public void error(String pattern, Object... args)
+  {
+    log(LogLevel.ERROR, pattern, args);
+  }
+
+  /**
+   * Writes the records still in the buffer, closes the sinks and stops
+   * the writer.  Returns once the records are written, even if the
+   * calling thread is interrupted.  Records logged afterwards are
+   * ignored.
+   */
+  public void close()
+  {
+    closed = true;
+    LockSupport.unpark(writer);
+    boolean interrupted = false;
+    while (true)
+    {
+      try
+      {
+        writer.join();
+        break;
+      }
+      catch (InterruptedException e)
+      {
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Stores a record in the buffer, or drops it if the buffer is full.
+   */
+  private void append(LogLevel level, String message, Object[] args)
+  {
+    if (closed)
+      return;
+
+    long position = tail.get();
+    while (true)
+    {
+      long difference = sequences.get((int) position & mask) - position;
+      if (difference == 0)
+      {
+        if (tail.compareAndSet(position, position + 1))
+          break;
+        position = tail.get();
+      }
+      else if (difference < 0)
+      {
+        // The writer has not freed this slot yet: the buffer is full.
+        dropped.increment();
+        return;
+      }
+      else
+      {
+        // Another thread took the slot.
+        position = tail.get();
+      }
+    }
+
+    int slot = (int) position & mask;
+    times[slot] = System.currentTimeMillis();
+    levels[slot] = level;
+    messages[slot] = message;
+    arguments[slot] = (args == null || args.length == 0) ? null : args;
+    sequences.set(slot, position + 1);
+
+    if (writerWaiting)
+    {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  /**
+   * @return true if the record at the writer's position is not ready.
+   */
+  private boolean isEmpty()
+  {
+    return sequences.get((int) head & mask) != head + 1;
+  }
+
+  /**
+   * Runs the writer: writes the records in batches until the logger is
+   * closed and the buffer empty.
+   */
+  private void writeRecords()
+  {
+    while (true)
+    {
+      if (writeBatch())
+        continue;
+      if (closed)
+        break;
+
+      writerWaiting = true;
+      if (isEmpty() && !closed)
+      {
+        LockSupport.parkNanos(this, IDLE_WAIT);
+      }
+      writerWaiting = false;
+    }
+
+    synchronized (sinks)
+    {
+      for (LogSink sink : sinks)
+      {
+        try
+        {
+          sink.close();
+        }
+        catch (IOException e)
+        {
+          sinkFailed(sink, e);
+        }
+      }
+      sinks.clear();
+    }
+  }
+
+  /**
+   * Writes the records ready in the buffer to every sink, then flushes
+   * the sinks.
+   *
+   * @return false if there was nothing to write.
+   */
+  private boolean writeBatch()
+  {
+    long droppedNow = dropped.sum();
+    if (isEmpty() && droppedNow == droppedReported)
+      return false;
+
+    synchronized (sinks)
+    {
+      if (droppedNow != droppedReported)
+      {
+        write(System.currentTimeMillis(), LogLevel.WARN,
+          (droppedNow - droppedReported) + " log records dropped, the log could not keep up");
+        droppedReported = droppedNow;
+      }
+
+      // Bound the batch, so that sink changes are not held up for long.
+      for (int count = 0; count <= mask && !isEmpty(); count++)
+      {
+        int slot = (int) head & mask;
+        long time = times[slot];
+        LogLevel level = levels[slot];
+        String message = messages[slot];
+        Object[] args = arguments[slot];
+        messages[slot] = null;
+        arguments[slot] = null;
+        sequences.set(slot, head + mask + 1);
+        head++;
+
+        write(time, level, args == null ? message : formatSafely(message, args));
+      }
+
+      for (LogSink sink : sinks)
+      {
+        try
+        {
+          sink.flush();
+        }
+        catch (IOException e)
+        {
+          sinkFailed(sink, e);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes a record to every sink.  Called while holding the sinks' lock.
+   */
+  private void write(long time, LogLevel level, String message)
+  {
+    for (LogSink sink : sinks)
+    {
+      try
+      {
+        sink.write(time, level, message);
+      }
+      catch (IOException e)
+      {
+        sinkFailed(sink, e);
+      }
+    }
+  }
+
+  /**
+   * Reports a sink that failed.  The log cannot report on itself, so the
+   * failure goes to the standard error stream.
+   */
+  private static void sinkFailed(LogSink sink, IOException e)
+  {
+    System.err.println("Log sink " + sink + " failed: " + e.getMessage());
+  }
+
+  /**
+   * Formats a message for the writer.  An argument whose toString fails
+   * must not stop the writer, so the pattern is written instead.
+   */
+  private static String formatSafely(String pattern, Object[] args)
+  {
+    try
+    {
+      return format(pattern, args);
+    }
+    catch (RuntimeException e)
+    {
+      return pattern + " (could not format the arguments: " + e + ")";
+    }
+  }
+
+  /**
+   * Replaces each <code>{}</code> in a pattern by the next argument.
+   *
+   * @param pattern The pattern.
+   * @param args The arguments.
+   * @return The message.
+   */
+  static String format(String pattern, Object[] args)
+  {
+    StringBuilder message = new StringBuilder(pattern.length() + 16 * args.length);
+    int from = 0;
+    int next = 0;
+    int at;
+    while (next < args.length && (at = pattern.indexOf("{}", from)) >= 0)
+    {
+      message.append(pattern, from, at).append(args[next++]);
+      from = at + 2;
+    }
+    return message.append(pattern, from, pattern.length()).toString();
+  }
+}
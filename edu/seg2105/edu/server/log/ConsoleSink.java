@@ -0,0 +1,38 @@
+package edu.seg2105.edu.server.log;
+
+import edu.seg2105.client.common.ChatIF;
+
+/**
+ * Shows log records on the server's user interface.  Only the message
+ * is shown, as the server always displayed it; warnings and errors are
+ * marked with their level.
+ */
+public class ConsoleSink implements LogSink
+{
+  //Instance variables **********************************************
+
+  /**
+   * The user interface the records are displayed on.
+   */
+  private final ChatIF ui;
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates a sink displaying records on a user interface.
+   *
+   * @param ui The user interface.
+   */
+  public ConsoleSink(ChatIF ui)
+  {
+    this.ui = ui;
+  }
+
+  //Instance methods ************************************************
+
+  @Override
+  public void write(long time, LogLevel level, String message)
+  {
+    ui.display(level.compareTo(LogLevel.WARN) >= 0 ? level + ": " + message : message);
+  }
+}
@@ -0,0 +1,35 @@
+package edu.seg2105.edu.server.log;
+
+/**
+ * The severity of a log record.  A logger set to a level keeps the
+ * records of that level and above.
+ *
+ * @see AsyncLog#setLevel(LogLevel)
+ */
+public enum LogLevel
+{
+  /**
+   * Details of every message handled, useful when debugging.
+   */
+  DEBUG,
+
+  /**
+   * Normal events: messages received, clients logging on and off.
+   */
+  INFO,
+
+  /**
+   * Unexpected events the server recovers from.
+   */
+  WARN,
+
+  /**
+   * Failures.
+   */
+  ERROR,
+
+  /**
+   * Only used to set a logger's level: keeps no record at all.
+   */
+  OFF
+}
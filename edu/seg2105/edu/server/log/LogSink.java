@@ -0,0 +1,36 @@
+package edu.seg2105.edu.server.log;
+
+import java.io.IOException;
+
+/**
+ * A destination of log records.  Sinks are only called by the
+ * background writer of an <code>AsyncLog</code>, one at a time, so
+ * they need not be thread-safe.  Records are written in batches, each
+ * followed by a call to <code>flush</code>.
+ *
+ * @see AsyncLog#addSink(LogSink)
+ */
+public interface LogSink
+{
+  /**
+   * Writes a record.
+   *
+   * @param time When the record was logged, in milliseconds since the
+   *          epoch.
+   * @param level The level of the record.
+   * @param message The message.
+   */
+  void write(long time, LogLevel level, String message) throws IOException;
+
+  /**
+   * Pushes the records written so far to their destination.  Called at
+   * the end of each batch.
+   */
+  default void flush() throws IOException {}
+
+  /**
+   * Releases the resources of the sink.  Called once it is removed from
+   * its logger, or when the logger is closed.
+   */
+  default void close() throws IOException {}
+}
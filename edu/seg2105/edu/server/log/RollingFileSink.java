@@ -0,0 +1,179 @@
+package edu.seg2105.edu.server.log;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Appends log records to a file, one per line, preceded by their time
+ * and level.  When the file grows past a given size it is renamed with
+ * the suffix <code>.1</code>, older files moving to <code>.2</code> and
+ * so on, and a new file is started.  Only a given number of old files
+ * are kept.
+ */
+public class RollingFileSink implements LogSink
+{
+  //Class variables *************************************************
+
+  /**
+   * The default size past which the file is rolled, in bytes.
+   */
+  final public static long DEFAULT_MAX_SIZE = 10L * 1024 * 1024;
+
+  /**
+   * The default number of old files kept.
+   */
+  final public static int DEFAULT_MAX_FILES = 5;
+
+  /**
+   * The format of the time of each record.
+   */
+  private static final DateTimeFormatter TIME_FORMAT =
+    DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+  //Instance variables **********************************************
+
+  /**
+   * The file records are appended to.
+   */
+  private final Path file;
+
+  /**
+   * The size past which the file is rolled, in bytes.
+   */
+  private final long maxSize;
+
+  /**
+   * The number of old files kept.
+   */
+  private final int maxFiles;
+
+  /**
+   * The zone the times of records are written in.
+   */
+  private final ZoneId zone = ZoneId.systemDefault();
+
+  /**
+   * The writer to the current file.
+   */
+  private Writer out;
+
+  /**
+   * The size of the current file, in bytes.
+   */
+  private long size;
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates a sink appending to a file, rolled at the default size.
+   *
+   * @param file The file.
+   */
+  public RollingFileSink(Path file) throws IOException
+  {
+    this(file, DEFAULT_MAX_SIZE, DEFAULT_MAX_FILES);
+  }
+
+  /**
+   * Creates a sink appending to a file.
+   *
+   * @param file The file.
+   * @param maxSize The size past which the file is rolled, in bytes.
+   * @param maxFiles The number of old files kept, 0 to keep none.
+   */
+  public RollingFileSink(Path file, long maxSize, int maxFiles)
+    throws IOException
+  {
+    if (maxSize <= 0 || maxFiles < 0)
+      throw new IllegalArgumentException("invalid rolling limits");
+
+    this.file = file;
+    this.maxSize = maxSize;
+    this.maxFiles = maxFiles;
+    open();
+  }
+
+  //Instance methods ************************************************
+
+  @Override
+  public void write(long time, LogLevel level, String message)
+    throws IOException
+  {
+    if (size >= maxSize)
+    {
+      roll();
+    }
+
+    String line = TIME_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), zone))
+      + ' ' + level + ' ' + message + System.lineSeparator();
+    out.write(line);
+    size += line.getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  @Override
+  public void flush() throws IOException
+  {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    out.close();
+  }
+
+  /**
+   * Opens the file for appending.
+   */
+  private void open() throws IOException
+  {
+    Path parent = file.toAbsolutePath().getParent();
+    if (parent != null)
+    {
+      Files.createDirectories(parent);
+    }
+    size = Files.exists(file) ? Files.size(file) : 0;
+    out = new BufferedWriter(new OutputStreamWriter(
+      Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND),
+      StandardCharsets.UTF_8), 64 * 1024);
+  }
+
+  /**
+   * Moves the current file and the old ones down one suffix, drops the
+   * oldest and opens a new file.
+   */
+  private void roll() throws IOException
+  {
+    out.close();
+    if (maxFiles == 0)
+    {
+      Files.deleteIfExists(file);
+    }
+    else
+    {
+      Files.deleteIfExists(rolled(maxFiles));
+      for (int i = maxFiles - 1; i >= 1; i--)
+      {
+        Path older = rolled(i);
+        if (Files.exists(older))
+        {
+          Files.move(older, rolled(i + 1));
+        }
+      }
+      Files.move(file, rolled(1));
+    }
+    open();
+  }
+
+  /**
+   * @param index The suffix of an old file.
+   * @return The path of that file.
+   */
+  private Path rolled(int index)
+  {
+    return file.resolveSibling(file.getFileName() + "." + index);
+  }
+}
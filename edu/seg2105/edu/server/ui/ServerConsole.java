@@ -102,6 +102,9 @@ public class ServerConsole implements ChatIF {
 	   *
 	   * @param args[0] The port number to listen on.  Defaults to 5555 
 	   *          if no argument is entered.
+	   * @param args[1] The port of the local HTTP endpoint publishing
+	   *          the server's metrics.  Metrics are not exported if no
+	   *          argument is entered.
 	   */
 	  public static void main(String[] args) 
 	  {
@@ -118,6 +121,19 @@ public class ServerConsole implements ChatIF {
 	    }
 		
 	    ServerConsole sv = new ServerConsole(port);
+
+	    if (args.length > 1)
+	    {
+	      try
+	      {
+	        int metricsPort = sv.server.exportMetrics(Integer.parseInt(args[1]));
+	        System.out.println("Metrics available at http://127.0.0.1:" + metricsPort + "/metrics");
+	      }
+	      catch(NumberFormatException | IOException e)
+	      {
+	        System.out.println("Error: Can't export metrics on port " + args[1] + ": " + e.getMessage());
+	      }
+	    }
 	    
 	    try 
 	    {